@@ -94,9 +94,9 @@ public class AgentDisplay implements ActionListener, WindowListener {
 	isClosing = false;
 	setVisible(false);
       } else {
-	status.setText("Messages sent: " + TACMessage.getMessageCount() +
+	status.setText("Messages sent: " + agent.getRuntime().getMessageCount() +
 		       "  Avg. response time: " +
-		       TACMessage.getAverageResponseTime() + " ms" +
+		       agent.getRuntime().getAverageResponseTime() + " ms" +
 		       "  Time left: " + agent.getGameTimeLeftAsString());
       }
     }
@@ -0,0 +1,308 @@
+package se.sics.tac.aw;
+
+import se.sics.tac.util.LogFormatter;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Filter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * What an agent gets from the JVM it runs in: the time dispatcher, the
+ * transport metrics, the message statistics, the console log level and
+ * what happens when the agent exits. Each agent (see {@link TACAgent})
+ * and its connection use the runtime they are given instead of anything
+ * shared by the JVM, so many agents can run side by side in one JVM.
+ * <p>
+ * A standalone runtime is for an agent that has the JVM to itself: it
+ * uses the default time dispatcher, sets the level of the console
+ * handler and exits the JVM when the agent exits. A hosted runtime has a
+ * dispatcher of its own, filters the console output of its agent by its
+ * own level and only stops the agent when it exits.
+ * <p>
+ * The runtime is bound to the thread that creates the agent and to the
+ * threads started from it, so {@link #getCurrent()} and
+ * {@link TimeDispatcher#getDefault()} return the agent's runtime and
+ * dispatcher in all of them.
+ * <pre>
+ *   AgentRuntime runtime = new AgentRuntime("agent1");
+ *   new TACAgent(new PostTraumaticAgent(), args, config, runtime);
+ *   runtime.awaitExit(0);
+ * </pre>
+ */
+public class AgentRuntime {
+
+    private static final Logger log = Logger.getLogger(AgentRuntime.class.getName());
+
+    // The runtime bound to a thread and the threads it starts
+    private static final InheritableThreadLocal<AgentRuntime> current =
+            new InheritableThreadLocal<AgentRuntime>();
+
+    private final String name;
+    private final boolean standalone;
+    private final TimeDispatcher dispatcher;
+    private final TACMetrics metrics = new TACMetrics();
+
+    // Received messages and their total response time (milliseconds)
+    private final AtomicLong messageCount = new AtomicLong();
+    private final AtomicLong totalResponseTime = new AtomicLong();
+
+    private volatile Level consoleLevel = Level.INFO;
+
+    private final ArrayList<Runnable> exitHooks = new ArrayList<Runnable>();
+    private boolean exited = false;
+    private int exitStatus = 0;
+
+    /**
+     * Creates a runtime for an agent that has the JVM to itself.
+     */
+    public static AgentRuntime createStandalone() {
+        return new AgentRuntime("agent", TimeDispatcher.getDefault(), true);
+    }
+
+    /**
+     * Creates a runtime for an agent hosted together with other agents.
+     */
+    public AgentRuntime(String name) {
+        this.name = name;
+        this.standalone = false;
+        // The dispatcher thread and its workers inherit the binding
+        AgentRuntime previous = current.get();
+        current.set(this);
+        try {
+            this.dispatcher = TimeDispatcher.create("timer-" + name);
+        } finally {
+            current.set(previous);
+        }
+    }
+
+    private AgentRuntime(String name, TimeDispatcher dispatcher, boolean standalone) {
+        this.name = name;
+        this.dispatcher = dispatcher;
+        this.standalone = standalone;
+    }
+
+    /**
+     * Returns the runtime bound to the current thread or <code>null</code>.
+     */
+    public static AgentRuntime getCurrent() {
+        return current.get();
+    }
+
+    /**
+     * Binds the runtime to the current thread and to the threads it starts
+     * from now on.
+     */
+    public void bind() {
+        current.set(this);
+        TimeDispatcher.setCurrent(dispatcher);
+    }
+
+    /**
+     * Removes the binding of the current thread.
+     */
+    public static void unbind() {
+        current.remove();
+        TimeDispatcher.setCurrent(null);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns true if the agent has the JVM to itself.
+     */
+    public boolean isStandalone() {
+        return standalone;
+    }
+
+    public TimeDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public TACMetrics getMetrics() {
+        return metrics;
+    }
+
+
+    // -------------------------------------------------------------------
+    // Message statistics (reported to the server when asking for games)
+    // -------------------------------------------------------------------
+
+    /**
+     * Records that the reply of a message has been received.
+     */
+    void messageReceived(TACMessage msg) {
+        totalResponseTime.addAndGet(msg.getResponseTime());
+        messageCount.incrementAndGet();
+    }
+
+    public long getMessageCount() {
+        return messageCount.get();
+    }
+
+    public float getAverageResponseTime() {
+        long count = messageCount.get();
+        if (count == 0) {
+            return 0f;
+        }
+        return (float) (totalResponseTime.get() / count);
+    }
+
+    public void resetResponseTime() {
+        totalResponseTime.set(0L);
+        messageCount.set(0L);
+    }
+
+
+    // -------------------------------------------------------------------
+    // Logging
+    // -------------------------------------------------------------------
+
+    /**
+     * Sets the level of the agent's console output.
+     */
+    public void setConsoleLevel(Level level) {
+        consoleLevel = level;
+        if (standalone) {
+            LogFormatter.setConsoleLevel(level);
+        } else {
+            installConsoleFilter();
+        }
+    }
+
+    public Level getConsoleLevel() {
+        return consoleLevel;
+    }
+
+    /**
+     * Returns a filter that only takes the records logged by the threads
+     * bound to this runtime, or <code>null</code> if the runtime is
+     * standalone (and all records are the agent's).
+     */
+    public Filter getLogFilter() {
+        if (standalone) {
+            return null;
+        }
+        return new Filter() {
+            public boolean isLoggable(LogRecord record) {
+                return current.get() == AgentRuntime.this;
+            }
+        };
+    }
+
+    // The console handlers are shared by all agents in the JVM: they take
+    // everything and leave the choice to the runtime of the logging thread
+    private static synchronized void installConsoleFilter() {
+        Handler[] handlers = Logger.getLogger("").getHandlers();
+        for (int i = 0; i < handlers.length; i++) {
+            Handler handler = handlers[i];
+            if (handler instanceof ConsoleHandler
+                    && !(handler.getFilter() instanceof ConsoleFilter)) {
+                handler.setFilter(new ConsoleFilter(handler.getLevel()));
+                handler.setLevel(Level.ALL);
+            }
+        }
+    }
+
+    private static class ConsoleFilter implements Filter {
+
+        // The level for threads that are not bound to an agent
+        private final Level level;
+
+        ConsoleFilter(Level level) {
+            this.level = level;
+        }
+
+        public boolean isLoggable(LogRecord record) {
+            AgentRuntime runtime = current.get();
+            Level l = runtime != null ? runtime.consoleLevel : level;
+            return record.getLevel().intValue() >= l.intValue();
+        }
+    }
+
+
+    // -------------------------------------------------------------------
+    // Lifecycle
+    // -------------------------------------------------------------------
+
+    /**
+     * Adds a task to perform when a hosted agent exits. The tasks are
+     * never performed by a standalone runtime: the JVM exits instead.
+     */
+    public synchronized void addExitHook(Runnable hook) {
+        exitHooks.add(hook);
+    }
+
+    /**
+     * Exits the agent: a standalone runtime exits the JVM and a hosted
+     * runtime performs the exit hooks, stops the dispatcher and wakes up
+     * the threads waiting for the agent to exit. Only the first call has
+     * any effect.
+     */
+    public void exit(int status) {
+        if (standalone) {
+            System.exit(status);
+        }
+        Runnable[] hooks;
+        synchronized (this) {
+            if (exited) {
+                return;
+            }
+            exited = true;
+            exitStatus = status;
+            hooks = exitHooks.toArray(new Runnable[exitHooks.size()]);
+        }
+        for (int i = 0; i < hooks.length; i++) {
+            try {
+                hooks[i].run();
+            } catch (Exception e) {
+                log.log(Level.SEVERE, "exit hook failed for agent " + name, e);
+            }
+        }
+        metrics.stopHttpServer();
+        dispatcher.shutdown();
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    public synchronized boolean isExited() {
+        return exited;
+    }
+
+    /**
+     * Returns the status the agent exited with.
+     */
+    public synchronized int getExitStatus() {
+        return exitStatus;
+    }
+
+    /**
+     * Waits for the agent to exit and returns true if it has exited. A
+     * timeout of 0 waits until it does.
+     */
+    public synchronized boolean awaitExit(long timeout) throws InterruptedException {
+        if (timeout <= 0) {
+            while (!exited) {
+                wait();
+            }
+            return true;
+        }
+        long end = System.currentTimeMillis() + timeout;
+        long wait;
+        while (!exited && (wait = end - System.currentTimeMillis()) > 0) {
+            wait(wait);
+        }
+        return exited;
+    }
+
+    public String toString() {
+        return "AgentRuntime[" + name + ']';
+    }
+}
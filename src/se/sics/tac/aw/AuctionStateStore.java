@@ -0,0 +1,235 @@
+package se.sics.tac.aw;
+
+import java.util.Arrays;
+
+/**
+ * Holds the state of all auctions in the current game (quote, active bid,
+ * ownership and allocation) as immutable, versioned snapshots published
+ * through a single volatile reference.
+ * <p>
+ * Readers call {@link #getState()} once and read a consistent view of all
+ * auctions from the returned snapshot without taking any locks. Writers
+ * are serialized among themselves and publish a new snapshot for each
+ * change. Only the arrays that change are copied, the others are shared
+ * with the previous snapshot, so a quote update copies the quote values
+ * but not the bids or ownership.
+ */
+public class AuctionStateStore {
+
+    private volatile Snapshot state;
+
+    public AuctionStateStore(int auctions) {
+        this.state = new Snapshot(auctions);
+    }
+
+    /**
+     * Returns the current snapshot. The snapshot never changes; call this
+     * method again to see later updates.
+     */
+    public Snapshot getState() {
+        return state;
+    }
+
+    /**
+     * Resets all auctions (at the start of a new game).
+     */
+    public synchronized void clear() {
+        state = new Snapshot(state.owns.length).withVersion(state.version + 1);
+    }
+
+    public synchronized void setOwn(int auction, int own) {
+        Snapshot s = state.copy();
+        s.owns = s.owns.clone();
+        s.owns[auction] = own;
+        state = s;
+    }
+
+    /**
+     * Adds a transaction: the quantity to the ownership and the quantity
+     * times the price to the cost, in a single update.
+     */
+    public synchronized void addOwn(int auction, int quantity, float price) {
+        Snapshot s = state.copy();
+        s.owns = s.owns.clone();
+        s.costs = s.costs.clone();
+        s.owns[auction] += quantity;
+        s.costs[auction] += quantity * price;
+        state = s;
+    }
+
+    public synchronized void setAllocation(int auction, int allocation) {
+        Snapshot s = state.copy();
+        s.allocations = s.allocations.clone();
+        s.allocations[auction] = allocation;
+        state = s;
+    }
+
+    public synchronized void clearAllocation() {
+        Snapshot s = state.copy();
+        s.allocations = new int[s.allocations.length];
+        state = s;
+    }
+
+    public synchronized void setBid(int auction, Bid bid) {
+        Snapshot s = state.copy();
+        s.bids = s.bids.clone();
+        s.bids[auction] = bid;
+        state = s;
+    }
+
+    /**
+     * Publishes the current values of the quote.
+     */
+    public synchronized void updateQuote(Quote quote) {
+        int auction = quote.getAuction();
+        Snapshot s = state.copy();
+        s.askPrices = s.askPrices.clone();
+        s.bidPrices = s.bidPrices.clone();
+        s.hqws = s.hqws.clone();
+        s.quoteBids = s.quoteBids.clone();
+        s.statuses = s.statuses.clone();
+        s.lastQuoteTimes = s.lastQuoteTimes.clone();
+        s.askPrices[auction] = quote.getAskPrice();
+        s.bidPrices[auction] = quote.getBidPrice();
+        s.hqws[auction] = quote.getHQW();
+        s.quoteBids[auction] = quote.getBid();
+        s.statuses[auction] = quote.getAuctionStatus();
+        s.lastQuoteTimes[auction] = quote.getLastQuoteTime();
+        state = s;
+    }
+
+
+    // -------------------------------------------------------------------
+    // Immutable snapshot of all auctions
+    // -------------------------------------------------------------------
+
+    public static class Snapshot {
+
+        // The arrays are never modified once the snapshot is published
+        private long version;
+        private int[] owns;
+        private float[] costs;
+        private int[] allocations;
+        private Bid[] bids;
+        private float[] askPrices;
+        private float[] bidPrices;
+        private int[] hqws;
+        private Bid[] quoteBids;
+        private int[] statuses;
+        private long[] lastQuoteTimes;
+
+        Snapshot(int auctions) {
+            this.owns = new int[auctions];
+            this.costs = new float[auctions];
+            this.allocations = new int[auctions];
+            this.bids = new Bid[auctions];
+            this.askPrices = new float[auctions];
+            this.bidPrices = new float[auctions];
+            this.hqws = new int[auctions];
+            this.quoteBids = new Bid[auctions];
+            this.statuses = new int[auctions];
+            this.lastQuoteTimes = new long[auctions];
+            Arrays.fill(hqws, -1);
+        }
+
+        private Snapshot() {
+        }
+
+        // A new version sharing all arrays with this snapshot
+        private Snapshot copy() {
+            Snapshot s = new Snapshot();
+            s.version = version + 1;
+            s.owns = owns;
+            s.costs = costs;
+            s.allocations = allocations;
+            s.bids = bids;
+            s.askPrices = askPrices;
+            s.bidPrices = bidPrices;
+            s.hqws = hqws;
+            s.quoteBids = quoteBids;
+            s.statuses = statuses;
+            s.lastQuoteTimes = lastQuoteTimes;
+            return s;
+        }
+
+        private Snapshot withVersion(long version) {
+            this.version = version;
+            return this;
+        }
+
+        /**
+         * Returns the version of this snapshot. Each update increases the
+         * version by one.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        public int getAuctionCount() {
+            return owns.length;
+        }
+
+        public int getOwn(int auction) {
+            return owns[auction];
+        }
+
+        public float getCost(int auction) {
+            return costs[auction];
+        }
+
+        public int getAllocation(int auction) {
+            return allocations[auction];
+        }
+
+        /**
+         * Returns the active bid in the auction or <code>null</code>.
+         */
+        public Bid getBid(int auction) {
+            return bids[auction];
+        }
+
+        /**
+         * Returns what might be owned in addition to {@link #getOwn(int)}:
+         * the HQW if the last quote was for the active bid and otherwise
+         * the bid quantity.
+         */
+        public int getProbablyOwn(int auction) {
+            Bid bid = bids[auction];
+            if (bid == null) {
+                return 0;
+            }
+            if (quoteBids[auction] == bid && hqws[auction] >= 0) {
+                return hqws[auction];
+            }
+            return bid.getQuantity();
+        }
+
+        public float getAskPrice(int auction) {
+            return askPrices[auction];
+        }
+
+        public float getBidPrice(int auction) {
+            return bidPrices[auction];
+        }
+
+        public int getHQW(int auction) {
+            return hqws[auction];
+        }
+
+        public int getAuctionStatus(int auction) {
+            return statuses[auction];
+        }
+
+        public boolean isAuctionClosed(int auction) {
+            return statuses[auction] == Quote.AUCTION_CLOSED;
+        }
+
+        public long getLastQuoteTime(int auction) {
+            return lastQuoteTimes[auction];
+        }
+
+        public String toString() {
+            return "AuctionState[" + version + ']';
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package se.sics.tac.aw;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Precomputed buy/wait decisions for flight auctions, generated offline by
+ * {@link FlightDecisionTableGenerator} from simulated flight prices and memory mapped by the
+ * agent. The table is indexed by the number of price updates seen (the step), the current
+ * price and the observed trend (the mean price change per update since the start of the
+ * game) and gives the expected savings of waiting, in tenths of a price: a positive value
+ * means wait and anything else buy now.
+ * <p>
+ * The file is a header followed by the table, all big-endian:
+ * <pre>
+ *   int magic ("TAF1"), int steps, int priceBuckets, int trendBuckets,
+ *   float minPrice, float priceBucketSize, float minTrend, float trendBucketSize,
+ *   long gameLength, long flights (simulated), int crc32 (of the table), int reserved,
+ *   short savings[steps + 1][priceBuckets][trendBuckets]
+ * </pre>
+ * Buckets that no simulated flight reached hold {@link #UNKNOWN}.
+ */
+public class FlightDecisionTable {
+
+    /**
+     * The savings of a bucket without any data.
+     */
+    public static final short UNKNOWN = Short.MIN_VALUE;
+
+    private static final int MAGIC = 0x54414631; // "TAF1"
+    static final int HEADER_SIZE = 56;
+
+    // tables already loaded, by canonical path (they are read-only and shared by all agents)
+    private static final HashMap<String, FlightDecisionTable> loaded =
+            new HashMap<String, FlightDecisionTable>();
+
+    private final int steps;
+    private final int priceBuckets;
+    private final int trendBuckets;
+    private final float minPrice;
+    private final float priceBucketSize;
+    private final float minTrend;
+    private final float trendBucketSize;
+    private final long gameLength;
+    private final long flights;
+    private final ShortBuffer savings;
+
+    private FlightDecisionTable(ByteBuffer buffer) throws IOException {
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("not a flight decision table");
+        }
+        steps = buffer.getInt(4);
+        priceBuckets = buffer.getInt(8);
+        trendBuckets = buffer.getInt(12);
+        minPrice = buffer.getFloat(16);
+        priceBucketSize = buffer.getFloat(20);
+        minTrend = buffer.getFloat(24);
+        trendBucketSize = buffer.getFloat(28);
+        gameLength = buffer.getLong(32);
+        flights = buffer.getLong(40);
+        int crc = buffer.getInt(48);
+
+        long size = 2L * (steps + 1) * priceBuckets * trendBuckets;
+        if (steps < 0 || priceBuckets <= 0 || trendBuckets <= 0
+                || HEADER_SIZE + size != buffer.limit()) {
+            throw new IOException("flight decision table of size " + buffer.limit()
+                    + " does not match its header");
+        }
+        ByteBuffer data = buffer.duplicate();
+        data.position(HEADER_SIZE);
+        ByteBuffer table = data.slice();
+        CRC32 checksum = new CRC32();
+        checksum.update(table.duplicate());
+        if ((int) checksum.getValue() != crc) {
+            throw new IOException("flight decision table checksum mismatch");
+        }
+        savings = table.asShortBuffer();
+    }
+
+    /**
+     * Memory maps a table file and validates its checksum. A file already loaded is shared.
+     */
+    public static FlightDecisionTable load(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        synchronized (loaded) {
+            FlightDecisionTable table = loaded.get(path);
+            if (table == null) {
+                FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                try {
+                    MappedByteBuffer buffer =
+                            channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    table = new FlightDecisionTable(buffer);
+                } finally {
+                    // The mapping stays valid after the channel is closed
+                    channel.close();
+                }
+                loaded.put(path, table);
+            }
+            return table;
+        }
+    }
+
+    /**
+     * Writes a table. The savings are indexed as by {@link #getIndex}.
+     */
+    static void write(File file, int steps, int priceBuckets, int trendBuckets,
+                      float minPrice, float priceBucketSize,
+                      float minTrend, float trendBucketSize,
+                      long gameLength, long flights, short[] savings) throws IOException {
+        ByteBuffer table = ByteBuffer.allocate(2 * savings.length);
+        table.asShortBuffer().put(savings);
+        CRC32 checksum = new CRC32();
+        checksum.update(table.array());
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(steps).putInt(priceBuckets).putInt(trendBuckets)
+                .putFloat(minPrice).putFloat(priceBucketSize)
+                .putFloat(minTrend).putFloat(trendBucketSize)
+                .putLong(gameLength).putLong(flights)
+                .putInt((int) checksum.getValue()).putInt(0);
+
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(0);
+            out.write(header.array());
+            out.write(table.array());
+        } finally {
+            out.close();
+        }
+    }
+
+    public int getSteps() {
+        return steps;
+    }
+
+    public long getGameLength() {
+        return gameLength;
+    }
+
+    /**
+     * The number of simulated flights the table was generated from.
+     */
+    public long getFlights() {
+        return flights;
+    }
+
+    /**
+     * The step of a price quoted at the specified game time (the number of price updates
+     * since the start of the game).
+     */
+    public int getStep(long gameTime) {
+        int s = (int) ((gameTime + FlightPriceProcess.UPDATE_PERIOD / 2)
+                / FlightPriceProcess.UPDATE_PERIOD);
+        return s < 0 ? 0 : (s > steps ? steps : s);
+    }
+
+    /**
+     * The index in the table of a price at a step in a flight that started at initialPrice.
+     */
+    public int getIndex(int step, float price, float initialPrice) {
+        return getIndex(step, price, initialPrice, priceBuckets, trendBuckets,
+                minPrice, priceBucketSize, minTrend, trendBucketSize);
+    }
+
+    static int getIndex(int step, float price, float initialPrice,
+                        int priceBuckets, int trendBuckets,
+                        float minPrice, float priceBucketSize,
+                        float minTrend, float trendBucketSize) {
+        float trend = step == 0 ? 0f : (price - initialPrice) / step;
+        int p = (int) Math.floor((price - minPrice) / priceBucketSize);
+        int t = (int) Math.floor((trend - minTrend) / trendBucketSize);
+        p = p < 0 ? 0 : (p >= priceBuckets ? priceBuckets - 1 : p);
+        t = t < 0 ? 0 : (t >= trendBuckets ? trendBuckets - 1 : t);
+        return (step * priceBuckets + p) * trendBuckets + t;
+    }
+
+    /**
+     * The expected savings (in price) of waiting instead of buying now, or NaN if the table
+     * has no data for the state. Buy now unless the savings are positive.
+     */
+    public float getSavings(int step, float price, float initialPrice) {
+        short s = savings.get(getIndex(step, price, initialPrice));
+        return s == UNKNOWN ? Float.NaN : s / 10f;
+    }
+
+    public String toString() {
+        return "FlightDecisionTable[" + (steps + 1) + 'x' + priceBuckets + 'x' + trendBuckets
+                + ',' + flights + " flights]";
+    }
+}
@@ -0,0 +1,270 @@
+package se.sics.tac.aw;
+
+import se.sics.tac.util.ArgEnumerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates a {@link FlightDecisionTable} by simulating flights with the
+ * {@link FlightPriceProcess} of the game rules. The decisions are found backwards from the
+ * last price update: at each step the flights in a bucket (price and observed trend) are
+ * compared between buying now and the price each of them ends up paying by following the
+ * decisions of the later steps, and waiting is chosen where it saves money on average.
+ * <pre>
+ *   java -cp PostTraumaticAgent.jar se.sics.tac.aw.FlightDecisionTableGenerator
+ *        -flights 1000000 -threads 8 -out flights.tab
+ * </pre>
+ * The flights are simulated in chunks with seeds of their own, so a table only depends on
+ * the seed and the number of flights (not on the number of threads).
+ */
+public class FlightDecisionTableGenerator {
+
+    // simulated flights per chunk (the unit of work of a thread)
+    private static final int CHUNK = 8192;
+
+    private static final float MIN_PRICE = FlightPriceProcess.MIN_PRICE;
+    private static final float PRICE_BUCKET_SIZE = 10f;
+    private static final int PRICE_BUCKETS =
+            (int) ((FlightPriceProcess.MAX_PRICE - FlightPriceProcess.MIN_PRICE) / PRICE_BUCKET_SIZE);
+    private static final float MIN_TREND = FlightPriceProcess.MIN_X;
+    private static final float TREND_BUCKET_SIZE = 1f;
+    private static final int TREND_BUCKETS =
+            (int) ((FlightPriceProcess.MAX_X - FlightPriceProcess.MIN_X) / TREND_BUCKET_SIZE);
+
+    private final long gameLength;
+    private final int steps;
+    private final int flights;
+    private final long seed;
+    private final int threads;
+    private final int buckets = PRICE_BUCKETS * TREND_BUCKETS;
+    private final short[] savings;
+
+    // the mean price of a flight at the start, when bought by the table and at its lowest
+    private double initialPrice;
+    private double paidPrice;
+    private double lowestPrice;
+
+    public FlightDecisionTableGenerator(long gameLength, int flights, long seed, int threads) {
+        this.gameLength = gameLength;
+        this.steps = (int) ((gameLength - 1) / FlightPriceProcess.UPDATE_PERIOD);
+        this.flights = flights;
+        this.seed = seed;
+        this.threads = threads;
+        this.savings = new short[(steps + 1) * buckets];
+    }
+
+    /**
+     * Simulates the flights and computes the table.
+     */
+    public void generate() throws Exception {
+        ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+        for (int i = 0, start = 0; start < flights; i++, start += CHUNK) {
+            chunks.add(new Chunk(i, Math.min(CHUNK, flights - start)));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            run(executor, chunks, chunk -> chunk.simulate());
+
+            int[] count = new int[buckets];
+            double[] sumPrice = new double[buckets];
+            double[] sumPaid = new double[buckets];
+            for (int s = steps; s >= 0; s--) {
+                final int step = s;
+                run(executor, chunks, chunk -> chunk.collect(step));
+
+                // the savings of waiting in each bucket over all chunks
+                Arrays.fill(count, 0);
+                Arrays.fill(sumPrice, 0);
+                Arrays.fill(sumPaid, 0);
+                for (Chunk chunk : chunks) {
+                    for (int b = 0; b < buckets; b++) {
+                        count[b] += chunk.count[b];
+                        sumPrice[b] += chunk.sumPrice[b];
+                        sumPaid[b] += chunk.sumPaid[b];
+                    }
+                }
+                int offset = step * buckets;
+                for (int b = 0; b < buckets; b++) {
+                    if (count[b] == 0) {
+                        savings[offset + b] = FlightDecisionTable.UNKNOWN;
+                    } else if (step == steps) {
+                        // the last price: buy now
+                        savings[offset + b] = 0;
+                    } else {
+                        double save = 10 * (sumPrice[b] - sumPaid[b]) / count[b];
+                        savings[offset + b] = (short) Math.max(Short.MIN_VALUE + 1,
+                                Math.min(Short.MAX_VALUE, Math.round(save)));
+                    }
+                }
+
+                run(executor, chunks, chunk -> chunk.decide(step));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        for (Chunk chunk : chunks) {
+            for (int i = 0; i < chunk.size; i++) {
+                initialPrice += chunk.prices[i * (steps + 1)];
+                paidPrice += chunk.paid[i];
+                lowestPrice += chunk.lowest[i];
+            }
+        }
+        initialPrice /= flights;
+        paidPrice /= flights;
+        lowestPrice /= flights;
+    }
+
+    private interface Work {
+        void run(Chunk chunk);
+    }
+
+    private static void run(ExecutorService executor, ArrayList<Chunk> chunks, Work work)
+            throws Exception {
+        ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>(chunks.size());
+        for (final Chunk chunk : chunks) {
+            tasks.add(() -> {
+                work.run(chunk);
+                return null;
+            });
+        }
+        for (Future<Object> f : executor.invokeAll(tasks)) {
+            // Rethrows any failure
+            f.get();
+        }
+    }
+
+    /**
+     * Writes the table computed by {@link #generate()}.
+     */
+    public void write(File file) throws IOException {
+        FlightDecisionTable.write(file, steps, PRICE_BUCKETS, TREND_BUCKETS,
+                MIN_PRICE, PRICE_BUCKET_SIZE, MIN_TREND, TREND_BUCKET_SIZE,
+                gameLength, flights, savings);
+    }
+
+    public String getSummary() {
+        int known = 0;
+        for (int i = 0; i < savings.length; i++) {
+            if (savings[i] != FlightDecisionTable.UNKNOWN) {
+                known++;
+            }
+        }
+        return "flights: " + flights + ", " + (steps + 1) + " steps, " + known + " of "
+                + savings.length + " buckets reached\n"
+                + "mean price: initial " + (float) initialPrice + ", paid "
+                + (float) paidPrice + ", lowest " + (float) lowestPrice + '\n';
+    }
+
+
+    // -------------------------------------------------------------------
+    // Flights simulated and decided by one thread at the time
+    // -------------------------------------------------------------------
+
+    private class Chunk {
+
+        private final int index;
+        private final int size;
+        // the prices of each flight at steps 0..steps
+        private final float[] prices;
+        // the price each flight pays by the decisions from the current step on
+        private final float[] paid;
+        private final float[] lowest;
+        private final int[] count = new int[buckets];
+        private final double[] sumPrice = new double[buckets];
+        private final double[] sumPaid = new double[buckets];
+
+        Chunk(int index, int size) {
+            this.index = index;
+            this.size = size;
+            this.prices = new float[size * (steps + 1)];
+            this.paid = new float[size];
+            this.lowest = new float[size];
+        }
+
+        void simulate() {
+            Random random = new Random(seed * 1000003L + index);
+            for (int i = 0; i < size; i++) {
+                FlightPriceProcess flight = new FlightPriceProcess(random, gameLength);
+                int base = i * (steps + 1);
+                float low = prices[base] = flight.getPrice();
+                for (int s = 1; s <= steps; s++) {
+                    float p = flight.step((long) s * FlightPriceProcess.UPDATE_PERIOD, random);
+                    prices[base + s] = p;
+                    low = Math.min(low, p);
+                }
+                // nothing is left to wait for after the last update
+                paid[i] = prices[base + steps];
+                lowest[i] = low;
+            }
+        }
+
+        private int bucket(int i, int step) {
+            int base = i * (steps + 1);
+            return FlightDecisionTable.getIndex(step, prices[base + step], prices[base],
+                    PRICE_BUCKETS, TREND_BUCKETS, MIN_PRICE, PRICE_BUCKET_SIZE,
+                    MIN_TREND, TREND_BUCKET_SIZE) - step * buckets;
+        }
+
+        void collect(int step) {
+            Arrays.fill(count, 0);
+            Arrays.fill(sumPrice, 0);
+            Arrays.fill(sumPaid, 0);
+            for (int i = 0; i < size; i++) {
+                int b = bucket(i, step);
+                count[b]++;
+                sumPrice[b] += prices[i * (steps + 1) + step];
+                sumPaid[b] += paid[i];
+            }
+        }
+
+        void decide(int step) {
+            int offset = step * buckets;
+            for (int i = 0; i < size; i++) {
+                if (savings[offset + bucket(i, step)] <= 0) {
+                    paid[i] = prices[i * (steps + 1) + step];
+                }
+            }
+        }
+    }
+
+
+    // -------------------------------------------------------------------
+    // Startup and argument handling
+    // -------------------------------------------------------------------
+
+    public static void main(String[] args) throws Exception {
+        String usage =
+                "Usage: se.sics.tac.aw.FlightDecisionTableGenerator [-options]\n"
+                        + "where options include:\n"
+                        + "    -flights <flights>        set the number of flights to simulate\n"
+                        + "    -threads <threads>        set the number of threads to use\n"
+                        + "    -seed <seed>              set the seed of the simulation\n"
+                        + "    -gameLength <seconds>     set the game length\n"
+                        + "    -out <file>               set the table file to write\n"
+                        + "    -h                        show this help message\n";
+        ArgEnumerator a = new ArgEnumerator(args, usage, true);
+        int flights = a.getArgument("-flights", 1000000);
+        int threads = a.getArgument("-threads", Runtime.getRuntime().availableProcessors());
+        int seed = a.getArgument("-seed", 1);
+        int gameLength = a.getArgument("-gameLength", TACMarket.DEFAULT_GAME_LENGTH / 1000);
+        String out = a.getArgument("-out", "flights.tab");
+        a.checkArguments();
+
+        long start = System.nanoTime();
+        FlightDecisionTableGenerator generator = new FlightDecisionTableGenerator(
+                gameLength * 1000L, Math.max(1, flights), seed, Math.max(1, threads));
+        generator.generate();
+        generator.write(new File(out));
+        System.out.print(generator.getSummary());
+        System.out.println("wrote " + out + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+}
@@ -0,0 +1,288 @@
+package se.sics.tac.aw;
+
+import java.util.Arrays;
+
+/**
+ * Bayesian model of the price of one flight auction. The price follows the random walk of
+ * {@link FlightPriceProcess}, whose hidden parameter x sets the trend of the price, and the
+ * model keeps a posterior over x discretized into bins of width 1 over [-10, 30]. Each price
+ * change narrows the posterior to the bins for which the change is possible.
+ * <p>
+ * The price change bounds, the expected price changes and the expected minimum of the rest
+ * of the walk are precomputed for each bin and update step (once per game length and shared
+ * by all models), so updates and queries are sums over the bins.
+ */
+public class FlightPriceModel {
+
+    // x of the bins: MIN_X, MIN_X + 1, ..., MAX_X
+    private static final int BINS = (int) (FlightPriceProcess.MAX_X - FlightPriceProcess.MIN_X) + 1;
+
+    private static Tables lastTables;
+
+    private final Tables tables;
+    private final double[] posterior = new double[BINS];
+
+    // the last price and the number of updates it has seen (-1 before the first price)
+    private float price;
+    private int step = -1;
+
+    /**
+     * constructor
+     * @param gameLength in milliseconds
+     */
+    public FlightPriceModel(long gameLength) {
+        tables = getTables(gameLength);
+        for (int k = 0; k < BINS; k++) {
+            posterior[k] = 1.0 / BINS;
+        }
+    }
+
+    /**
+     * Add the price quoted at the specified game time.
+     * @param gameTime
+     * @param price
+     */
+    public void add(long gameTime, float price) {
+        int s = tables.getStep(gameTime);
+        if (step >= 0 && s == step + 1 && !isBound(price) && !isBound(this.price)) {
+            // the change is one perturbation, drawn uniformly within the bounds of the bin
+            float change = price - this.price;
+            double total = 0;
+            for (int k = 0; k < BINS; k++) {
+                total += posterior[k] * tables.likelihood(k, s, change);
+            }
+            // a change possible for no bin is ignored
+            if (total > 0) {
+                for (int k = 0; k < BINS; k++) {
+                    posterior[k] = posterior[k] * tables.likelihood(k, s, change) / total;
+                }
+            }
+        }
+        if (s >= step) {
+            this.price = price;
+            this.step = s;
+        }
+    }
+
+    // the price is kept within the bounds and changes there tell nothing of x
+    private static boolean isBound(float price) {
+        return price <= FlightPriceProcess.MIN_PRICE || price >= FlightPriceProcess.MAX_PRICE;
+    }
+
+    public float getPrice() {
+        return price;
+    }
+
+    /**
+     * The number of price updates seen so far.
+     * @return
+     */
+    public int getStep() {
+        return step;
+    }
+
+    /**
+     * The posterior probability of the bin with hidden parameter x (rounded).
+     * @param x
+     * @return
+     */
+    public double getProbability(float x) {
+        int k = Math.round(x - FlightPriceProcess.MIN_X);
+        return k < 0 || k >= BINS ? 0 : posterior[k];
+    }
+
+    /**
+     * The posterior mean of the hidden parameter.
+     * @return
+     */
+    public double getExpectedX() {
+        double x = 0;
+        for (int k = 0; k < BINS; k++) {
+            x += posterior[k] * (FlightPriceProcess.MIN_X + k);
+        }
+        return x;
+    }
+
+    /**
+     * The expected lowest price of the remaining updates (not counting the current price),
+     * or the current price if there are none.
+     * @return
+     */
+    public double getExpectedMinPrice() {
+        if (step < 0 || step >= tables.steps) {
+            return price;
+        }
+        double drop = 0;
+        for (int k = 0; k < BINS; k++) {
+            drop += posterior[k] * tables.expectedMin[k][step];
+        }
+        return Math.max(FlightPriceProcess.MIN_PRICE, price + drop);
+    }
+
+    /**
+     * The probability that the price is higher after the next update (0 if there are none).
+     * @return
+     */
+    public double getRiseProbability() {
+        if (step < 0 || step >= tables.steps) {
+            return 0;
+        }
+        double p = 0;
+        for (int k = 0; k < BINS; k++) {
+            p += posterior[k] * tables.riseProbability[k][step + 1];
+        }
+        return p;
+    }
+
+    /**
+     * Return true if the price is not expected to go below the current price at any of the
+     * remaining updates (and to buy now), or false if it is better to wait.
+     * @return
+     */
+    public boolean shouldBuy() {
+        if (step < 0 || step >= tables.steps) {
+            return true;
+        }
+        for (int j = step + 1; j <= tables.steps; j++) {
+            double change = 0;
+            for (int k = 0; k < BINS; k++) {
+                change += posterior[k] * (tables.expectedChange[k][j] - tables.expectedChange[k][step]);
+            }
+            if (change < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String toString() {
+        return "FlightPriceModel[" + step + ',' + price + ",x=" + (float) getExpectedX() + ']';
+    }
+
+    private static synchronized Tables getTables(long gameLength) {
+        if (lastTables == null || lastTables.gameLength != gameLength) {
+            lastTables = new Tables(gameLength);
+        }
+        return lastTables;
+    }
+
+
+    // -------------------------------------------------------------------
+    // The tables of a game length, by bin and update step
+    // -------------------------------------------------------------------
+
+    private static class Tables {
+
+        private final long gameLength;
+        // the number of price updates in a game (at each UPDATE_PERIOD)
+        private final int steps;
+
+        // bounds of the change at each update over the bin (wider than those at the x of
+        // the bin, so that x between two bins is possible for both)
+        private final float[][] minChange;
+        private final float[][] maxChange;
+        // the probability of a rise at each update
+        private final double[][] riseProbability;
+        // the expected change from the start of the game up to each update
+        private final double[][] expectedChange;
+        // the expected lowest price after each update relative to the price then
+        private final double[][] expectedMin;
+
+        Tables(long gameLength) {
+            this.gameLength = gameLength;
+            this.steps = (int) ((gameLength - 1) / FlightPriceProcess.UPDATE_PERIOD);
+            minChange = new float[BINS][steps + 1];
+            maxChange = new float[BINS][steps + 1];
+            riseProbability = new double[BINS][steps + 1];
+            expectedChange = new double[BINS][steps + 1];
+            expectedMin = new double[BINS][steps + 1];
+
+            for (int k = 0; k < BINS; k++) {
+                float x = FlightPriceProcess.MIN_X + k;
+                float x0 = Math.max(FlightPriceProcess.MIN_X, x - 0.5f);
+                float x1 = Math.min(FlightPriceProcess.MAX_X, x + 0.5f);
+                for (int s = 1; s <= steps; s++) {
+                    long time = (long) s * FlightPriceProcess.UPDATE_PERIOD;
+                    float xt = FlightPriceProcess.getTrend(x, time, gameLength);
+                    float low = FlightPriceProcess.getMinChange(xt);
+                    float high = FlightPriceProcess.getMaxChange(xt);
+                    riseProbability[k][s] = high / (high - low);
+                    expectedChange[k][s] = expectedChange[k][s - 1] + (low + high) / 2;
+
+                    float xt0 = FlightPriceProcess.getTrend(x0, time, gameLength);
+                    float xt1 = FlightPriceProcess.getTrend(x1, time, gameLength);
+                    float t0 = Math.min(xt0, xt1);
+                    float t1 = Math.max(xt0, xt1);
+                    boolean spansZero = t0 < 0f && t1 > 0f;
+                    minChange[k][s] = spansZero ? -10f : Math.min(
+                            FlightPriceProcess.getMinChange(t0), FlightPriceProcess.getMinChange(t1));
+                    maxChange[k][s] = spansZero ? 10f : Math.max(
+                            FlightPriceProcess.getMaxChange(t0), FlightPriceProcess.getMaxChange(t1));
+                }
+                computeExpectedMin(k, x);
+            }
+        }
+
+        // The lowest price after update s is the next change plus the lowest of 0 and the
+        // rest of the walk, whose distribution is found backwards from the last update.
+        private void computeExpectedMin(int k, float x) {
+            // dist[i]: probability that the lowest of 0 and the rest of the walk is -i, in
+            // whole prices (a change is never below -10)
+            int maxDrop = 10 * steps;
+            double[] dist = new double[maxDrop + 1];
+            double[] next = new double[maxDrop + 1];
+            double[] kernel = new double[(int) (FlightPriceProcess.MAX_X + 10) + 2];
+            int reach = 0;
+            dist[0] = 1.0;
+            for (int s = steps - 1; s >= 0; s--) {
+                long time = (long) (s + 1) * FlightPriceProcess.UPDATE_PERIOD;
+                float xt = FlightPriceProcess.getTrend(x, time, gameLength);
+                float low = FlightPriceProcess.getMinChange(xt);
+                float high = FlightPriceProcess.getMaxChange(xt);
+
+                // the change, spread over whole prices
+                int first = (int) Math.floor(low + 0.5f);
+                int last = (int) Math.ceil(high - 0.5f);
+                for (int j = first; j <= last; j++) {
+                    double overlap = Math.min(high, j + 0.5) - Math.max(low, j - 0.5);
+                    kernel[j - first] = Math.max(0, overlap) / (high - low);
+                }
+
+                double mean = 0;
+                for (int i = 0; i <= reach; i++) {
+                    mean -= i * dist[i];
+                }
+                expectedMin[k][s] = (low + high) / 2 + mean;
+
+                // the walk from s: min(0, change + walk from s + 1)
+                int nextReach = Math.min(maxDrop, reach - first);
+                Arrays.fill(next, 0, nextReach + 1, 0);
+                for (int i = 0; i <= reach; i++) {
+                    if (dist[i] == 0) {
+                        continue;
+                    }
+                    for (int j = first; j <= last; j++) {
+                        int drop = i - j;
+                        next[drop < 0 ? 0 : drop] += dist[i] * kernel[j - first];
+                    }
+                }
+                reach = nextReach;
+                double[] tmp = dist;
+                dist = next;
+                next = tmp;
+            }
+        }
+
+        int getStep(long gameTime) {
+            int s = (int) ((gameTime + FlightPriceProcess.UPDATE_PERIOD / 2)
+                    / FlightPriceProcess.UPDATE_PERIOD);
+            return s < 0 ? 0 : (s > steps ? steps : s);
+        }
+
+        double likelihood(int k, int s, float change) {
+            float low = minChange[k][s];
+            float high = maxChange[k][s];
+            return change >= low && change <= high ? 1.0 / (high - low) : 0;
+        }
+    }
+}
@@ -1,77 +1,210 @@
 package se.sics.tac.aw;
 
-import org.apache.commons.math3.linear.MatrixUtils;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.stat.regression.*;
-
-import java.util.Arrays;
-
 /**
  * Predict the behaviour(increase/decrease) of flight tickets depending on the given data.
+ * The prices are added one at the time as they are quoted, at the price update (step) they
+ * were quoted at so that a missed update leaves a gap, and the predictor keeps the sums
+ * of the least squares normal equations, so adding a price is O(degree) and the polynomial
+ * is only solved again (a (degree + 1) x (degree + 1) system) when it is needed.
+ * <p>
+ * The predicted minimum over the remaining steps is found from the roots of the derivative
+ * of the polynomial, and queries do not allocate any objects.
  */
 public class FlightPricePredictor {
 
-    // degree of the plynomial used in curve fitting
-    private final int degree;
+    /**
+     * The number of flight price updates the prices are predicted up to.
+     */
+    public static final int HORIZON = 54;
+
+    // highest degree of the polynomial used in curve fitting
+    private static final int MAX_DEGREE = 3;
+
+    // x is scaled to [0, 1] over the horizon to keep the normal equations well conditioned
+    private static final double SCALE = 1.0 / HORIZON;
+
+    // predictions from this price are never regarded as a minimum
+    private static final double MAX_PRICE = 1000;
+
+    // normal distribution quantile for the 95% confidence bounds
+    private static final double CONFIDENCE_Z = 1.96;
+
+    // sums of x^k for k = 0..2*MAX_DEGREE and of y*x^k for k = 0..MAX_DEGREE
+    private final double[] sumX = new double[2 * MAX_DEGREE + 1];
+    private final double[] sumXY = new double[MAX_DEGREE + 1];
+    private double sumYY = 0;
 
     // length of the data we have
-    private int length;
+    private int length = 0;
+    // the step of the last price (-1 before the first price)
+    private int step = -1;
+
+    // degree of the plynomial fitted to the current data
+    private int degree;
+
+    // prediction coefs (for the scaled x) and residual variance, valid when fitted
+    private final double[] coef = new double[MAX_DEGREE + 1];
+    private double variance;
+    private boolean fitted = false;
 
-    // will hold prediction coefs once we get values
-    private RealMatrix coef = null;
+    // LU decomposition of the normal equations (with the rows permuted by perm),
+    // reused for each fit
+    private final double[][] lu = new double[MAX_DEGREE + 1][MAX_DEGREE + 1];
+    private final int[] perm = new int[MAX_DEGREE + 1];
+    private final double[] v = new double[MAX_DEGREE + 1];
+    private final double[] w = new double[MAX_DEGREE + 1];
+
+    // the result of the last findMinimum()
+    private int minStep = -1;
+    private double minPrice = MAX_PRICE;
+
+    /**
+     * constructor for a predictor without data
+     */
+    public FlightPricePredictor() {
+    }
 
     /**
      * constructor
      * @param y
      */
     public FlightPricePredictor(double[] y) {
+        for (int i = 0; i < y.length; i++) {
+            add(y[i]);
+        }
+    }
 
-        length = y.length;
-
-        // degree of the polynomial according to
-        // the amount of data given
+    /**
+     * degree of the polynomial according to the amount of data given
+     * @param length
+     * @return
+     */
+    public static int getDegree(int length) {
         int l = length / 6;
-        if (l <7){
-            degree = 1;
-        }else if (l < 8){
-            degree = 2;
-        }else{
-            degree = 3;
+        if (l < 7) {
+            return 1;
+        } else if (l < 8) {
+            return 2;
+        } else {
+            return 3;
         }
+    }
 
-        double[] x = new double[length];
-        double[][] xData = new double[length][];
+    /**
+     * Add the price of the step after the last price (the x of the first price is 0).
+     * @param y
+     */
+    public void add(double y) {
+        add(step + 1, y);
+    }
 
-        // the implementation determines how to produce a vector of predictors from a single x
-        for (int i = 0; i < length; i++) {
-            x[i] = i;
-            xData[i] = xVector(x[i]);
+    /**
+     * Add the price quoted at the specified step (the number of price updates since the start
+     * of the game). Steps must increase, a price for a step already added is ignored.
+     * @param step
+     * @param y
+     */
+    public void add(int step, double y) {
+        if (step <= this.step) {
+            return;
+        }
+        this.step = step;
+        double x = step * SCALE;
+        double xi = 1;
+        for (int i = 0; i < sumX.length; i++) {
+            sumX[i] += xi;
+            if (i <= MAX_DEGREE) {
+                sumXY[i] += y * xi;
+            }
+            xi *= x;
         }
+        sumYY += y * y;
+        length++;
+        fitted = false;
+    }
 
-        OLSMultipleLinearRegression ols = new OLSMultipleLinearRegression();
-        // let the implementation include a constant in xVector if desired
-        ols.setNoIntercept(true);
-        // provide the data to the model
-        ols.newSampleData(y, xData);
-        // get our coefs
-        coef = MatrixUtils.createColumnRealMatrix(ols.estimateRegressionParameters());
+    public int getLength() {
+        return length;
     }
 
     /**
-     * create vector of values from x
-     * @param x
+     * The step of the last price (-1 before the first price).
      * @return
      */
-    private double[] xVector(double x) {
+    public int getStep() {
+        return step;
+    }
 
-        // {1, x, x*x, x*x*x, ...}
-        double[] poly = new double[degree + 1];
-        double xi = 1;
-        for (int i = 0; i <= degree; i++) {
-            poly[i] = xi;
-            xi *= x;
+    /**
+     * solve the normal equations for the coefs of the polynomial
+     */
+    private void fit() {
+        degree = getDegree(length);
+        int n = degree + 1;
+        if (length <= n) {
+            throw new IllegalStateException("not enough prices (" + length
+                    + ") for a polynomial of degree " + degree);
+        }
+        for (int i = 0; i < n; i++) {
+            perm[i] = i;
+            for (int j = 0; j < n; j++) {
+                lu[i][j] = sumX[i + j];
+            }
+        }
+
+        // LU decomposition with partial pivoting
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            for (int row = col + 1; row < n; row++) {
+                if (Math.abs(lu[row][col]) > Math.abs(lu[pivot][col])) {
+                    pivot = row;
+                }
+            }
+            double[] tmp = lu[col];
+            lu[col] = lu[pivot];
+            lu[pivot] = tmp;
+            int p = perm[col];
+            perm[col] = perm[pivot];
+            perm[pivot] = p;
+            for (int row = col + 1; row < n; row++) {
+                double f = lu[row][col] / lu[col][col];
+                lu[row][col] = f;
+                for (int j = col + 1; j < n; j++) {
+                    lu[row][j] -= f * lu[col][j];
+                }
+            }
+        }
+        solve(sumXY, coef);
+
+        // residual sum of squares from the sums: y'y - 2 c'X'y + c'X'Xc
+        double sse = sumYY;
+        for (int i = 0; i < n; i++) {
+            sse -= 2 * coef[i] * sumXY[i];
+            for (int j = 0; j < n; j++) {
+                sse += coef[i] * coef[j] * sumX[i + j];
+            }
+        }
+        variance = Math.max(0, sse) / (length - n);
+        fitted = true;
+    }
+
+    // solves the normal equations for the right hand side b
+    private void solve(double[] b, double[] x) {
+        int n = degree + 1;
+        for (int i = 0; i < n; i++) {
+            double y = b[perm[i]];
+            for (int j = 0; j < i; j++) {
+                y -= lu[i][j] * x[j];
+            }
+            x[i] = y;
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            double y = x[i];
+            for (int j = i + 1; j < n; j++) {
+                y -= lu[i][j] * x[j];
+            }
+            x[i] = y / lu[i][i];
         }
-        return poly;
     }
 
     /**
@@ -79,37 +212,144 @@ public class FlightPricePredictor {
      * @param x
      * @return
      */
-    private double predict(double x) {
+    public double predict(double x) {
 
-        // apply coefs to xVector
-        double yhat = coef.preMultiply(xVector(x))[0];
+        if (!fitted) {
+            fit();
+        }
+
+        // apply coefs to {1, x, x*x, x*x*x, ...}
+        double xs = x * SCALE;
+        double yhat = 0;
+        for (int i = degree; i >= 0; i--) {
+            yhat = yhat * xs + coef[i];
+        }
         return yhat;
     }
 
     /**
-     * Predict x at which we have min y among of the remaining y values. Upon it, return boolean if to buy now or should wait.
-     *
+     * Standard error of the predicted (mean) price at x.
+     * @param x
      * @return
      */
-    public boolean shouldBuy() {
+    public double getStandardError(double x) {
 
-        int l = 54 - length;
-        double[] y = new double[l];
-        int x = length;
+        if (!fitted) {
+            fit();
+        }
 
-        double yMin = 1000;
-        int xMin = 0;
+        double xs = x * SCALE;
+        double xi = 1;
+        for (int i = 0; i <= degree; i++) {
+            v[i] = xi;
+            xi *= xs;
+        }
+        solve(v, w);
+        double q = 0;
+        for (int i = 0; i <= degree; i++) {
+            q += v[i] * w[i];
+        }
+        return Math.sqrt(variance * Math.max(0, q));
+    }
+
+    /**
+     * Find x at which we have min y among of the remaining x values (from the step after the
+     * last price up to the horizon). The polynomial is only evaluated at the ends of the remaining steps
+     * and at the steps around the roots of its derivative, where the minimum must be.
+     *
+     * @return the x of the minimum, or -1 if no remaining y is predicted below 1000
+     */
+    public int findMinimum() {
 
-        for (int i = 0; i < l; i++) {
-            y[i] = predict(x);
-            if (y[i] < yMin) {
-                yMin = y[i];
-                xMin = x;
+        if (!fitted) {
+            fit();
+        }
+
+        minStep = -1;
+        minPrice = MAX_PRICE;
+        if (step + 1 > HORIZON - 1) {
+            return minStep;
+        }
+        consider(step + 1);
+        consider(HORIZON - 1);
+
+        if (degree == 2) {
+            // p' = c1 + 2 c2 x
+            if (coef[2] != 0) {
+                considerRoot(-coef[1] / (2 * coef[2]));
+            }
+        } else if (degree == 3) {
+            // p' = c1 + 2 c2 x + 3 c3 x^2
+            double a = 3 * coef[3];
+            double b = 2 * coef[2];
+            double c = coef[1];
+            if (a == 0) {
+                if (b != 0) {
+                    considerRoot(-c / b);
+                }
+            } else {
+                double d = b * b - 4 * a * c;
+                if (d >= 0) {
+                    // numerically stable roots q / a and c / q
+                    double q = -0.5 * (b + Math.copySign(Math.sqrt(d), b));
+                    considerRoot(q / a);
+                    if (q != 0) {
+                        considerRoot(c / q);
+                    }
+                }
             }
-            x ++;
         }
+        return minStep;
+    }
+
+    // considers the steps on both sides of a root (in scaled x) of the derivative
+    private void considerRoot(double xs) {
+        double x = xs / SCALE;
+        if (x > step + 1 && x < HORIZON - 1) {
+            consider((int) Math.floor(x));
+            consider((int) Math.ceil(x));
+        }
+    }
+
+    // the first (lowest) x wins among equal predictions
+    private void consider(int x) {
+        double y = predict(x);
+        if (y < minPrice || (y == minPrice && x < minStep)) {
+            minPrice = y;
+            minStep = x;
+        }
+    }
+
+    /**
+     * The predicted min price found by the last findMinimum() (1000 if none was found).
+     * @return
+     */
+    public double getMinimumPrice() {
+        return minPrice;
+    }
 
-        boolean should_buy = (xMin == length);
-        return should_buy;
+    /**
+     * Lower 95% confidence bound of the min price found by the last findMinimum().
+     * @return
+     */
+    public double getMinimumLowerBound() {
+        return minStep < 0 ? minPrice : minPrice - CONFIDENCE_Z * getStandardError(minStep);
+    }
+
+    /**
+     * Upper 95% confidence bound of the min price found by the last findMinimum().
+     * @return
+     */
+    public double getMinimumUpperBound() {
+        return minStep < 0 ? minPrice : minPrice + CONFIDENCE_Z * getStandardError(minStep);
+    }
+
+    /**
+     * Predict x at which we have min y among of the remaining y values. Upon it, return boolean if to buy now or should wait.
+     *
+     * @return
+     */
+    public boolean shouldBuy() {
+        return findMinimum() == step + 1;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,102 @@
+package se.sics.tac.aw;
+
+import java.util.Random;
+
+/**
+ * The TAC Classic flight price process. Each flight auction has a hidden
+ * parameter x, drawn uniformly from [-10, 30], that sets the trend of the
+ * price over the game. Every ten seconds the price changes by a random
+ * perturbation drawn uniformly from
+ * <pre>
+ *   [-10, x(t)]  if x(t) &gt; 0
+ *   [x(t), 10]   if x(t) &lt; 0
+ *   [-10, 10]    if x(t) = 0
+ * </pre>
+ * where <code>x(t) = 10 + (t / T) (x - 10)</code> moves from 10 at the
+ * start of the game to x at the end. The price starts uniformly in
+ * [250, 400] and is kept within [150, 800].
+ */
+public class FlightPriceProcess {
+
+    public static final float MIN_PRICE = 150f;
+    public static final float MAX_PRICE = 800f;
+    public static final float MIN_INITIAL_PRICE = 250f;
+    public static final float MAX_INITIAL_PRICE = 400f;
+    public static final float MIN_X = -10f;
+    public static final float MAX_X = 30f;
+
+    /**
+     * The time in milliseconds between price changes.
+     */
+    public static final int UPDATE_PERIOD = 10 * 1000;
+
+    private final float x;
+    private final long gameLength;
+    private float price;
+
+    /**
+     * Creates a flight with a random hidden parameter and initial price.
+     */
+    public FlightPriceProcess(Random random, long gameLength) {
+        this(MIN_X + random.nextFloat() * (MAX_X - MIN_X),
+                MIN_INITIAL_PRICE
+                        + random.nextFloat() * (MAX_INITIAL_PRICE - MIN_INITIAL_PRICE),
+                gameLength);
+    }
+
+    public FlightPriceProcess(float x, float initialPrice, long gameLength) {
+        this.x = x;
+        this.price = initialPrice;
+        this.gameLength = gameLength;
+    }
+
+    /**
+     * Returns the hidden parameter of this flight.
+     */
+    public float getX() {
+        return x;
+    }
+
+    public float getPrice() {
+        return price;
+    }
+
+    /**
+     * Returns the trend x(t) at the specified game time for a flight with
+     * hidden parameter x.
+     */
+    public static float getTrend(float x, long gameTime, long gameLength) {
+        return 10f + ((float) gameTime / gameLength) * (x - 10f);
+    }
+
+    /**
+     * Returns the lower bound of the price change when the trend is xt.
+     */
+    public static float getMinChange(float xt) {
+        return xt < 0f ? xt : -10f;
+    }
+
+    /**
+     * Returns the upper bound of the price change when the trend is xt.
+     */
+    public static float getMaxChange(float xt) {
+        return xt > 0f ? xt : 10f;
+    }
+
+    /**
+     * Changes the price as at the specified game time and returns the new
+     * price.
+     */
+    public float step(long gameTime, Random random) {
+        float xt = getTrend(x, gameTime, gameLength);
+        float low = getMinChange(xt);
+        float high = getMaxChange(xt);
+        float p = price + low + random.nextFloat() * (high - low);
+        price = p < MIN_PRICE ? MIN_PRICE : (p > MAX_PRICE ? MAX_PRICE : p);
+        return price;
+    }
+
+    public String toString() {
+        return "FlightPriceProcess[" + x + ',' + price + ']';
+    }
+}
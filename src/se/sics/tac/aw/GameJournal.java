@@ -0,0 +1,459 @@
+package se.sics.tac.aw;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only journal of the state changes in one game, stored in a
+ * memory mapped file. The agent records each quote, bid, transaction,
+ * endowment and allocation as it is applied, and a restarted agent folds
+ * the journal back into its state instead of asking the server for it.
+ * <p>
+ * Records are written directly into the mapped file, so they survive a
+ * crash of the agent process (but not necessarily of the machine) without
+ * any flushing. Each record is
+ * <pre>
+ *   int length, byte type, byte auction, payload
+ * </pre>
+ * where the length is written last. A record that was being written when
+ * the agent died therefore has length 0 and ends the journal.
+ * <p>
+ * The header identifies the game by its id, the server (host:port) and
+ * the server time the game started, since game ids alone are reused by
+ * restarted servers:
+ * <pre>
+ *   int magic, int gameID, long gameStartTime, int length, byte server[length]
+ * </pre>
+ * A journal that does not belong to the game being played, or whose game
+ * has ended, is cleared before it is used again.
+ * <p>
+ * Transactions are only valid up to the last recorded transaction
+ * watermark (the highest transaction id whose transaction has been
+ * applied). Transactions after it are skipped on replay because the
+ * server will report them again.
+ */
+public class GameJournal {
+
+    private static final Logger log = Logger.getLogger(GameJournal.class.getName());
+
+    public static final byte QUOTE = 1;
+    public static final byte TRANSACTION = 2;
+    public static final byte ENDOWMENT = 3;
+    public static final byte OWN = 4;
+    public static final byte ALLOCATION = 5;
+    public static final byte BID = 6;
+    public static final byte BID_REMOVED = 7;
+    public static final byte TRANS_WATERMARK = 8;
+    public static final byte GAME_END = 9;
+
+    private static final int MAGIC = 0x54414a32; // "TAJ2"
+    // Magic, game id, game start time and the length of the server
+    private static final int HEADER_SIZE = 20;
+    private static final int INITIAL_SIZE = 64 * 1024;
+    // Length, type and auction
+    private static final int RECORD_HEADER = 6;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Receives the records of a journal in the order they were written.
+     */
+    public interface Listener {
+
+        void quote(int auction, float askPrice, float bidPrice, int hqw,
+                   int status, long lastQuoteTime, long nextQuoteTime);
+
+        /**
+         * A transaction (only the ones up to the last watermark).
+         */
+        void transaction(int auction, int quantity, float price);
+
+        void endowment(int auction, int quantity);
+
+        void own(int auction, int own);
+
+        void allocation(int auction, int allocation);
+
+        void bid(int auction, int bidID, int processingState,
+                 String bidString, String bidHash);
+
+        void bidRemoved(int auction);
+
+        void transWatermark(int earliestTransID);
+    }
+
+    private final File file;
+    private final int gameID;
+    // The game the records belong to (null server if none)
+    private String server;
+    private long gameStartTime = -1L;
+    // The first record
+    private int start = HEADER_SIZE;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int records = 0;
+    private boolean ended = false;
+    private int lastWatermark = -1;
+
+    private GameJournal(File file, int gameID) {
+        this.file = file;
+        this.gameID = gameID;
+    }
+
+    /**
+     * Opens the journal for the game, creating it if it does not exist.
+     * New records are appended after the existing ones, so the caller must
+     * check that they belong to the game (see {@link #getServer} and
+     * {@link #getGameStartTime}) and otherwise {@link #clear} the journal.
+     */
+    public static GameJournal open(File file, int gameID) throws IOException {
+        GameJournal journal = new GameJournal(file, gameID);
+        journal.map();
+        return journal;
+    }
+
+    private void map() throws IOException {
+        boolean exists = file.exists() && file.length() >= HEADER_SIZE;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = Math.max(channel.size(), INITIAL_SIZE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        int serverLength = exists ? buffer.getInt(16) : -1;
+        if (exists && buffer.getInt(0) == MAGIC && buffer.getInt(4) == gameID
+                && serverLength >= 0
+                && HEADER_SIZE + serverLength <= buffer.limit()) {
+            gameStartTime = buffer.getLong(8);
+            byte[] data = new byte[serverLength];
+            buffer.position(HEADER_SIZE);
+            buffer.get(data);
+            server = new String(data, UTF8);
+            start = HEADER_SIZE + serverLength;
+
+            // Continue after the last complete record
+            int pos = start;
+            int len;
+            while (pos + RECORD_HEADER <= buffer.limit()
+                    && (len = buffer.getInt(pos)) >= RECORD_HEADER
+                    && pos + len <= buffer.limit()) {
+                if (buffer.get(pos + 4) == GAME_END) {
+                    ended = true;
+                } else if (buffer.get(pos + 4) == TRANS_WATERMARK) {
+                    lastWatermark = buffer.getInt(pos + RECORD_HEADER);
+                }
+                pos += len;
+                records++;
+            }
+            buffer.position(pos);
+            // Clear anything left by an incomplete record
+            for (int i = pos, n = Math.min(pos + 4, buffer.limit()); i < n; i++) {
+                buffer.put(i, (byte) 0);
+            }
+        } else {
+            writeHeader();
+        }
+    }
+
+    private void writeHeader() {
+        byte[] data = toBytes(server);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, gameID);
+        buffer.putLong(8, gameStartTime);
+        buffer.putInt(16, data.length);
+        buffer.position(HEADER_SIZE);
+        buffer.put(data);
+        start = buffer.position();
+        buffer.putInt(start, 0);
+    }
+
+    /**
+     * Discards all records and makes the journal belong to the game
+     * started at the specified server time on the specified server.
+     */
+    public synchronized void clear(String server, long gameStartTime)
+            throws IOException {
+        if (buffer == null) {
+            throw new IOException("journal " + file + " is closed");
+        }
+        byte[] data = toBytes(server);
+        if (HEADER_SIZE + data.length + 4 > buffer.limit()) {
+            throw new IOException("server name too long for journal " + file);
+        }
+        this.server = server;
+        this.gameStartTime = gameStartTime;
+        records = 0;
+        ended = false;
+        lastWatermark = -1;
+        // The old records after the first one are never read again: each
+        // record clears the length of the one following it
+        writeHeader();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getGameID() {
+        return gameID;
+    }
+
+    /**
+     * Returns the server (host:port) of the game the records belong to,
+     * or null if the journal has not been used.
+     */
+    public synchronized String getServer() {
+        return server;
+    }
+
+    /**
+     * Returns the server time the game of the records started, or -1 if
+     * the journal has not been used.
+     */
+    public synchronized long getGameStartTime() {
+        return gameStartTime;
+    }
+
+    /**
+     * Returns the number of records in the journal.
+     */
+    public synchronized int getRecordCount() {
+        return records;
+    }
+
+    /**
+     * Returns true if the end of the game has been recorded.
+     */
+    public synchronized boolean isEnded() {
+        return ended;
+    }
+
+    public synchronized void quote(Quote quote) {
+        int pos = begin(QUOTE, quote.getAuction(), 29);
+        if (pos >= 0) {
+            buffer.putFloat(quote.getAskPrice());
+            buffer.putFloat(quote.getBidPrice());
+            buffer.putInt(quote.getHQW());
+            buffer.put((byte) quote.getAuctionStatus());
+            buffer.putLong(quote.getLastQuoteTime());
+            buffer.putLong(quote.getNextQuoteTime());
+            end(pos);
+        }
+    }
+
+    public synchronized void transaction(int auction, int quantity, float price) {
+        int pos = begin(TRANSACTION, auction, 8);
+        if (pos >= 0) {
+            buffer.putInt(quantity);
+            buffer.putFloat(price);
+            end(pos);
+        }
+    }
+
+    public synchronized void endowment(int auction, int quantity) {
+        putInt(ENDOWMENT, auction, quantity);
+    }
+
+    public synchronized void own(int auction, int own) {
+        putInt(OWN, auction, own);
+    }
+
+    public synchronized void allocation(int auction, int allocation) {
+        putInt(ALLOCATION, auction, allocation);
+    }
+
+    /**
+     * Records the bid as the active bid in its auction.
+     */
+    public synchronized void bid(Bid bid) {
+        byte[] bidString = toBytes(bid.getBidString());
+        byte[] bidHash = toBytes(bid.getBidHash());
+        int pos = begin(BID, bid.getAuction(), 13 + bidString.length + bidHash.length);
+        if (pos >= 0) {
+            buffer.putInt(bid.getID());
+            buffer.put((byte) bid.getProcessingState());
+            buffer.putInt(bidString.length);
+            buffer.put(bidString);
+            buffer.putInt(bidHash.length);
+            buffer.put(bidHash);
+            end(pos);
+        }
+    }
+
+    public synchronized void bidRemoved(int auction) {
+        int pos = begin(BID_REMOVED, auction, 0);
+        if (pos >= 0) {
+            end(pos);
+        }
+    }
+
+    /**
+     * Records that all transactions up to the specified id have been
+     * applied. Nothing is recorded if the watermark has not moved.
+     */
+    public synchronized void transWatermark(int earliestTransID) {
+        if (earliestTransID != lastWatermark) {
+            putInt(TRANS_WATERMARK, 0, earliestTransID);
+            lastWatermark = earliestTransID;
+        }
+    }
+
+    public synchronized void gameEnded() {
+        int pos = begin(GAME_END, 0, 0);
+        if (pos >= 0) {
+            end(pos);
+            ended = true;
+        }
+    }
+
+    private void putInt(byte type, int auction, int value) {
+        int pos = begin(type, auction, 4);
+        if (pos >= 0) {
+            buffer.putInt(value);
+            end(pos);
+        }
+    }
+
+    // Returns the start of the record or -1 if the journal is closed
+    private int begin(byte type, int auction, int size) {
+        if (buffer == null) {
+            return -1;
+        }
+        // Leave room for the length of the next record to stay zero
+        int needed = RECORD_HEADER + size + 4;
+        if (buffer.remaining() < needed) {
+            try {
+                int pos = buffer.position();
+                long newSize = Math.max(buffer.capacity() * 2L, pos + needed);
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+                buffer.position(pos);
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "could not extend journal " + file
+                        + ", journaling stopped", e);
+                close();
+                return -1;
+            }
+        }
+        int pos = buffer.position();
+        buffer.position(pos + 4);
+        buffer.put(type);
+        buffer.put((byte) auction);
+        return pos;
+    }
+
+    private void end(int pos) {
+        // The next record starts with length 0 (the space is reserved by
+        // begin) so that nothing after this record is read as a record
+        buffer.putInt(buffer.position(), 0);
+        // Writing the length last commits the record
+        buffer.putInt(pos, buffer.position() - pos);
+        records++;
+    }
+
+    private static byte[] toBytes(String text) {
+        return text == null ? new byte[0] : text.getBytes(UTF8);
+    }
+
+    private String getString() {
+        int len = buffer.getInt();
+        if (len == 0) {
+            return null;
+        }
+        byte[] data = new byte[len];
+        buffer.get(data);
+        return new String(data, UTF8);
+    }
+
+    /**
+     * Delivers all records to the listener in the order they were written,
+     * except transactions after the last transaction watermark.
+     */
+    public synchronized void replay(Listener listener) {
+        if (buffer == null) {
+            return;
+        }
+        int end = buffer.position();
+        // Transactions after the last watermark will be reported again by
+        // the server and must not be applied twice
+        int watermarkPos = -1;
+        for (int pos = start; pos < end; pos += buffer.getInt(pos)) {
+            if (buffer.get(pos + 4) == TRANS_WATERMARK) {
+                watermarkPos = pos;
+            }
+        }
+
+        try {
+            for (int pos = start; pos < end; pos += buffer.getInt(pos)) {
+                buffer.position(pos + 4);
+                byte type = buffer.get();
+                int auction = buffer.get();
+                switch (type) {
+                    case QUOTE:
+                        listener.quote(auction, buffer.getFloat(), buffer.getFloat(),
+                                buffer.getInt(), buffer.get(), buffer.getLong(),
+                                buffer.getLong());
+                        break;
+                    case TRANSACTION:
+                        if (pos < watermarkPos) {
+                            listener.transaction(auction, buffer.getInt(),
+                                    buffer.getFloat());
+                        }
+                        break;
+                    case ENDOWMENT:
+                        listener.endowment(auction, buffer.getInt());
+                        break;
+                    case OWN:
+                        listener.own(auction, buffer.getInt());
+                        break;
+                    case ALLOCATION:
+                        listener.allocation(auction, buffer.getInt());
+                        break;
+                    case BID: {
+                        int bidID = buffer.getInt();
+                        int state = buffer.get();
+                        String bidString = getString();
+                        String bidHash = getString();
+                        listener.bid(auction, bidID, state, bidString, bidHash);
+                        break;
+                    }
+                    case BID_REMOVED:
+                        listener.bidRemoved(auction);
+                        break;
+                    case TRANS_WATERMARK:
+                        listener.transWatermark(buffer.getInt());
+                        break;
+                    case GAME_END:
+                        break;
+                    default:
+                        log.warning("unknown record type " + type + " in journal " + file);
+                        break;
+                }
+            }
+        } finally {
+            buffer.position(end);
+        }
+    }
+
+    /**
+     * Closes the journal. The records remain in the file.
+     */
+    public synchronized void close() {
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "could not close journal " + file, e);
+            }
+            channel = null;
+        }
+    }
+
+    public String toString() {
+        return "GameJournal[" + gameID + ',' + file + ',' + getRecordCount() + " records]";
+    }
+}
@@ -134,10 +134,8 @@ import com.sun.org.apache.xalan.internal.extensions.ExpressionContext;
 import se.sics.tac.util.ArgEnumerator;
 
 import javax.rmi.CORBA.Util;
-import javax.swing.*;
-import java.awt.*;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -172,6 +170,11 @@ public class PostTraumaticAgent extends AgentImpl {
     private static String EntertainmentLogPrefix = "+++++++++++++ ";
     private static String LogPrefix = "              ";
 
+    /**
+     * Time before each hotel auction closes to place the final hotel bids (ms).
+     */
+    private static final int HotelFinalBidLead = 1500;
+
     // endregion Private Constants
 
     // region Private Variables
@@ -190,15 +193,39 @@ public class PostTraumaticAgent extends AgentImpl {
      * List of prices, each item in the list contains 8 prices for 8 flight auctions.
      * The list will eventually contains 6*9 = 54 items which means prices vary each 10 seconds for 9 mins.
      */
-    private ArrayList<ArrayList<PricePoint>> flightPrices;
+    private PriceSeries[] flightPrices;
+    /**
+     * Price predictors for the 8 flight auctions, fed with each new flight price.
+     */
+    private FlightPricePredictor[] flightPredictors;
+    /**
+     * The price update (step) of the first price collected in each flight auction.
+     */
+    private int[] flightFirstSteps;
+    /**
+     * Bayesian price models for the 8 flight auctions (only when the flight model is bayesian).
+     */
+    private FlightPriceModel[] flightModels;
+    /**
+     * If the flight auctions are decided by the bayesian flight model instead of the polynomial predictor.
+     */
+    private boolean useFlightModel;
+    /**
+     * Precomputed flight decisions (only when the flight model is table), shared by all games.
+     */
+    private FlightDecisionTable flightTable;
+    /**
+     * If the flight decision table is used in the current game (the table was generated for its game length).
+     */
+    private boolean useFlightTable;
     /**
      * Array of prices for 8 auctions of the hotels. Each item in the array contains all the prices asked in this auction.
      */
-    private ArrayList<ArrayList<PricePoint>> hotelPrices;
+    private PriceSeries[] hotelPrices;
     /**
-     * Array of prices for 12 auctions of the . Each item in the array contains all the prices asked in this auction.
+     * Array of prices for 12 auctions of the entertainment. Each item in the array contains all the ask/bid prices in this auction.
      */
-    private ArrayList<ArrayList<DoublePricePoint>> entertainmentPrices;
+    private PriceSeries[] entertainmentPrices;
     /**
      * Client preferences.
      */
@@ -216,13 +243,13 @@ public class PostTraumaticAgent extends AgentImpl {
      */
     private boolean gameInitialized;
     /**
-     * Timer to call the last-second bidding strategy for the hotel auction.
+     * Task to call the last-second bidding strategy for the hotel auction.
      */
-    private Timer hotelAuctionsTimer;
+    private StrategyScheduler.ScheduledTask hotelAuctionsTask;
     /**
-     * Timer to continuously all the entertainment auctions processor.
+     * Task to continuously call all the entertainment auctions processor.
      */
-    private Timer entertainmentAuctionsTimer;
+    private StrategyScheduler.ScheduledTask entertainmentAuctionsTask;
     /**
      * List of allocations in the valid entertainment bids the agents submits and are still waiting for clearing on the server.
      */
@@ -289,6 +316,28 @@ public class PostTraumaticAgent extends AgentImpl {
      */
     protected void init(ArgEnumerator args) {
 
+        String flightModel = args.getArgument("-flightModel", agent.getConfig("flightModel", "polynomial"));
+        if ("bayesian".equals(flightModel)) {
+            useFlightModel = true;
+        } else if ("table".equals(flightModel)) {
+            String file = args.getArgument("-flightTable", agent.getConfig("flightTable", "flights.tab"));
+            try {
+                flightTable = FlightDecisionTable.load(new File(file));
+                log.fine(LogPrefix + "using " + flightTable + " from " + file);
+            } catch (IOException e) {
+                log.log(Level.SEVERE, LogPrefix + "could not load flight decision table " + file + " (using polynomial)", e);
+            }
+        } else if (!"polynomial".equals(flightModel)) {
+            log.warning(LogPrefix + "unknown flight model " + flightModel + " (using polynomial)");
+        }
+    }
+
+    protected String getUsage() {
+
+        return "    -flightModel <model>      decide when to buy flights by the 'polynomial' (default)\n"
+                + "                              or 'bayesian' flight price model, or by the\n"
+                + "                              precomputed decisions of a 'table'\n"
+                + "    -flightTable <file>       set the flight decision table to use\n";
     }
 
     public void gameStarted() {
@@ -322,7 +371,8 @@ public class PostTraumaticAgent extends AgentImpl {
 
     public void gameStopped() {
 
-        entertainmentAuctionsTimer.stop();
+        hotelAuctionsTask.cancel();
+        entertainmentAuctionsTask.cancel();
         flightPrintPrices();
         hotelPrintPrices();
         entertainmentPrintPrices();
@@ -377,7 +427,7 @@ public class PostTraumaticAgent extends AgentImpl {
             case TACAgent.CAT_FLIGHT:
                 // this needs to be called in the same sequence
                 flightPricesCollector();
-                if (!isEstimatedDemandCalculated && flightPrices.get(0).size() < 8) {
+                if (!isEstimatedDemandCalculated && flightPrices[0].size() < 8) {
                     initializeEstimatedDemand();
                     isEstimatedDemandCalculated = true;
                 }
@@ -498,20 +548,30 @@ public class PostTraumaticAgent extends AgentImpl {
     private void initializeVariables() {
 
         // initialize arrays to collect prices of flight/hotel/entertainment auctions
+        // room for a quote each second of the game in each auction
+        int capacity = Math.max(agent.getGameLength() / 1000, 1);
         int count = 8;
-        flightPrices = new ArrayList<ArrayList<PricePoint>>(count);
+        useFlightTable = flightTable != null && isFlightTableValid(agent.getGameLength());
+        flightPrices = new PriceSeries[count];
+        flightPredictors = new FlightPricePredictor[count];
+        flightFirstSteps = new int[count];
+        flightModels = useFlightModel ? new FlightPriceModel[count] : null;
         for (int i = 0; i < count; i++) {
-            flightPrices.add(new ArrayList<PricePoint>());
+            flightPrices[i] = new PriceSeries(capacity);
+            flightPredictors[i] = new FlightPricePredictor();
+            if (useFlightModel) {
+                flightModels[i] = new FlightPriceModel(agent.getGameLength());
+            }
         }
         count = 8;
-        hotelPrices = new ArrayList<ArrayList<PricePoint>>(count);
+        hotelPrices = new PriceSeries[count];
         for (int i = 0; i < count; i++) {
-            hotelPrices.add(new ArrayList<PricePoint>());
+            hotelPrices[i] = new PriceSeries(capacity);
         }
         count = 12;
-        entertainmentPrices = new ArrayList<ArrayList<DoublePricePoint>>(count);
+        entertainmentPrices = new PriceSeries[count];
         for (int i = 0; i < count; i++) {
-            entertainmentPrices.add(new ArrayList<DoublePricePoint>());
+            entertainmentPrices[i] = new PriceSeries(capacity, 2);
         }
         count = 8;
         clientPreferredEntertainmentAuctions = new ArrayList<ArrayList<Integer>>(count);
@@ -540,28 +600,24 @@ public class PostTraumaticAgent extends AgentImpl {
     }
 
     /**
-     * Initialize the timer to monitor hotel auction. This timer calls
-     * the last-second bidding strategy for a hotels auctions just second(s) before close.
+     * Schedule the last-second bidding strategy for the hotels auctions
+     * just before each hotel auction closes (in server game time).
      */
     private void initializeHotelAuctionsTimer() {
 
-        // float averageResponseTime = TACMessage.getAverageResponseTime();
+        // float averageResponseTime = agent.getRuntime().getAverageResponseTime();
 
-        int timeInterval = 2 * 1000;
-        ActionListener actionListener = (ActionEvent event) -> {
-            hotelAuctionsTimerTick();
-        };
-        hotelAuctionsTimer = new Timer(timeInterval, actionListener);
-        hotelAuctionsTimer.start();
+        hotelAuctionsTask = agent.getStrategyScheduler().scheduleBeforeHotelClose(
+                HotelFinalBidLead, "hotelFinalBids", this::hotelAuctionsTimerTick);
     }
 
     /**
-     * Initialize the timer to continuously call the entertainment auction processor.
+     * Schedule the entertainment auction processor to be called continuously.
      */
     private void initializeEntertainmentAuctionsTimer() {
 
         int timeInterval = 5 * 1000;
-        ActionListener actionListener = (ActionEvent event) -> {
+        StrategyScheduler.Callback callback = (long gameTime, long lateness) -> {
             // if entertainment auctions are ready, call the timer ticker
             // if not, update the readiness status
             if (areEntertainmentAuctionsInitialized) {
@@ -579,8 +635,8 @@ public class PostTraumaticAgent extends AgentImpl {
                 }
             }
         };
-        entertainmentAuctionsTimer = new Timer(timeInterval, actionListener);
-        entertainmentAuctionsTimer.start();
+        entertainmentAuctionsTask = agent.getStrategyScheduler().scheduleAtFixedRate(
+                agent.getGameTime() + timeInterval, timeInterval, "entertainment", callback);
     }
 
     /**
@@ -591,8 +647,8 @@ public class PostTraumaticAgent extends AgentImpl {
         float[] initialInFlightPrices = new float[4];
         float[] initialOutFlightPrices = new float[4];
         for (int i = 0; i < 4; i++) {
-            initialInFlightPrices[i] = flightPrices.get(i).get(0).value;
-            initialOutFlightPrices[i] = flightPrices.get(i + 4).get(0).value;
+            initialInFlightPrices[i] = flightPrices[i].getValue(0);
+            initialOutFlightPrices[i] = flightPrices[i + 4].getValue(0);
         }
 
         DemandEstimator demandEstimator = new DemandEstimator(initialInFlightPrices, initialOutFlightPrices);
@@ -641,16 +697,18 @@ public class PostTraumaticAgent extends AgentImpl {
         // get all the owned flight tickets
         // practically, own hear means agent.getOwn() + agent.getAllocation()
         // because we might have added flight allocations in a previous flightAuctionProcessing
+        // read all owns from one snapshot so they agree with each other
+        AuctionStateStore.Snapshot state = agent.getAuctionState();
         int[] flightOwns = new int[8];
         for (int i = 0; i < 8; i++) {
-            flightOwns[i] = agent.getOwn(i) + agent.getAllocation(i);
+            flightOwns[i] = state.getOwn(i) + state.getAllocation(i);
         }
         log.fine(FlightLogPrefix + "Flight Owns: " + Arrays.toString(flightOwns));
 
         // the already owned hotel rooms
         int[] hotelOwns = new int[8];
         for (int i = 0; i < 8; i++) {
-            hotelOwns[i] = agent.getOwn(i + 8);
+            hotelOwns[i] = state.getOwn(i + 8);
         }
         log.fine(FlightLogPrefix + "Hotel Owns: " + Arrays.toString(hotelOwns));
 
@@ -698,22 +756,16 @@ public class PostTraumaticAgent extends AgentImpl {
                     log.fine(FlightLogPrefix + "This client has not complete stay but he has first and last hotel days reserved: " + (i + 1));
                     log.fine(FlightLogPrefix + "First/Last Hotel Days: " + firstHotelDay + ", " + lastHotelDay);
 
-                    FlightPricePredictor predictor;
-                    double[] prices;
                     boolean firstDayShouldBuy;
                     boolean lastDayShouldBuy;
 
                     int firstDayAuction = agent.getAuctionFor(TACAgent.CAT_FLIGHT, TACAgent.TYPE_INFLIGHT, firstHotelDay);
                     log.fine(FlightLogPrefix + "First-Day Flight Auction: " + agent.getAuctionTypeAsString(firstDayAuction));
-                    prices = listToArray(flightPrices.get(firstDayAuction));
-                    predictor = new FlightPricePredictor(prices);
-                    firstDayShouldBuy = predictor.shouldBuy();
+                    firstDayShouldBuy = flightShouldBuy(firstDayAuction);
 
                     int lastDayAuction = agent.getAuctionFor(TACAgent.CAT_FLIGHT, TACAgent.TYPE_OUTFLIGHT, lastHotelDay + 1);
                     log.fine(FlightLogPrefix + "Last-Day Flight Auction: " + agent.getAuctionTypeAsString(lastDayAuction));
-                    prices = listToArray(flightPrices.get(lastDayAuction));
-                    predictor = new FlightPricePredictor(prices);
-                    lastDayShouldBuy = predictor.shouldBuy();
+                    lastDayShouldBuy = flightShouldBuy(lastDayAuction);
 
                     // if both same recommendation, then consider only the cheapest of them
                     // else, consider the one recommended to buy
@@ -819,15 +871,17 @@ public class PostTraumaticAgent extends AgentImpl {
         // get all the owned hotel rooms
         // piratically, own hear means agent.getOwn() + agent.getAllocation()
         // because we might have added flight allocations in a previous flightAuctionProcessing
+        // read all owns from one snapshot so they agree with each other
+        AuctionStateStore.Snapshot state = agent.getAuctionState();
         int[] flightOwns = new int[8];
         for (int i = 0; i < 8; i++) {
-            flightOwns[i] = agent.getOwn(i) + agent.getAllocation(i);
+            flightOwns[i] = state.getOwn(i) + state.getAllocation(i);
         }
 
         // the already owned hotel rooms
         int[] hotelOwns = new int[8];
         for (int i = 0; i < 8; i++) {
-            hotelOwns[i] = agent.getOwn(i + 8);
+            hotelOwns[i] = state.getOwn(i + 8);
         }
 
         // endregion Collect Data
@@ -1104,8 +1158,6 @@ public class PostTraumaticAgent extends AgentImpl {
             // after 10 seconds, the method will be invoked
             // and the whole step keeps working
 
-            FlightPricePredictor predictor;
-            double[] prices;
             boolean shouldBuy;
 
             // loop on all the flight auctions
@@ -1117,9 +1169,7 @@ public class PostTraumaticAgent extends AgentImpl {
                 if (allocation > 0) {
 
                     // check if to bid now or later
-                    prices = listToArray(flightPrices.get(i));
-                    predictor = new FlightPricePredictor(prices);
-                    shouldBuy = predictor.shouldBuy();
+                    shouldBuy = flightShouldBuy(i);
                     if (shouldBuy) {
                         flightSendBid(i);
                     }
@@ -1162,10 +1212,87 @@ public class PostTraumaticAgent extends AgentImpl {
         Quote quote;
         for (int i = 0; i < 8; i++) {
             quote = agent.getQuote(i);
+            // one price per price update, at the update it was quoted at
+            int step = flightStep(quote);
+            if (step <= flightPredictors[i].getStep()) {
+                continue;
+            }
             float value = quote.getAskPrice();
             long time = agent.getGameTime();
-            flightPrices.get(i).add(new PricePoint(value, time));
+            if (flightPrices[i].size() == 0) {
+                flightFirstSteps[i] = step;
+            }
+            flightPrices[i].add(time, value);
+            flightPredictors[i].add(step, value);
+            if (flightModels != null) {
+                flightModels[i].add(flightQuoteTime(quote), value);
+            }
+        }
+    }
+
+    /**
+     * The game time of a flight quote. The flight prices change at fixed times since the start of the game.
+     */
+    private long flightQuoteTime(Quote quote) {
+
+        return quote.getLastQuoteTime() > 0 ? quote.getLastQuoteTime() - agent.getGameStartTime() : agent.getGameTime();
+    }
+
+    /**
+     * The price update of a flight quote (the number of price updates since the start of the game).
+     */
+    private int flightStep(Quote quote) {
+
+        long time = flightQuoteTime(quote);
+        int step = (int) ((time + FlightPriceProcess.UPDATE_PERIOD / 2) / FlightPriceProcess.UPDATE_PERIOD);
+        return Math.max(step, 0);
+    }
+
+    /**
+     * Check that the flight decision table was generated for games of the specified length,
+     * the decisions of another game length are indexed by the wrong price updates.
+     */
+    private boolean isFlightTableValid(long gameLength) {
+
+        int steps = (int) ((gameLength - 1) / FlightPriceProcess.UPDATE_PERIOD);
+        if (flightTable.getGameLength() != gameLength || flightTable.getSteps() != steps) {
+            log.warning(LogPrefix + flightTable + " was generated for games of " + flightTable.getGameLength()
+                    + " ms, not " + gameLength + " ms (using polynomial)");
+            return false;
         }
+        return true;
+    }
+
+    /**
+     * Check if to buy the tickets of a flight auction now or to wait for a lower price,
+     * according to the chosen flight price model.
+     */
+    private boolean flightShouldBuy(int auction) {
+
+        // the trend is measured from the price at step 0, unknown if the collection started later
+        // (after a reconnect or journal recovery)
+        if (useFlightTable && flightFirstSteps[auction] == 0) {
+            Quote quote = agent.getQuote(auction);
+            int step = flightTable.getStep(flightQuoteTime(quote));
+            float savings = flightTable.getSavings(step, quote.getAskPrice(), flightPrices[auction].getValue(0));
+            log.fine(FlightLogPrefix + agent.getAuctionTypeAsString(auction) + ": step " + step
+                    + ", expected savings of waiting " + savings);
+            // states never simulated are left to the polynomial predictor
+            if (!Float.isNaN(savings)) {
+                return savings <= 0;
+            }
+        }
+
+        if (flightModels == null) {
+            return flightPredictors[auction].shouldBuy();
+        }
+
+        FlightPriceModel model = flightModels[auction];
+        boolean shouldBuy = model.shouldBuy();
+        log.fine(FlightLogPrefix + agent.getAuctionTypeAsString(auction) + ": expected x " + (float) model.getExpectedX()
+                + ", expected min price " + (float) model.getExpectedMinPrice()
+                + ", rise probability " + (float) model.getRiseProbability() + ", buy " + shouldBuy);
+        return shouldBuy;
     }
 
     /**
@@ -1173,17 +1300,16 @@ public class PostTraumaticAgent extends AgentImpl {
      */
     private void flightPrintPrices() {
 
-        ArrayList<PricePoint> _prices;
-        PricePoint _price;
+        PriceSeries _prices;
 
         log.fine(LogPrefix + "Start Printing All Flight Prices");
-        for (int i = 0; i < flightPrices.size(); i++) {
+        for (int i = 0; i < flightPrices.length; i++) {
             log.fine(LogPrefix + "Printing (time, price) for " + agent.getAuctionTypeAsString(i) + ":");
-            _prices = flightPrices.get(i);
+            _prices = flightPrices[i];
             for (int j = 0; j < _prices.size(); j++) {
-                _price = _prices.get(j);
-                log.fine(LogPrefix + _price.seconds + ", " + _price.value);
+                log.fine(LogPrefix + _prices.getTime(j) + ", " + _prices.getValue(j));
             }
+            printPricesSummary(_prices);
         }
         log.fine(LogPrefix + "Finish Printing All Flight Prices");
     }
@@ -1215,7 +1341,7 @@ public class PostTraumaticAgent extends AgentImpl {
             quote = agent.getQuote(i);
             own = agent.getOwn(i);
 
-            initialPrices[i] = flightPrices.get(i).get(0).value;
+            initialPrices[i] = flightPrices[i].getValue(0);
             buyingPrices[i] = buyBidPrices[i];
             finalPrices[i] = quote.getAskPrice();
             profits[i] = initialPrices[i] - buyingPrices[i];
@@ -1346,25 +1472,19 @@ public class PostTraumaticAgent extends AgentImpl {
 
     /**
      * Call the last-second bidding strategy at the end of the 1-min period of a hotel auction.
+     * The scheduler calls this just before each hotel auction closes.
      */
-    private void hotelAuctionsTimerTick() {
+    private void hotelAuctionsTimerTick(long gameTime, long lateness) {
 
         final int second = 1000;
-        final int minute = second * 60;
         long gameLeftMilli = agent.getGameTimeLeft();
         long gameLeftSec = gameLeftMilli / second;
 
-        // stop timer after 8 minutes the last auction is closed
-        if (gameLeftSec < 58) {
-            hotelAuctionsTimer.stop();
-            return;
-        }
-
-        double auctionLeftSec = (gameLeftMilli % minute) / second;
-        if (auctionLeftSec <= 2 && hotelBiddingMode == HotelAuctionBiddingMode.Normal) {
+        if (hotelBiddingMode == HotelAuctionBiddingMode.Normal) {
 
             log.fine(HotelLogPrefix + "Left seconds till    game close (sec): " + gameLeftSec);
-            log.fine(HotelLogPrefix + "                  auction close (sec): " + auctionLeftSec);
+            log.fine(HotelLogPrefix + "                  auction close (ms): "
+                    + (HotelFinalBidLead - lateness) + " (late " + lateness + " ms)");
             log.fine(HotelLogPrefix + "Fire you final weapons, your final auction bid !");
 
             // raise up the flag of last-second strategy
@@ -1727,7 +1847,7 @@ public class PostTraumaticAgent extends AgentImpl {
     private int hotelBidMargin(int auction) {
 
         int margin = 1;
-        ArrayList<PricePoint> prices = hotelPrices.get(auction - 8);
+        PriceSeries prices = hotelPrices[auction - 8];
         int length = prices.size();
         int offset = 0;
 
@@ -1754,21 +1874,12 @@ public class PostTraumaticAgent extends AgentImpl {
             return margin;
         }
 
-        long[] x = new long[length];
-        double[] y = new double[length];
         int predictedPrice;
         int bidPrice;
-        PricePoint price;
-
-        for (int i = 0; i < length; i++) {
-            price = prices.get(i);
-            x[i] = price.seconds;
-            y[i] = price.value;
-        }
 
         long agentTime = agent.getGameTime();
         long closeTime = ((agentTime / (1000 * 60)) + (agentTime % (1000 * 60) == 0 ? 0 : 1)) * 1000 * 60;
-        HotelPricePredictor predictor = new HotelPricePredictor(x, y);
+        HotelPricePredictor predictor = new HotelPricePredictor(prices.window(length));
         predictedPrice = predictor.predict(closeTime);
 
         // make sure margin will increase the bid price
@@ -1802,7 +1913,7 @@ public class PostTraumaticAgent extends AgentImpl {
         long time = agent.getGameTime();
 
         int auction = quote.getAuction() - 8;
-        hotelPrices.get(auction).add(new PricePoint(value, time));
+        hotelPrices[auction].add(time, value);
     }
 
     /**
@@ -1810,17 +1921,16 @@ public class PostTraumaticAgent extends AgentImpl {
      */
     private void hotelPrintPrices() {
 
-        ArrayList<PricePoint> _prices;
-        PricePoint _price;
+        PriceSeries _prices;
 
         log.fine(LogPrefix + "Start Printing All Hotel Prices");
-        for (int i = 0; i < hotelPrices.size(); i++) {
+        for (int i = 0; i < hotelPrices.length; i++) {
             log.fine(LogPrefix + "Printing (time, price) for " + agent.getAuctionTypeAsString(i + 8) + ":");
-            _prices = hotelPrices.get(i);
+            _prices = hotelPrices[i];
             for (int j = 0; j < _prices.size(); j++) {
-                _price = _prices.get(j);
-                log.fine(LogPrefix + _price.seconds + ", " + _price.value);
+                log.fine(LogPrefix + _prices.getTime(j) + ", " + _prices.getValue(j));
             }
+            printPricesSummary(_prices);
         }
         log.fine(LogPrefix + "Finish Printing All Hotel Prices");
     }
@@ -2067,10 +2177,11 @@ public class PostTraumaticAgent extends AgentImpl {
         int auction;
 
         // the already owned hotel rooms
+        AuctionStateStore.Snapshot state = agent.getAuctionState();
         int[] hotelOwns = new int[8];
         for (int i = 0; i < 8; i++) {
             auction = i + 8;
-            hotelOwns[i] = agent.getOwn(auction);
+            hotelOwns[i] = state.getOwn(auction);
         }
 
         // get all the owned entertainment rooms
@@ -2079,7 +2190,7 @@ public class PostTraumaticAgent extends AgentImpl {
         int[] entertainmentOwns = new int[12];
         for (int i = 0; i < 12; i++) {
             auction = i + 16;
-            entertainmentOwns[i] = agent.getOwn(auction) + agent.getAllocation(auction) + entertainmentBidsAllocations[i];
+            entertainmentOwns[i] = state.getOwn(auction) + state.getAllocation(auction) + entertainmentBidsAllocations[i];
         }
 
         int firstHotelDay;
@@ -2451,7 +2562,7 @@ public class PostTraumaticAgent extends AgentImpl {
         long time = agent.getGameTime();
 
         int auction = quote.getAuction() - 16;
-        entertainmentPrices.get(auction).add(new DoublePricePoint(askPrice, bidPrice, time));
+        entertainmentPrices[auction].add(time, askPrice, bidPrice);
     }
 
     /**
@@ -2459,17 +2570,16 @@ public class PostTraumaticAgent extends AgentImpl {
      */
     private void entertainmentPrintPrices() {
 
-        ArrayList<DoublePricePoint> _prices;
-        DoublePricePoint _price;
+        PriceSeries _prices;
 
         log.fine(LogPrefix + "Start Printing All Entertainment Ask/Bid Prices");
-        for (int i = 0; i < entertainmentPrices.size(); i++) {
+        for (int i = 0; i < entertainmentPrices.length; i++) {
             log.fine(LogPrefix + "Printing (time, ask price, price) for " + agent.getAuctionTypeAsString(i + 16) + " :");
-            _prices = entertainmentPrices.get(i);
+            _prices = entertainmentPrices[i];
             for (int j = 0; j < _prices.size(); j++) {
-                _price = _prices.get(j);
-                log.fine(LogPrefix + _price.seconds + ", " + _price.ask + ", " + _price.bid);
+                log.fine(LogPrefix + _prices.getTime(j) + ", " + _prices.getValue(0, j) + ", " + _prices.getValue(1, j));
             }
+            printPricesSummary(_prices);
         }
         log.fine(LogPrefix + "Finish Printing All Entertainment Ask/Bid Prices");
     }
@@ -2645,6 +2755,23 @@ public class PostTraumaticAgent extends AgentImpl {
         return status == Quote.AUCTION_INTERMEDIATE_CLEAR || status == Quote.AUCTION_FINAL_CLEAR;
     }
 
+    /**
+     * Print the min/max/mean of the prices in an auction and their slope over the last minute.
+     */
+    private void printPricesSummary(PriceSeries prices) {
+        if (prices.size() == 0) {
+            return;
+        }
+        long lastMinute = prices.getTime(prices.size() - 1) - 60 * 1000;
+        int n = 0;
+        while (n < prices.size() && prices.getTime(prices.size() - 1 - n) >= lastMinute) {
+            n++;
+        }
+        log.fine(LogPrefix + "min " + prices.getMin() + ", max " + prices.getMax()
+                + ", mean " + prices.getMean() + ", last minute slope "
+                + (float) (prices.getSlope(n) * 60 * 1000) + " per minute");
+    }
+
     /**
      * Printing client preferences.
      */
@@ -2656,25 +2783,6 @@ public class PostTraumaticAgent extends AgentImpl {
         log.fine(LogPrefix + "Finish Printing Client Preferences");
     }
 
-    /**
-     * Get array of prices from array list of price points.
-     *
-     * @param list
-     * @return
-     */
-    private double[] listToArray(ArrayList<PricePoint> list) {
-
-        int length = list.size();
-        double[] array = new double[length];
-        PricePoint price;
-        for (int j = 0; j < length; j++) {
-            price = list.get(j);
-            array[j] = price.value;
-        }
-
-        return array;
-    }
-
     /**
      * Get quantity of bid from bid string.
      *
@@ -0,0 +1,305 @@
+package se.sics.tac.aw;
+
+/**
+ * The prices quoted in one auction during a game. The series is stored column by column:
+ * the game time of each quote in a long[] and the prices in one float[] per column (the ask
+ * price, and the bid price for series with two columns). The capacity is fixed when the
+ * series is created, adding a quote is O(1) without any allocation and when the series is
+ * full the oldest quote is dropped.
+ * <p>
+ * Quotes are read by index (0 is the oldest quote kept) or through a {@link Window} over the
+ * last quotes, which reads the columns in place. The min, max and mean of the first column
+ * over the whole series are kept up to date as quotes are added.
+ */
+public class PriceSeries {
+
+    // the columns, used as ring buffers starting at start
+    private final long[] times;
+    private final float[][] values;
+    private int start = 0;
+    private int size = 0;
+
+    // aggregates of the first column, min and max are found again when one is dropped
+    private double sum = 0;
+    private float min;
+    private float max;
+    private boolean minMaxValid = true;
+
+    /**
+     * constructor for a series of one price per quote
+     * @param capacity
+     */
+    public PriceSeries(int capacity) {
+        this(capacity, 1);
+    }
+
+    /**
+     * constructor
+     * @param capacity the number of quotes kept
+     * @param columns the number of prices per quote
+     */
+    public PriceSeries(int capacity, int columns) {
+        if (capacity < 1 || columns < 1) {
+            throw new IllegalArgumentException("capacity and columns must be positive");
+        }
+        times = new long[capacity];
+        values = new float[columns][capacity];
+    }
+
+    /**
+     * Add a quote with one price.
+     * @param time game time of the quote
+     * @param value
+     */
+    public void add(long time, float value) {
+        int slot = next(time);
+        values[0][slot] = value;
+        added(value);
+    }
+
+    /**
+     * Add a quote with two prices.
+     * @param time game time of the quote
+     * @param value
+     * @param value2 price of the second column
+     */
+    public void add(long time, float value, float value2) {
+        int slot = next(time);
+        values[0][slot] = value;
+        values[1][slot] = value2;
+        added(value);
+    }
+
+    // takes the slot of the next quote, dropping the oldest quote if full
+    private int next(long time) {
+        int capacity = times.length;
+        int slot;
+        if (size == capacity) {
+            slot = start;
+            float dropped = values[0][slot];
+            sum -= dropped;
+            if (dropped == min || dropped == max) {
+                minMaxValid = false;
+            }
+            start = start + 1 == capacity ? 0 : start + 1;
+        } else {
+            slot = start + size;
+            if (slot >= capacity) {
+                slot -= capacity;
+            }
+            size++;
+        }
+        times[slot] = time;
+        return slot;
+    }
+
+    private void added(float value) {
+        sum += value;
+        if (size == 1) {
+            min = max = value;
+            minMaxValid = true;
+        } else if (minMaxValid) {
+            if (value < min) {
+                min = value;
+            }
+            if (value > max) {
+                max = value;
+            }
+        }
+    }
+
+    private int slot(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+        int slot = start + index;
+        return slot >= times.length ? slot - times.length : slot;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return times.length;
+    }
+
+    public int getColumns() {
+        return values.length;
+    }
+
+    /**
+     * Game time of the quote at index.
+     * @param index
+     * @return
+     */
+    public long getTime(int index) {
+        return times[slot(index)];
+    }
+
+    /**
+     * Price (first column) of the quote at index.
+     * @param index
+     * @return
+     */
+    public float getValue(int index) {
+        return values[0][slot(index)];
+    }
+
+    /**
+     * Price in column of the quote at index.
+     * @param column
+     * @param index
+     * @return
+     */
+    public float getValue(int column, int index) {
+        return values[column][slot(index)];
+    }
+
+    /**
+     * The latest price (first column).
+     * @return
+     */
+    public float getLast() {
+        return getValue(size - 1);
+    }
+
+    public float getMin() {
+        validateMinMax();
+        return min;
+    }
+
+    public float getMax() {
+        validateMinMax();
+        return max;
+    }
+
+    public float getMean() {
+        return size == 0 ? Float.NaN : (float) (sum / size);
+    }
+
+    private void validateMinMax() {
+        if (size == 0) {
+            throw new IllegalStateException("no prices");
+        }
+        if (!minMaxValid) {
+            Window all = window(size);
+            min = all.getMin();
+            max = all.getMax();
+            minMaxValid = true;
+        }
+    }
+
+    /**
+     * Least squares slope of the last n prices (first column) over game time, in price per
+     * millisecond.
+     * @param n
+     * @return
+     */
+    public double getSlope(int n) {
+        return window(n).getSlope();
+    }
+
+    /**
+     * A view of the last n quotes (or of all quotes if there are fewer). The view reads the
+     * series in place, so it must not be used after more quotes have been added.
+     * @param n
+     * @return
+     */
+    public Window window(int n) {
+        int length = n < size ? n : size;
+        return new Window(size - length, length);
+    }
+
+    public String toString() {
+        return "PriceSeries[" + size + '/' + times.length + ']';
+    }
+
+
+    // -------------------------------------------------------------------
+    // A view of consecutive quotes in the series
+    // -------------------------------------------------------------------
+
+    public class Window {
+
+        private final int from;
+        private final int length;
+
+        private Window(int from, int length) {
+            this.from = from;
+            this.length = length;
+        }
+
+        public int size() {
+            return length;
+        }
+
+        public long getTime(int index) {
+            return times[slot(from + index)];
+        }
+
+        public float getValue(int index) {
+            return values[0][slot(from + index)];
+        }
+
+        public float getValue(int column, int index) {
+            return values[column][slot(from + index)];
+        }
+
+        public float getMin() {
+            float m = Float.POSITIVE_INFINITY;
+            for (int i = 0; i < length; i++) {
+                float v = getValue(i);
+                if (v < m) {
+                    m = v;
+                }
+            }
+            return m;
+        }
+
+        public float getMax() {
+            float m = Float.NEGATIVE_INFINITY;
+            for (int i = 0; i < length; i++) {
+                float v = getValue(i);
+                if (v > m) {
+                    m = v;
+                }
+            }
+            return m;
+        }
+
+        public double getMean() {
+            double s = 0;
+            for (int i = 0; i < length; i++) {
+                s += getValue(i);
+            }
+            return s / length;
+        }
+
+        public double getMeanTime() {
+            double s = 0;
+            for (int i = 0; i < length; i++) {
+                s += getTime(i);
+            }
+            return s / length;
+        }
+
+        /**
+         * Least squares slope of the prices (first column) over game time, in price per
+         * millisecond (0 if there are less than two different times).
+         * @return
+         */
+        public double getSlope() {
+            double meanTime = getMeanTime();
+            double meanValue = getMean();
+            double sxx = 0;
+            double sxy = 0;
+            for (int i = 0; i < length; i++) {
+                double dx = getTime(i) - meanTime;
+                sxx += dx * dx;
+                sxy += dx * (getValue(i) - meanValue);
+            }
+            return sxx == 0 ? 0 : sxy / sxx;
+        }
+    }
+}
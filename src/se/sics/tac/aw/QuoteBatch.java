@@ -0,0 +1,115 @@
+package se.sics.tac.aw;
+
+/**
+ * The quote requests for one auction category that were issued together
+ * (in the same timer tick). The batch is complete when it has been sealed
+ * and a reply has arrived for each of its auctions, at which point the
+ * category update is reported to the agent exactly once.
+ * <p>
+ * A batch that is still waiting for replies when the next tick for the
+ * category comes is reopened and extended, so a slow reply delays the
+ * category update instead of causing it to be reported twice.
+ */
+public class QuoteBatch {
+
+    private final int category;
+
+    // Auctions (bit per auction) that are waiting for a reply
+    private long pending = 0L;
+    private int size = 0;
+    private boolean sealed = false;
+    private boolean completed = false;
+    private long startTime;
+
+    public QuoteBatch(int category) {
+        this.category = category;
+        this.startTime = System.currentTimeMillis();
+    }
+
+    public int getCategory() {
+        return category;
+    }
+
+    /**
+     * Returns the number of auctions in the batch.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isCompleted() {
+        return completed;
+    }
+
+    /**
+     * Returns the time in milliseconds since the batch was started.
+     */
+    public synchronized long getAge() {
+        return System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * Reopens the batch so that more auctions can be added.
+     *
+     * @return false if the batch has already completed and can not be reused
+     */
+    public synchronized boolean reopen() {
+        if (completed) {
+            return false;
+        }
+        sealed = false;
+        return true;
+    }
+
+    /**
+     * Adds an auction whose quote reply is awaited.
+     */
+    public synchronized void add(int auction) {
+        long bit = 1L << auction;
+        if ((pending & bit) == 0) {
+            pending |= bit;
+            size++;
+        }
+    }
+
+    public synchronized boolean contains(int auction) {
+        return (pending & (1L << auction)) != 0;
+    }
+
+    /**
+     * Marks that no more auctions will be added in this tick.
+     *
+     * @return true if this completed the batch
+     */
+    public synchronized boolean seal() {
+        sealed = true;
+        return checkCompleted();
+    }
+
+    /**
+     * Registers the reply (or failure) for an auction.
+     *
+     * @return true if this completed the batch
+     */
+    public synchronized boolean complete(int auction) {
+        long bit = 1L << auction;
+        if ((pending & bit) == 0) {
+            return false;
+        }
+        pending &= ~bit;
+        return checkCompleted();
+    }
+
+    private boolean checkCompleted() {
+        if (sealed && pending == 0L && size > 0 && !completed) {
+            completed = true;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized String toString() {
+        return "QuoteBatch[" + category + ',' + size + ','
+                + Long.bitCount(pending) + " pending]";
+    }
+}
@@ -0,0 +1,208 @@
+package se.sics.tac.aw;
+
+/**
+ * Decides when the quote of each auction should be fetched next, in
+ * server time. Auctions that announce when their next quote is available
+ * (hotels) are fetched shortly after that time, and again quickly if the
+ * server had not yet produced the new quote. Flights change price at
+ * fixed times since the start of the game and are all fetched together
+ * just after each price update, so each update is one batch. Other
+ * auctions are polled with a per-category period that is doubled (up to a
+ * limit) each time the prices turn out to be unchanged and restored as
+ * soon as they move. Closed auctions are never fetched.
+ * <p>
+ * The scheduler only holds the schedule; the agent takes the auctions
+ * that are due and requests their quotes in batches.
+ */
+public class QuoteScheduler {
+
+    /**
+     * Time after the announced quote time before the quote is fetched, to
+     * allow for clock differences and server processing.
+     */
+    public static final int QUOTE_LEAD = 250;
+
+    /**
+     * Time before an announced quote is fetched again if the server
+     * returned the old quote.
+     */
+    public static final int STALE_RETRY = 500;
+
+    private static final int[] BASE_PERIOD = {FlightPriceProcess.UPDATE_PERIOD, 60000, 30000};
+    private static final int[] MAX_PERIOD = {FlightPriceProcess.UPDATE_PERIOD, 60000, 120000};
+
+    private final long[] nextFetch;
+    private final int[] period;
+    private final float[] lastAsk;
+    private final float[] lastBid;
+    private final boolean[] fetched;
+
+    // The time to wait for a requested quote before requesting it again
+    private final int requestTimeout;
+    // The server time the game started (flight price updates are counted from it)
+    private long gameStartTime;
+
+    // Statistics
+    private long staleCount = 0;
+    private long unchangedCount = 0;
+
+    public QuoteScheduler(int auctions, int requestTimeout) {
+        this.nextFetch = new long[auctions];
+        this.period = new int[auctions];
+        this.lastAsk = new float[auctions];
+        this.lastBid = new float[auctions];
+        this.fetched = new boolean[auctions];
+        this.requestTimeout = requestTimeout;
+    }
+
+    /**
+     * Makes all auctions due at the specified server time (at game start).
+     */
+    public synchronized void reset(long serverTime, long gameStartTime) {
+        this.gameStartTime = gameStartTime;
+        for (int i = 0, n = nextFetch.length; i < n; i++) {
+            nextFetch[i] = serverTime;
+            period[i] = BASE_PERIOD[TACAgent.getAuctionCategory(i)];
+            fetched[i] = false;
+        }
+        staleCount = 0;
+        unchangedCount = 0;
+    }
+
+    /**
+     * Returns the auctions (one bit per auction) in the category that are
+     * due at the specified server time. The returned auctions are regarded
+     * as requested and are not due again until their quotes have been
+     * received or the request has timed out.
+     */
+    public synchronized long takeDue(long serverTime, int category, Quote[] quotes) {
+        if (category == TACAgent.CAT_FLIGHT) {
+            return takeFlights(serverTime, quotes);
+        }
+        long due = 0L;
+        for (int i = 0, n = nextFetch.length; i < n; i++) {
+            if (TACAgent.getAuctionCategory(i) == category
+                    && !quotes[i].isAuctionClosed()
+                    && nextFetch[i] <= serverTime) {
+                due |= 1L << i;
+                nextFetch[i] = serverTime + requestTimeout;
+            }
+        }
+        return due;
+    }
+
+    // All open flights once any is due, and then again after the next
+    // price update (whether the quotes arrive, fail or time out)
+    private long takeFlights(long serverTime, Quote[] quotes) {
+        boolean isDue = false;
+        for (int i = 0, n = nextFetch.length; i < n; i++) {
+            if (TACAgent.getAuctionCategory(i) == TACAgent.CAT_FLIGHT
+                    && !quotes[i].isAuctionClosed()
+                    && nextFetch[i] <= serverTime) {
+                isDue = true;
+                break;
+            }
+        }
+        if (!isDue) {
+            return 0L;
+        }
+        long next = getNextFlightUpdate(serverTime);
+        long due = 0L;
+        for (int i = 0, n = nextFetch.length; i < n; i++) {
+            if (TACAgent.getAuctionCategory(i) == TACAgent.CAT_FLIGHT
+                    && !quotes[i].isAuctionClosed()) {
+                due |= 1L << i;
+                nextFetch[i] = next;
+            }
+        }
+        return due;
+    }
+
+    // The server time to fetch the flights after the next price update
+    private long getNextFlightUpdate(long serverTime) {
+        int period = FlightPriceProcess.UPDATE_PERIOD;
+        long update = (serverTime - gameStartTime - QUOTE_LEAD) / period + 1;
+        return gameStartTime + update * period + QUOTE_LEAD;
+    }
+
+    /**
+     * Returns the earliest server time at which an open auction is due.
+     */
+    public synchronized long getNextDueTime(Quote[] quotes) {
+        long time = Long.MAX_VALUE;
+        for (int i = 0, n = nextFetch.length; i < n; i++) {
+            if (!quotes[i].isAuctionClosed() && nextFetch[i] < time) {
+                time = nextFetch[i];
+            }
+        }
+        return time;
+    }
+
+    /**
+     * Schedules the next fetch for the auction of the received quote.
+     */
+    public synchronized void quoteReceived(Quote quote, long serverTime) {
+        int auction = quote.getAuction();
+        if (quote.isAuctionClosed()) {
+            nextFetch[auction] = Long.MAX_VALUE;
+            return;
+        }
+
+        long nextQuoteTime = quote.getNextQuoteTime();
+        if (TACAgent.getAuctionCategory(auction) == TACAgent.CAT_FLIGHT) {
+            // Already scheduled for the next price update by takeDue
+            if (fetched[auction]
+                    && quote.getAskPrice() == lastAsk[auction]
+                    && quote.getBidPrice() == lastBid[auction]) {
+                unchangedCount++;
+            }
+        } else if (nextQuoteTime > 0) {
+            if (nextQuoteTime + QUOTE_LEAD > serverTime) {
+                nextFetch[auction] = nextQuoteTime + QUOTE_LEAD;
+            } else {
+                // The server has not produced the announced quote yet
+                staleCount++;
+                nextFetch[auction] = serverTime + STALE_RETRY;
+            }
+        } else {
+            int category = TACAgent.getAuctionCategory(auction);
+            if (fetched[auction]
+                    && quote.getAskPrice() == lastAsk[auction]
+                    && quote.getBidPrice() == lastBid[auction]) {
+                unchangedCount++;
+                period[auction] = Math.min(period[auction] * 2, MAX_PERIOD[category]);
+            } else {
+                period[auction] = BASE_PERIOD[category];
+            }
+            nextFetch[auction] = serverTime + period[auction];
+        }
+        lastAsk[auction] = quote.getAskPrice();
+        lastBid[auction] = quote.getBidPrice();
+        fetched[auction] = true;
+    }
+
+    /**
+     * Makes the auction due again after a failed request (flights after
+     * the next price update, with the other flights).
+     */
+    public synchronized void requestFailed(int auction, long serverTime) {
+        if (TACAgent.getAuctionCategory(auction) != TACAgent.CAT_FLIGHT) {
+            nextFetch[auction] = serverTime + STALE_RETRY;
+        }
+    }
+
+    /**
+     * Returns the number of quotes that were fetched before the server
+     * had produced them.
+     */
+    public synchronized long getStaleCount() {
+        return staleCount;
+    }
+
+    /**
+     * Returns the number of polled quotes whose prices were unchanged.
+     */
+    public synchronized long getUnchangedCount() {
+        return unchangedCount;
+    }
+}
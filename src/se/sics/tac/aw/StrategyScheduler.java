@@ -0,0 +1,234 @@
+package se.sics.tac.aw;
+
+import se.sics.tac.util.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Schedules agent strategy callbacks at game times, i.e. at offsets from
+ * the start of the current game in server time. Callbacks are performed by
+ * the {@link TimeDispatcher} workers (never by the AWT event thread) and
+ * are told how late they were started. The lateness is also recorded per
+ * task name.
+ * <p>
+ * The callbacks of an agent are performed one at the time (never
+ * concurrently with each other). They may still run concurrently with the
+ * message callbacks of the agent (quoteUpdated, auctionClosed,
+ * transaction, bidUpdated and the like), which are delivered by the
+ * {@link TACMessageDispatcher} thread, so state shared between scheduled
+ * callbacks and message callbacks must still be guarded by the agent.
+ * <p>
+ * All scheduled tasks are cancelled when the game ends.
+ * <pre>
+ *   // 1.5 seconds before each hotel auction closes
+ *   agent.getStrategyScheduler().scheduleBeforeHotelClose(1500, "hotelFinalBids",
+ *       (gameTime, lateness) -&gt; placeFinalBids());
+ * </pre>
+ */
+public class StrategyScheduler implements Task {
+
+    /**
+     * Hotel auctions close at the end of every minute except the last one.
+     */
+    public static final int HOTEL_CLOSE_PERIOD = 60 * 1000;
+
+    /**
+     * Callback for a scheduled strategy task.
+     */
+    public interface Callback {
+
+        /**
+         * @param gameTime the game time the task was scheduled for
+         * @param lateness the time in milliseconds the task was started
+         *                 after its scheduled time
+         */
+        void run(long gameTime, long lateness);
+    }
+
+    private final TACAgent agent;
+    private final ArrayList<ScheduledTask> tasks = new ArrayList<ScheduledTask>();
+    private final ConcurrentHashMap<String, LatencyHistogram> lateness =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+
+    StrategyScheduler(TACAgent agent) {
+        this.agent = agent;
+    }
+
+    /**
+     * Performs the callback once at the specified game time.
+     */
+    public ScheduledTask scheduleAt(long gameTime, String name, Callback callback) {
+        return schedule(new ScheduledTask(name, callback, gameTime, 0L, gameTime));
+    }
+
+    /**
+     * Performs the callback at the specified game time and then every
+     * period milliseconds until the end of the game. The times do not
+     * drift: a late callback does not delay the following ones, and
+     * periods that have already passed are skipped.
+     */
+    public ScheduledTask scheduleAtFixedRate(long gameTime, long period, String name,
+                                             Callback callback) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive: " + period);
+        }
+        return schedule(new ScheduledTask(name, callback, gameTime, period, Long.MAX_VALUE));
+    }
+
+    /**
+     * Performs the callback the specified time before each remaining hotel
+     * auction closing in the current game.
+     */
+    public ScheduledTask scheduleBeforeHotelClose(long lead, String name, Callback callback) {
+        long gameTime = agent.getGameTime();
+        long closeTime = (gameTime + lead) / HOTEL_CLOSE_PERIOD * HOTEL_CLOSE_PERIOD
+                + HOTEL_CLOSE_PERIOD;
+        long lastCloseTime = agent.getGameLength() - HOTEL_CLOSE_PERIOD;
+        return schedule(new ScheduledTask(name, callback, closeTime - lead,
+                HOTEL_CLOSE_PERIOD, lastCloseTime - lead));
+    }
+
+    /**
+     * Returns how late (in microseconds) the tasks with the specified name
+     * have been started.
+     */
+    public LatencyHistogram getLateness(String name) {
+        LatencyHistogram histogram = lateness.get(name);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram old = lateness.putIfAbsent(name, histogram);
+            if (old != null) {
+                histogram = old;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns one lateness summary line per task name.
+     */
+    public String getSummary() {
+        StringBuffer sb = new StringBuffer();
+        for (String name : lateness.keySet()) {
+            sb.append(name).append(": ").append(lateness.get(name)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Cancels all scheduled tasks.
+     */
+    public void cancelAll() {
+        synchronized (tasks) {
+            for (int i = 0, n = tasks.size(); i < n; i++) {
+                tasks.get(i).cancel();
+            }
+            tasks.clear();
+        }
+    }
+
+    private ScheduledTask schedule(ScheduledTask task) {
+        synchronized (tasks) {
+            tasks.add(task);
+        }
+        scheduleNext(task, task.nextGameTime);
+        return task;
+    }
+
+    private void scheduleNext(ScheduledTask task, long gameTime) {
+        if (gameTime > task.endGameTime) {
+            remove(task);
+            return;
+        }
+        synchronized (task) {
+            if (!task.cancelled) {
+                task.nextGameTime = gameTime;
+                // All strategy tasks share the scheduler as key so they are
+                // performed one at the time, as the strategy code expects
+                task.dispatcher = agent.getRuntime().getDispatcher();
+                task.handle = task.dispatcher
+                        .addTask(agent.getGameStartTime() + gameTime, this, task, this);
+            }
+        }
+    }
+
+    private void remove(ScheduledTask task) {
+        synchronized (tasks) {
+            tasks.remove(task);
+        }
+    }
+
+    public void performWork(long time, Object key, Object value) {
+        ScheduledTask task = (ScheduledTask) value;
+        long gameTime = task.getNextGameTime();
+        long late = agent.getGameTime() - gameTime;
+        getLateness(task.name).record(late * 1000);
+
+        if (task.period > 0) {
+            // Schedule the next time before the callback so that a slow
+            // callback does not delay it
+            long next = gameTime + task.period;
+            long now = agent.getGameTime();
+            if (next <= now) {
+                next += (now - next) / task.period * task.period + task.period;
+            }
+            scheduleNext(task, next);
+        } else {
+            remove(task);
+        }
+
+        if (!task.isCancelled()) {
+            task.callback.run(gameTime, late > 0 ? late : 0L);
+        }
+    }
+
+
+    // -------------------------------------------------------------------
+    // A scheduled task
+    // -------------------------------------------------------------------
+
+    public static class ScheduledTask {
+
+        private final String name;
+        private final Callback callback;
+        private final long period;
+        private final long endGameTime;
+        private long nextGameTime;
+        private TimeDispatcher dispatcher;
+        private TimeDispatcher.TaskHandle handle;
+        private boolean cancelled = false;
+
+        ScheduledTask(String name, Callback callback, long gameTime, long period,
+                      long endGameTime) {
+            this.name = name;
+            this.callback = callback;
+            this.nextGameTime = gameTime;
+            this.period = period;
+            this.endGameTime = endGameTime;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the game time the task will be performed next.
+         */
+        public synchronized long getNextGameTime() {
+            return nextGameTime;
+        }
+
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        public synchronized void cancel() {
+            cancelled = true;
+            if (handle != null) {
+                dispatcher.cancel(handle);
+                handle = null;
+            }
+        }
+    }
+}
@@ -34,6 +34,8 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Properties;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -167,6 +169,8 @@ public class TACAgent implements Task, TACMessageReceiver {
      * Timeout for quotes (when waiting for reply)
      */
     private final static int QUOTE_TIMEOUT = 120 * 1000;
+    // The longest time between checks for quotes that are due
+    private final static int QUOTE_CHECK_PERIOD = 1000;
 
     /**
      * Constants for automatic updates and game
@@ -175,6 +179,37 @@ public class TACAgent implements Task, TACMessageReceiver {
 
     private final static int DEFAULT_GAME_LENGTH = 12 * 60 * 1000;
 
+    /**
+     * Default number of requests in flight and time to wait for a reply
+     */
+    private final static int DEFAULT_REQUEST_WINDOW = 32;
+    private final static int DEFAULT_REQUEST_TIMEOUT = 60 * 1000;
+    private final static int DEFAULT_HTTP_CONNECTIONS = 4;
+
+    /**
+     * Interned ids of the tags tested for every received message
+     */
+    private final static int TAG_AUTH = TACTag.getID("auth");
+    private final static int TAG_SERVER_TIME = TACTag.getID("serverTime");
+    private final static int TAG_NEXT_GAME = TACTag.getID("nextGame");
+    private final static int TAG_GET_GAME_PARAMS = TACTag.getID("getGameParams");
+    private final static int TAG_GET_GAME_AUCTION_IDS = TACTag.getID("getGameAuctionIDs");
+    private final static int TAG_GET_GAME_CONSTS = TACTag.getID("getGameConsts");
+    private final static int TAG_SUBMIT_BID = TACTag.getID("submitBid");
+    private final static int TAG_REPLACE_BID = TACTag.getID("replaceBid");
+    private final static int TAG_GET_QUOTE = TACTag.getID("getQuote");
+    private final static int TAG_BID_INFO = TACTag.getID("bidInfo");
+    private final static int TAG_TRANS_IDS = TACTag.getID("transIDs");
+    private final static int TAG_TRANS_INFO = TACTag.getID("transInfo");
+    private final static int TAG_RECOVER_BID_IDS = TACTag.getID("recoverBidIDs");
+
+    private final static int TAG_LAST_ASK_PRICE = TACTag.getID("lastAskPrice");
+    private final static int TAG_LAST_BID_PRICE = TACTag.getID("lastBidPrice");
+    private final static int TAG_HQW = TACTag.getID("hypotheticalQuantityWon");
+    private final static int TAG_AUCTION_STATUS = TACTag.getID("auctionStatus");
+    private final static int TAG_NEXT_QUOTE_TIME = TACTag.getID("nextQuoteTime");
+    private final static int TAG_LAST_QUOTE_TIME = TACTag.getID("lastQuoteTime");
+
     private final static String[] auctionType = new String[]{
             "Inflight 1", "Inflight 2", "Inflight 3", "Inflight 4",
             "Outflight 2", "Outflight 3", "Outflight 4", "Outflight 5",
@@ -201,6 +236,12 @@ public class TACAgent implements Task, TACMessageReceiver {
     private Properties config;
 
     private TACConnection connection = null;
+    private final TACMessageDispatcher messageDispatcher = new TACMessageDispatcher();
+    private final StrategyScheduler strategyScheduler = new StrategyScheduler(this);
+    private final TransactionSync transactionSync = new TransactionSync(this);
+    // A game starts and ends alone: the polling tasks may run in parallel
+    // with each other but never while a game starts or ends
+    private final ReadWriteLock lifecycleLock = new ReentrantReadWriteLock();
 
     private int nextGameID = -1;
     private long nextGameTime = -1;
@@ -212,34 +253,29 @@ public class TACAgent implements Task, TACMessageReceiver {
 
     private boolean isNextGameTaskRunning = false;
 
-    private int lastHotelAuction = -1;
     private int clearID = 0;
     // Client Preferences
     private int[][] clientPrefs = new int[8][6];
 
     // Auction and ownership information
     private int[] auctionIDs = new int[NO_AUCTIONS];
-    private int[] owns = new int[NO_AUCTIONS];
-    private Bid[] bids = new Bid[NO_AUCTIONS];
     private Quote[] quotes = new Quote[NO_AUCTIONS];
-    private float[] costs = new float[NO_AUCTIONS];
+    // Quote, active bid, ownership and allocation of all auctions
+    private final AuctionStateStore auctionState =
+            new AuctionStateStore(NO_AUCTIONS);
 
     private long[] pendingQuotes = new long[NO_AUCTIONS];
-
-    private int[] allocate = new int[NO_AUCTIONS];
+    // The outstanding quote batch for each auction category
+    private final QuoteBatch[] quoteBatches = new QuoteBatch[3];
+    private final QuoteScheduler quoteScheduler =
+            new QuoteScheduler(NO_AUCTIONS, QUOTE_TIMEOUT);
 
     private int playingGame = -1;
     private long startTime = 0;
     private int gameLength = DEFAULT_GAME_LENGTH;
     private String playingGameType;
-    private int earliestTransID = -1;
     private boolean isGameStarted = false;
 
-    private int[] transActions = new int[10];
-    private int transActionsNum = 0;
-    private int[] waitActions = new int[10];
-    private int waitActionsNum = 0;
-    private long lastSentTransactionRequest = 0L;
 
     private int printOwnDelay = 0;
 
@@ -247,13 +283,40 @@ public class TACAgent implements Task, TACMessageReceiver {
     private AgentDisplay display;
 
     private String connectionClassName;
+    private String codecClassName;
+
+    // Pipelining of requests (used by the socket based connections)
+    private int requestWindow = DEFAULT_REQUEST_WINDOW;
+    private int requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+    private int httpConnections = DEFAULT_HTTP_CONNECTIONS;
+    private int metricsLogPeriod = 0;
+
+    // The journal of the current game (null if journaling is disabled)
+    private volatile GameJournal journal;
+    private boolean useJournal = true;
+    // True if the state of the current game was restored from its journal
+    private boolean journalRecovered = false;
+
+    // Records the server messages of each game (null if not recording)
+    private TACTrace trace;
+    // The trace to replay (see TACReplayConnection)
+    private String replayTrace;
+    // Seeds the games of TACSimConnection if set (any value, 0 included),
+    // otherwise the games are random
+    private long simSeed = 0L;
+    private boolean hasSimSeed = false;
 
     private int exitAfterGames = -1;
     private int gamesPlayed = 0;
     private int lastGamePlayed = -1;
+    // The dispatcher, metrics, logging and lifecycle of the agent
+    private final AgentRuntime runtime;
 
-    private TACAgent(AgentImpl agent) {
+    private TACAgent(AgentImpl agent, AgentRuntime runtime) {
         this.agent = agent;
+        this.runtime = runtime;
+        // Everything the agent starts from here uses the runtime
+        runtime.bind();
         for (int i = 0; i < NO_AUCTIONS; i++) {
             quotes[i] = new Quote(i);
         }
@@ -266,7 +329,7 @@ public class TACAgent implements Task, TACMessageReceiver {
      */
     public TACAgent(AgentImpl agent, String host, int port,
                     String user, String pwd, String className) {
-        this(agent);
+        this(agent, AgentRuntime.createStandalone());
         if (host != null) {
             this.host = host;
             this.port = port;
@@ -288,8 +351,21 @@ public class TACAgent implements Task, TACMessageReceiver {
     }
 
     public TACAgent(AgentImpl agent, ArgEnumerator a, Properties config) {
-        this(agent);
+        this(agent, a, config, AgentRuntime.createStandalone());
+    }
+
+    /**
+     * Creates an agent with the specified runtime. An agent with a hosted
+     * runtime shares the JVM with other agents and only stops when it
+     * exits (see {@link AgentRuntime}).
+     */
+    public TACAgent(AgentImpl agent, ArgEnumerator a, Properties config,
+                    AgentRuntime runtime) {
+        this(agent, runtime);
         this.config = config;
+        if (!runtime.isStandalone()) {
+            runtime.addExitHook(this::release);
+        }
 
         userName =
                 trim(a.getArgument("-agent", config.getProperty("agent", null)));
@@ -311,6 +387,8 @@ public class TACAgent implements Task, TACMessageReceiver {
                 trim(a.getArgument("-connection",
                         config.getProperty("connection",
                                 "se.sics.tac.aw.TACReader")));
+        codecClassName =
+                trim(a.getArgument("-codec", config.getProperty("codec", null)));
 
         gameType =
                 trim(a.getArgument("-gameType", config.getProperty("gameType", null)));
@@ -320,7 +398,8 @@ public class TACAgent implements Task, TACMessageReceiver {
             // Exit immediately???
             System.err.println("Exit as requested after " + exitAfterGames
                     + " played games");
-            System.exit(0);
+            runtime.exit(0);
+            return;
         }
 
         int consoleLevel =
@@ -344,6 +423,50 @@ public class TACAgent implements Task, TACMessageReceiver {
         printOwnDelay = a.getArgument("-printOwnDelay",
                 getInt(config, "printOwnDelay", 0)) * 1000;
 
+        requestWindow = a.getArgument("-requestWindow",
+                getInt(config, "requestWindow", DEFAULT_REQUEST_WINDOW));
+        requestTimeout = a.getArgument("-requestTimeout",
+                getInt(config, "requestTimeout", DEFAULT_REQUEST_TIMEOUT / 1000)) * 1000;
+        httpConnections = a.getArgument("-httpConnections",
+                getInt(config, "httpConnections", DEFAULT_HTTP_CONNECTIONS));
+
+        runtime.getDispatcher().setWorkerThreads(a.getArgument("-dispatcherThreads",
+                getInt(config, "dispatcherThreads", 0)));
+
+        useJournal = !"false".equals(trim(a.getArgument("-journal",
+                config.getProperty("journal", "true"))));
+        if (a.hasArgument("-trace")
+                || "true".equals(config.getProperty("trace", null))) {
+            trace = new TACTrace(childLogPrefix);
+        }
+        replayTrace = trim(a.getArgument("-replayTrace",
+                config.getProperty("replayTrace", null)));
+        if (replayTrace != null) {
+            // A replayed game must not be restored from (or recorded in)
+            // the journal of the original game
+            useJournal = false;
+        }
+        hasSimSeed = a.hasArgument("-simSeed")
+                || trim(config.getProperty("simSeed")) != null;
+        simSeed = a.getArgument("-simSeed", getInt(config, "simSeed", 0));
+
+        metricsLogPeriod = a.getArgument("-metricsLogPeriod",
+                getInt(config, "metricsLogPeriod", 0)) * 1000;
+        int metricsPort = a.getArgument("-metricsPort",
+                getInt(config, "metricsPort", 0));
+        if (metricsPort > 0) {
+            runtime.getMetrics().startHttpServer(metricsPort);
+        }
+        if (a.hasArgument("-metricsJmx")
+                || "true".equals(config.getProperty("metricsJmx", null))) {
+            runtime.getMetrics().registerMBean(
+                    runtime.isStandalone() ? null : runtime.getName());
+        }
+        if (metricsLogPeriod > 0) {
+            runtime.getDispatcher().addTask(getServerTime() + metricsLogPeriod,
+                    "metrics", null, this);
+        }
+
         log.fine("Starting TAC AgentWare version " + VERSION);
         log.fine("Using agent implementation " + agent.getClass().getName());
         log.fine("Using TAC server " + host + " at port " + port);
@@ -396,6 +519,7 @@ public class TACAgent implements Task, TACMessageReceiver {
     // -------------------------------------------------------------------
 
     private void connect() {
+        messageDispatcher.start();
         do {
             try {
                 connection = (TACConnection) Class.forName(connectionClassName).
@@ -404,6 +528,7 @@ public class TACAgent implements Task, TACMessageReceiver {
                 log.log(Level.SEVERE, "could not create TACConnection object of class "
                         + connectionClassName, e);
                 fatalError("no TACConnection  available");
+                return;
             }
             try {
                 connection.init(this);
@@ -428,49 +553,39 @@ public class TACAgent implements Task, TACMessageReceiver {
     // -------------------------------------------------------------------
 
     private void cancelTimers() {
-        TimeDispatcher d = TimeDispatcher.getDefault();
+        TimeDispatcher d = runtime.getDispatcher();
         d.cancelTask("gameStarts", this);
         d.cancelTask("gameEnds", this);
-        d.cancelTask("hotelQuotes", this);
-        d.cancelTask("flightQuotes", this);
         d.cancelTask("quotes", this);
         d.cancelTask("bids", this);
         d.cancelTask("printOwn", this);
+        strategyScheduler.cancelAll();
     }
 
     public void performWork(long time, Object key, Object value) {
-        TimeDispatcher td = TimeDispatcher.getDefault();
-        if (key == "hotelQuotes") {
-            // Request all hotel quotes
-            if (value == connection) {
-                td.addTask(time + 60000, key, value, this);
-                TACConnection conn = (TACConnection) value;
-                for (int i = MIN_HOTEL; i <= MAX_HOTEL; i++) {
-                    if (!quotes[i].isAuctionClosed()) {
-                        lastHotelAuction = i;
-                        requestQuote(quotes[i], conn, false);
-                    }
-                }
-            }
-
-        } else if (key == "flightQuotes") {
-            // Request all flight quotes
-            if (value == connection) {
-                td.addTask(time + 10000, key, value, this);
-                TACConnection conn = (TACConnection) value;
-
-                for (int i = MIN_FLIGHT; i <= MAX_FLIGHT; i++) {
-                    if (!quotes[i].isAuctionClosed()) {
-                        requestQuote(quotes[i], conn, false);
-                    }
-                }
+        if (key == "gameStarts") {
+            nextGameStarts((TACConnection) value);
+        } else if (key == "gameEnds") {
+            gameEnds();
+        } else if (key == "metrics") {
+            // Not tied to a connection or a game
+            runtime.getDispatcher().addTask(time + metricsLogPeriod, key, value, this);
+            log.fine("transport metrics:\n" + runtime.getMetrics().getSummary());
+        } else {
+            lifecycleLock.readLock().lock();
+            try {
+                performPolling(time, key, value);
+            } finally {
+                lifecycleLock.readLock().unlock();
             }
+        }
+    }
 
-        } else if (key == "quotes") {
+    private void performPolling(long time, Object key, Object value) {
+        TimeDispatcher td = runtime.getDispatcher();
+        if (key == "quotes") {
             if (value == connection) {
-                // Request the entertainment quotes only
-                td.addTask(time + INFO_UPDATE_PERIOD, key, value, this);
-                requestQuotes((TACConnection) value, false, false);
+                requestDueQuotes((TACConnection) value);
             }
 
         } else if (key == "bids") {
@@ -484,15 +599,6 @@ public class TACAgent implements Task, TACMessageReceiver {
                 td.addTask(time + printOwnDelay, key, value, this);
                 printOwn();
             }
-
-        } else if (key == "gameStarts") {
-            nextGameStarts((TACConnection) value);
-
-        } else if (key == "gameEnds") {
-            gameEnds();
-
-        } else if (key instanceof Quote) {
-            requestQuote((Quote) key, (TACConnection) value, true);
         }
     }
 
@@ -517,6 +623,93 @@ public class TACAgent implements Task, TACMessageReceiver {
         return password;
     }
 
+    /**
+     * Returns the maximal number of requests a connection may have
+     * waiting for replies before further requests are held back
+     */
+    public int getRequestWindow() {
+        return requestWindow;
+    }
+
+    /**
+     * Returns the time in milliseconds a connection waits for a reply
+     * before the connection is regarded as broken
+     */
+    public int getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    /**
+     * Returns the number of keep-alive connections the HTTP connection
+     * uses for requests that can be sent concurrently
+     */
+    public int getHttpConnections() {
+        return httpConnections;
+    }
+
+    /**
+     * Creates the codec a connection should use on the wire (XML unless
+     * another codec has been configured)
+     */
+    public TACCodec createCodec() {
+        return TACCodec.createCodec(codecClassName);
+    }
+
+    /**
+     * Returns the recorder of server messages or <code>null</code> if the
+     * messages are not recorded.
+     */
+    public TACTrace getTrace() {
+        return trace;
+    }
+
+    /**
+     * Returns the name of the trace or game log to replay (used by
+     * TACReplayConnection).
+     */
+    public String getReplayTrace() {
+        return replayTrace;
+    }
+
+    /**
+     * Returns the runtime that provides the agent with its dispatcher,
+     * metrics, logging and lifecycle.
+     */
+    public AgentRuntime getRuntime() {
+        return runtime;
+    }
+
+    /**
+     * Returns true if the simulated games are seeded by
+     * getSimulatorSeed() and false if they should be random.
+     */
+    public boolean hasSimulatorSeed() {
+        return hasSimSeed;
+    }
+
+    /**
+     * Returns the seed for the simulated games (used by TACSimConnection
+     * when hasSimulatorSeed() is true).
+     */
+    public long getSimulatorSeed() {
+        return simSeed;
+    }
+
+    /**
+     * Disables the game journal, for connections whose games can not be
+     * resumed after a restart (a simulated game is never the same twice)
+     */
+    void disableJournal() {
+        useJournal = false;
+    }
+
+    /**
+     * Returns the dispatcher that delivers received messages to their receivers
+     */
+    public TACMessageDispatcher getMessageDispatcher() {
+        return messageDispatcher;
+    }
+
 
     // -------------------------------------------------------------------
     // API's for the agent
@@ -527,13 +720,28 @@ public class TACAgent implements Task, TACMessageReceiver {
     }
 
     public long getServerTime() {
-        return System.currentTimeMillis() - timeDiff;
+        // The dispatcher follows the server clock (or the virtual clock
+        // when replaying a game)
+        return runtime.getDispatcher().getServerTime();
     }
 
     public long getGameTime() {
         return getServerTime() - startTime;
     }
 
+    // The server time when the current game started
+    long getGameStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Returns the scheduler for strategy callbacks at game times. All
+     * scheduled callbacks are cancelled when the game ends.
+     */
+    public StrategyScheduler getStrategyScheduler() {
+        return strategyScheduler;
+    }
+
     public long getGameTimeLeft() {
         long time = startTime + gameLength - getServerTime();
         return time > 0L ? time : 0L;
@@ -688,30 +896,35 @@ public class TACAgent implements Task, TACMessageReceiver {
         return clientPrefs.clone();
     }
 
+    /**
+     * Returns a consistent snapshot of all auctions. Use this instead of
+     * the per-auction getters when reading several auctions that must
+     * agree with each other.
+     */
+    public AuctionStateStore.Snapshot getAuctionState() {
+        return auctionState.getState();
+    }
+
     public int getOwn(int auctionID) {
         // The id that the agent gets for auctions is always 0 - 27
-        return owns[auctionID];
+        return auctionState.getState().getOwn(auctionID);
     }
 
     public void setOwn(int auctionID, int own) {
         // The id that the agent gets for auctions is always 0 - 27
-        owns[auctionID] = own;
+        auctionState.setOwn(auctionID, own);
+        if (journal != null) {
+            journal.own(auctionID, own);
+        }
     }
 
     // What might be owned in addition  to "getOwn"
     public int getProbablyOwn(int auctionID) {
-        Bid bid = getBid(auctionID);
-        if (bid == null)
-            return 0;
-        Quote quote = getQuote(auctionID);
-        if (quote.hasHQW(bid)) {
-            return quote.getHQW();
-        }
-        return bid.getQuantity();
+        return auctionState.getState().getProbablyOwn(auctionID);
     }
 
-    public synchronized Bid getBid(int auctionID) {
-        return bids[auctionID];
+    public Bid getBid(int auctionID) {
+        return auctionState.getState().getBid(auctionID);
     }
 
     public Quote getQuote(int auctionID) {
@@ -719,25 +932,30 @@ public class TACAgent implements Task, TACMessageReceiver {
     }
 
     public int getAllocation(int auction) {
-        return allocate[auction];
+        return auctionState.getState().getAllocation(auction);
     }
 
     public void setAllocation(int auction, int alloc) {
-        allocate[auction] = alloc;
+        auctionState.setAllocation(auction, alloc);
+        if (journal != null) {
+            journal.allocation(auction, alloc);
+        }
         if (tableModel != null) {
             tableModel.fireTableCellUpdated(auction, 8);
         }
     }
 
     public void clearAllocation() {
-        for (int i = 0; i < NO_AUCTIONS; i++) {
-            allocate[i] = 0;
+        auctionState.clearAllocation();
+        if (journal != null) {
+            for (int i = 0; i < NO_AUCTIONS; i++) {
+                journal.allocation(i, 0);
+            }
         }
     }
 
     private void clearAll() {
         isGameStarted = false;
-        lastHotelAuction = -1;
         clearID = 0;
         for (int i = 0, n = clientPrefs.length; i < n; i++) {
             int[] tmp = clientPrefs[i];
@@ -748,13 +966,15 @@ public class TACAgent implements Task, TACMessageReceiver {
 
         for (int i = 0; i < NO_AUCTIONS; i++) {
             auctionIDs[i] = 0;
-            owns[i] = 0;
-            bids[i] = null;
-            costs[i] = 0f;
-            allocate[i] = 0;
             quotes[i].clearAll();
             pendingQuotes[i] = 0L;
         }
+        auctionState.clear();
+        synchronized (quoteBatches) {
+            for (int i = 0; i < quoteBatches.length; i++) {
+                quoteBatches[i] = null;
+            }
+        }
         if (tableModel != null) {
             tableModel.fireTableDataChanged();
         }
@@ -785,7 +1005,7 @@ public class TACAgent implements Task, TACMessageReceiver {
             throw new IllegalArgumentException("Bids do not have same AuctionID");
         }
         bid.submitted();
-        if (oldBid != bids[auction]) {
+        if (oldBid != getBid(auction)) {
             bid.setRejectReason(Bid.ACTIVE_BID_CHANGED);
             bid.setProcessingState(Bid.REJECTED);
             try {
@@ -851,16 +1071,16 @@ public class TACAgent implements Task, TACMessageReceiver {
     void reset(long timeout, TACConnection conn) {
         if (connection == conn) {
             log.fine("performing connection reset");
+            log.fine("message dispatcher: " + messageDispatcher);
             cancelTimers();
-            // Clear transaction q
-            transActionsNum = 0;
-            waitActionsNum = 0;
+            // Drop the transaction syncs in progress
+            transactionSync.reset();
             disconnect(500);
             playingGame = -1;
             nextGameID = -1;
             exitGameLog();
 
-            TACMessage.resetResponseTime();
+            runtime.resetResponseTime();
 
             if (timeout > 0) {
                 try {
@@ -894,10 +1114,12 @@ public class TACAgent implements Task, TACMessageReceiver {
                 connection.sendMessage(msg);
             } catch (IOException e) {
                 log.log(Level.WARNING, "could not send message " + msg.getType(), e);
+                runtime.getMetrics().requestFailed(msg, false);
                 reset(0, connection);
             }
         } else {
             log.log(Level.WARNING, "could not send message: no connection");
+            runtime.getMetrics().requestFailed(msg, false);
         }
     }
 
@@ -909,18 +1131,22 @@ public class TACAgent implements Task, TACMessageReceiver {
                 // This is only for backward compability.  Older versions of the
                 // server might return tacerror for unknown message types.
                 log.warning("ignoring error for getGameConst: " + msg.getValue());
+            } else if ("getQuote".equals(type)) {
+                handleQuoteError(msg);
+                agent.tacerrorReceived(msg);
             } else {
                 agent.tacerrorReceived(msg);
             }
 
         } else if (msg.nextTag() && (!msg.isDeclaration() || msg.nextTag())) {
-            if (msg.isTag("auth")) {
+            int tag = msg.getTagID();
+            if (tag == TAG_AUTH) {
                 handleLogin(msg);
-            } else if (msg.isTag("serverTime")) {
+            } else if (tag == TAG_SERVER_TIME) {
                 handleServerTime(msg);
-            } else if (msg.isTag("nextGame")) {
+            } else if (tag == TAG_NEXT_GAME) {
                 handleNextGame(msg);
-            } else if (msg.isTag("getGameParams")) {
+            } else if (tag == TAG_GET_GAME_PARAMS) {
                 handleGetGame(msg);
                 // Get the transactions before the games starts
                 requestTransactions(OP_GAME_STARTS);
@@ -931,23 +1157,23 @@ public class TACAgent implements Task, TACMessageReceiver {
                             : userName + ": Showing game " + nextGameID;
                     display.setGameStatus(status);
                 }
-            } else if (msg.isTag("getGameAuctionIDs")) {
+            } else if (tag == TAG_GET_GAME_AUCTION_IDS) {
                 handleGetAuctions(msg);
-            } else if (msg.isTag("getGameConsts")) {
+            } else if (tag == TAG_GET_GAME_CONSTS) {
                 handleGetConstants(msg);
-            } else if (msg.isTag("submitBid")) {
+            } else if (tag == TAG_SUBMIT_BID) {
                 handleBidSubmission(msg);
-            } else if (msg.isTag("replaceBid")) {
+            } else if (tag == TAG_REPLACE_BID) {
                 handleBidSubmission(msg);
-            } else if (msg.isTag("getQuote")) {
+            } else if (tag == TAG_GET_QUOTE) {
                 handleQuote(msg);
-            } else if (msg.isTag("bidInfo")) {
+            } else if (tag == TAG_BID_INFO) {
                 handleBidInfo(msg);
-            } else if (msg.isTag("transIDs")) {
-                handleTransIDs(msg);
-            } else if (msg.isTag("transInfo")) {
-                handleTransInfo(msg);
-            } else if (msg.isTag("recoverBidIDs")) {
+            } else if (tag == TAG_TRANS_IDS) {
+                transactionSync.transIDsReceived(msg);
+            } else if (tag == TAG_TRANS_INFO) {
+                transactionSync.transInfoReceived(msg);
+            } else if (tag == TAG_RECOVER_BID_IDS) {
                 handleRecoverBidIDs(msg);
             }
         }
@@ -960,44 +1186,95 @@ public class TACAgent implements Task, TACMessageReceiver {
         }
 
         // Set stat info if more than 5 messages sent!
-        if (TACMessage.getMessageCount() > 5) {
+        if (runtime.getMessageCount() > 5) {
             msg.setParameter("stat.avgResponseTime",
-                    "" + TACMessage.getAverageResponseTime());
+                    "" + runtime.getAverageResponseTime());
             msg.setParameter("stat.messageCount",
-                    "" + TACMessage.getMessageCount());
+                    "" + runtime.getMessageCount());
         }
 
         sendMessage(msg, this);
     }
 
-    private void requestQuotes(TACConnection conn, boolean flightQuotes,
-                               boolean hotelQuotes) {
-        // This should be changed so that it will only request those quotes
-        // that are old enough...
-        if (flightQuotes) {
-            for (int i = MIN_FLIGHT; i <= MAX_FLIGHT; i++) {
-                if (!quotes[i].isAuctionClosed()) {
-                    requestQuote(quotes[i], conn, false);
-                }
+    /**
+     * Requests the quotes that the quote scheduler regards as due, as one
+     * batch per auction category, and schedules the next check.
+     */
+    private void requestDueQuotes(TACConnection conn) {
+        long currentTime = getServerTime();
+        for (int category = CAT_FLIGHT; category <= CAT_ENTERTAINMENT; category++) {
+            long due = quoteScheduler.takeDue(currentTime, category, quotes);
+            if (due != 0L) {
+                requestQuotes(conn, category, due);
             }
         }
-        for (int i = MIN_ENTERTAINMENT; i <= MAX_ENTERTAINMENT; i++) {
-            if (!quotes[i].isAuctionClosed()) {
-                requestQuote(quotes[i], conn, false);
+
+        long nextTime = quoteScheduler.getNextDueTime(quotes);
+        if (nextTime > currentTime + QUOTE_CHECK_PERIOD) {
+            nextTime = currentTime + QUOTE_CHECK_PERIOD;
+        }
+        runtime.getDispatcher().addTask(nextTime, "quotes", conn, this);
+    }
+
+    /**
+     * Requests quotes for the auctions (one bit per auction) in the
+     * category as one batch. The category update is reported to the agent
+     * when the whole batch has been answered.
+     */
+    private void requestQuotes(TACConnection conn, int category, long auctions) {
+        QuoteBatch batch = beginQuoteBatch(category);
+        for (int i = 0; i < NO_AUCTIONS; i++) {
+            if ((auctions & (1L << i)) != 0) {
+                requestQuote(quotes[i], conn, batch);
             }
         }
+        if (batch.seal()) {
+            quoteBatchCompleted(batch);
+        }
+    }
 
-        if (hotelQuotes) {
-            for (int i = MIN_HOTEL; i <= MAX_HOTEL; i++) {
-                if (!quotes[i].isAuctionClosed()) {
-                    lastHotelAuction = i;
-                    requestQuote(quotes[i], conn, false);
-                }
+    private QuoteBatch beginQuoteBatch(int category) {
+        synchronized (quoteBatches) {
+            QuoteBatch batch = quoteBatches[category];
+            if (batch == null || !batch.reopen()) {
+                batch = new QuoteBatch(category);
+                quoteBatches[category] = batch;
+            } else if (batch.size() > 0) {
+                log.fine("extending " + batch + " still pending after "
+                        + batch.getAge() + " ms");
+            }
+            return batch;
+        }
+    }
+
+    private void completeQuote(int auction) {
+        QuoteBatch batch;
+        synchronized (quoteBatches) {
+            batch = quoteBatches[getAuctionCategory(auction)];
+        }
+        if (batch != null && batch.complete(auction)) {
+            quoteBatchCompleted(batch);
+        }
+    }
+
+    private void quoteBatchCompleted(QuoteBatch batch) {
+        int category = batch.getCategory();
+        synchronized (quoteBatches) {
+            if (quoteBatches[category] == batch) {
+                quoteBatches[category] = null;
             }
         }
+        try {
+            agent.quoteUpdated(category);
+        } catch (Exception e) {
+            log.log(Level.SEVERE,
+                    "agent could not handle quoteUpdated for category " + category, e);
+        }
     }
 
-    private void requestQuote(Quote quote, TACConnection conn, boolean force) {
+    // The auction is added to the batch before the request is sent since
+    // the reply may arrive before this method returns
+    private void requestQuote(Quote quote, TACConnection conn, QuoteBatch batch) {
         int auction = quote.getAuction();
         int auctionID = auctionIDs[auction];
 
@@ -1006,11 +1283,12 @@ public class TACAgent implements Task, TACMessageReceiver {
 
 //       log.info("requesting quote for " + auctionID);
 
-            if (!force && (pendingQuotes[auction] > 0)
+            if ((pendingQuotes[auction] > 0)
                     && ((pendingQuotes[auction] + QUOTE_TIMEOUT) > currentTime)) {
                 // Quote is already pending and it has not passed sufficient time
                 // to regards a retransmission (no use to request quotes faster
-                // than they arrive)
+                // than they arrive). The pending reply completes this batch.
+                batch.add(auction);
                 long delay = currentTime - pendingQuotes[auction];
                 if (delay > 4000) {
                     // Warn if the quote has been delayed too long
@@ -1021,10 +1299,11 @@ public class TACAgent implements Task, TACMessageReceiver {
 
             } else {
                 pendingQuotes[auction] = currentTime;
+                batch.add(auction);
                 try {
                     TACMessage msg = new TACMessage("getQuote");
                     msg.setParameter("auctionID", auctionID);
-                    Bid bid = bids[auction];
+                    Bid bid = getBid(auction);
                     msg.setUserData(quote);
                     if (bid != null) {
                         int id;
@@ -1044,6 +1323,8 @@ public class TACAgent implements Task, TACMessageReceiver {
                     log.log(Level.SEVERE, "could not request quote for auction "
                             + auction + " (" + getAuctionTypeAsString(auction) + ')', e);
                     pendingQuotes[auction] = 0L;
+                    quoteScheduler.requestFailed(auction, getServerTime());
+                    batch.complete(auction);
                     reset(0, conn);
                 }
             }
@@ -1051,11 +1332,12 @@ public class TACAgent implements Task, TACMessageReceiver {
     }
 
     private void requestBidInfos(TACConnection conn) {
+        AuctionStateStore.Snapshot state = auctionState.getState();
         Bid bid;
         int bidID;
         try {
             for (int i = 0; i < NO_AUCTIONS; i++) {
-                bid = bids[i];
+                bid = state.getBid(i);
                 if (bid != null && ((bidID = bid.getID()) != Bid.NO_ID)
                         && !quotes[i].isAuctionClosed()) {
                     TACMessage msg = new TACMessage("bidInfo");
@@ -1071,34 +1353,10 @@ public class TACAgent implements Task, TACMessageReceiver {
         requestTransactions(OP_NOOP);
     }
 
-    private synchronized void requestTransactions(int call) {
-        if (transActionsNum == 0) {
-            transActions[0] = call;
-            transActionsNum++;
-            TACMessage msg = new TACMessage("transIDs");
-            msg.setParameter("earliestTransID", earliestTransID);
-            lastSentTransactionRequest = System.currentTimeMillis();
-            sendMessage(msg, this);
-        } else {
-            if (waitActionsNum == waitActions.length) {
-                int[] tmp = new int[waitActions.length * 2];
-                System.arraycopy(waitActions, 0, tmp, 0, waitActionsNum);
-                waitActions = tmp;
-            }
-            waitActions[waitActionsNum++] = call;
-
-            long currentTime = System.currentTimeMillis();
-            if ((currentTime - lastSentTransactionRequest) > 30000) {
-                // Too long time after last sent transaction
-                TACMessage msg = new TACMessage("transIDs");
-                msg.setParameter("earliestTransID", earliestTransID);
-                lastSentTransactionRequest = currentTime;
-                log.warning("WARNING: transaction timeout after "
-                        + ((currentTime - lastSentTransactionRequest) / 1000)
-                        + " sec!!! (resending)");
-                sendMessage(msg, this);
-            }
-        }
+    // The operation is performed when the transactions that exist now
+    // have been applied
+    private void requestTransactions(int call) {
+        transactionSync.sync(call);
     }
 
     private void prepareBidMsg(TACMessage msg, Bid bid) {
@@ -1111,14 +1369,29 @@ public class TACAgent implements Task, TACMessageReceiver {
         msg.setUserData(bid);
     }
 
+    // Also called by the reply handlers: a game starts and ends under the
+    // lifecycle lock whichever thread it comes from
     private void nextGameStarts(TACConnection conn) {
+        lifecycleLock.writeLock().lock();
+        try {
+            doNextGameStarts(conn);
+        } finally {
+            lifecycleLock.writeLock().unlock();
+        }
+    }
+
+    private void doNextGameStarts(TACConnection conn) {
         clearAll();
         playingGame = nextGameID;
         startTime = nextGameTime;
         playingGameType = null;
         gameLength = DEFAULT_GAME_LENGTH;
-        earliestTransID = -1;
+        transactionSync.clear();
         enterGameLog(nextGameID);
+        openJournal(nextGameID);
+        if (trace != null) {
+            trace.startGame(nextGameID);
+        }
         log.fine("Starting up game: " + playingGame);
 
         // If illegal state, end game and restart... should not happen?
@@ -1139,14 +1412,24 @@ public class TACAgent implements Task, TACMessageReceiver {
     }
 
     private void gameEnds() {
+        lifecycleLock.writeLock().lock();
+        try {
+            doGameEnds();
+        } finally {
+            lifecycleLock.writeLock().unlock();
+        }
+    }
+
+    private void doGameEnds() {
         log.fine("Game " + nextGameID + " has ended");
         playingGame = -1;
         nextGameID = -1;
         isGameStarted = false;
 
         cancelTimers();
+        closeJournal();
 
-        if (earliestTransID != -1) {
+        if (transactionSync.hasTransactions()) {
             requestTransactions(OP_GAME_ENDS);
         } else {
             handleGameEnd();
@@ -1158,16 +1441,30 @@ public class TACAgent implements Task, TACMessageReceiver {
     }
 
     private synchronized void handleGameEnd() {
+        TACCodec codec = connection != null ? connection.getCodec() : null;
+        if (codec != null) {
+            log.fine("wire statistics for game: " + codec);
+            codec.resetStatistics();
+        }
+        log.fine("quotes fetched before they were available: "
+                + quoteScheduler.getStaleCount() + ", polled unchanged: "
+                + quoteScheduler.getUnchangedCount());
+        log.fine("strategy task lateness:\n" + strategyScheduler.getSummary());
+        log.fine("timer task lateness: " + runtime.getDispatcher().getLateness()
+                + ", queue delay: " + runtime.getDispatcher().getQueueDelay());
+        if (trace != null) {
+            trace.endGame();
+        }
         exitGameLog();
         if (exitAfterGames > 0 && gamesPlayed >= exitAfterGames) {
             // We have played the specified number of games
             log.info("Exit as requested after " + exitAfterGames
                     + " played games");
-            disconnect(500);
+            disconnect(runtime.isStandalone() ? 500 : 0);
             if (rootFileHandler != null) {
                 rootFileHandler.close();
             }
-            System.exit(0);
+            runtime.exit(0);
         }
     }
 
@@ -1227,6 +1524,8 @@ public class TACAgent implements Task, TACMessageReceiver {
             fatalError("Can not handle bid submission: "
                     + commandStatusToString(status), 5000);
         } else {
+            journalBid(bid.getAuction());
+
             // Request Bid info
             TACMessage msg2 = new TACMessage("bidInfo");
             msg2.setParameter("bidID", bid.getID());
@@ -1249,11 +1548,8 @@ public class TACAgent implements Task, TACMessageReceiver {
 
         if (bid.same(activeBid)) {
             activeBid = bid.getReplacing();
-            if (activeBid != null) {
-                bids[auction] = activeBid;
-            } else {
-                bids[auction] = null;
-            }
+            auctionState.setBid(auction, activeBid);
+            journalBid(auction);
         } else if (activeBid != null) {
             Bid child;
             while ((child = activeBid.getReplacing()) != null && !child.same(bid)) {
@@ -1288,152 +1584,73 @@ public class TACAgent implements Task, TACMessageReceiver {
 //     }
     }
 
-    private void handleTransIDs(TACMessage msg) {
-        TACMessage msg2 = null;
-        int oldEarliest = earliestTransID;
-        while (msg.nextTag()) {
-            if (msg.isTag("transID")) {
-                int id = msg.getValueAsInt(-1);
-                if (id > earliestTransID) {
-                    earliestTransID = id;
-                }
-                if (id > oldEarliest) {
-                    msg2 = new TACMessage("transInfo");
-                    msg2.setParameter("transID", id);
-                    sendMessage(msg2, this);
-                }
-            }
+    // Called by the transaction sync for each new transaction in id order
+    void transactionApplied(Transaction trans) {
+        int auction = trans.getAuction();
+        auctionState.addOwn(auction, trans.getQuantity(), trans.getPrice());
+        if (journal != null) {
+            journal.transaction(auction, trans.getQuantity(), trans.getPrice());
         }
-        if (msg2 != null) {
-            // Indicate that this was the last for this transaction sessions
-            msg2.setUserData(this);
-        } else {
-            // Nothing to retrieve
-            callAgent();
+        try {
+            if (tableModel != null) {
+                tableModel.fireTableRowsUpdated(auction, auction);
+            }
+            agent.transaction(trans);
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "agent could not handle transaction "
+                    + trans, e);
         }
     }
 
-    private void handleTransInfo(TACMessage msg) {
-        int quantity = 0;
-        int auction = 0;
-        float price = 0f;
-        int status = NO_ERROR;
-        while (msg.nextTag()) {
-            if (msg.isTag("/transInfo")) {
-                if (status == NO_ERROR) {
-                    Transaction trans = new Transaction(auction, quantity, price);
-                    owns[auction] += quantity;
-                    costs[auction] += quantity * price;
-                    try {
-                        if (tableModel != null) {
-                            tableModel.fireTableRowsUpdated(auction, auction);
-                        }
-                        agent.transaction(trans);
-                    } catch (Exception e) {
-                        log.log(Level.SEVERE, "agent could not handle transaction "
-                                + trans, e);
-                    }
-                } else {
-                    // What should we do here??? FIX THIS!!!
-                }
-            } else if (msg.isTag("quantity")) {
-                quantity = (int) msg.getValueAsFloat(0f);
-            } else if (msg.isTag("price")) {
-                price = msg.getValueAsFloat(0f);
-            } else if (msg.isTag("auctionID")) {
-                auction = getAuctionPos(msg.getValueAsInt(0));
-            } else if (msg.isTag("commandStatus")) {
-                status = msg.getValueAsInt(NO_ERROR);
-            }
+    // Called by the transaction sync when all transactions that existed
+    // when the operation was requested have been applied
+    void transactionsSynced(int ival, int watermark) {
+        // All transactions up to the watermark have now been applied
+        if (journal != null) {
+            journal.transWatermark(watermark);
         }
-        Object obj = msg.getUserData();
-        if (obj != null) {
-            callAgent();
+        if ((OP_CLEAR_BID & ival) != 0) {
+            clearBid(ival - OP_CLEAR_BID);
+            return;
         }
-    }
-
-    private void callAgent() {
-        for (int i = 0; i < transActionsNum; i++) {
-            int ival = transActions[i];
-            if ((OP_CLEAR_BID & ival) != 0) {
-                clearBid(ival - OP_CLEAR_BID);
-            } else {
-                try {
-                    if ((OP_CLOSE_AUCTION & ival) != 0) {
-                        agent.auctionClosed(ival - OP_CLOSE_AUCTION);
-                    } else if (ival == OP_GAME_STARTS) {
-                        // Another game is being played
-                        if (playingGame != lastGamePlayed) {
-                            lastGamePlayed = playingGame;
-                            gamesPlayed++;
-                        }
-                        agent.gameStarted();
-                    } else if (ival == OP_GAME_ENDS) {
-                        agent.gameStopped();
-                    }
-                } catch (Throwable e) {
-                    log.log(Level.SEVERE, "agent could not handle operation " +
-                            ival, e);
-                    // Check if thread was killed
-                    if (e instanceof ThreadDeath) {
-                        throw (ThreadDeath) e;
-                    }
-                }
-
-                if (ival == OP_GAME_ENDS) {
-                    handleGameEnd();
-                } else if (ival == OP_GAME_STARTS) {
-                    TimeDispatcher d = TimeDispatcher.getDefault();
-                    long currentTime = getServerTime();
-                    isGameStarted = true;
-                    d.addTask(currentTime + INFO_UPDATE_PERIOD,
-                            "quotes", connection, this);
-                    d.addTask(currentTime + (int) (1.5 * INFO_UPDATE_PERIOD),
-                            "bids", connection, this);
-                    if (printOwnDelay > 0) {
-                        d.addTask(currentTime + printOwnDelay,
-                                "printOwn", connection, this);
-                    }
-
-                    // Start the hotel quote fetch (one second after update)
-                    long nextHotelTime = startTime + 61000;
-                    if (nextHotelTime < currentTime) {
-                        nextHotelTime += 60000 * ((currentTime - nextHotelTime) / 60000);
-                    }
-                    long nextFlightTime = startTime + 11000;
-                    if (nextFlightTime < currentTime) {
-                        nextFlightTime += 10000 * ((currentTime - nextFlightTime) / 10000);
-                    }
-
-                    TimeDispatcher.getDefault().addTask(nextHotelTime,
-                            "hotelQuotes",
-                            connection, this);
-                    TimeDispatcher.getDefault().addTask(nextFlightTime,
-                            "flightQuotes",
-                            connection, this);
-                    requestQuotes(connection, true, true);
+        try {
+            if ((OP_CLOSE_AUCTION & ival) != 0) {
+                agent.auctionClosed(ival - OP_CLOSE_AUCTION);
+            } else if (ival == OP_GAME_STARTS) {
+                // Another game is being played
+                if (playingGame != lastGamePlayed) {
+                    lastGamePlayed = playingGame;
+                    gamesPlayed++;
                 }
+                agent.gameStarted();
+            } else if (ival == OP_GAME_ENDS) {
+                agent.gameStopped();
+            }
+        } catch (Throwable e) {
+            log.log(Level.SEVERE, "agent could not handle operation " +
+                    ival, e);
+            // Check if thread was killed
+            if (e instanceof ThreadDeath) {
+                throw (ThreadDeath) e;
             }
         }
-        swapTransactions();
-    }
 
-    private synchronized void swapTransactions() {
-        if (waitActionsNum == 0) {
-            transActionsNum = 0;
-            // Do nothing more...
-        } else {
-            // Set up actions to call after next transaction
-            transActionsNum = waitActionsNum;
-            int[] tmp = transActions;
-            transActions = waitActions;
-            waitActions = tmp;
-            waitActionsNum = 0;
-
-            // Request new transaction!!!
-            TACMessage msg = new TACMessage("transIDs");
-            msg.setParameter("earliestTransID", earliestTransID);
-            sendMessage(msg, this);
+        if (ival == OP_GAME_ENDS) {
+            handleGameEnd();
+        } else if (ival == OP_GAME_STARTS) {
+            TimeDispatcher d = runtime.getDispatcher();
+            long currentTime = getServerTime();
+            isGameStarted = true;
+            d.addTask(currentTime + (int) (1.5 * INFO_UPDATE_PERIOD),
+                    "bids", connection, this);
+            if (printOwnDelay > 0) {
+                d.addTask(currentTime + printOwnDelay,
+                        "printOwn", connection, this);
+            }
+
+            // Fetch all quotes now and then as they become due
+            quoteScheduler.reset(currentTime, startTime);
+            requestDueQuotes(connection);
         }
     }
 
@@ -1457,20 +1674,26 @@ public class TACAgent implements Task, TACMessageReceiver {
 
         int oldAuctionStatus = quote.getAuctionStatus();
         while (msg.nextTag()) {
-            if (msg.isTag("lastAskPrice")) {
+            int tag = msg.getTagID();
+            if (tag == TAG_LAST_ASK_PRICE) {
                 quote.setAskPrice(msg.getValueAsFloat(0f));
-            } else if (msg.isTag("lastBidPrice")) {
+            } else if (tag == TAG_LAST_BID_PRICE) {
                 quote.setBidPrice(msg.getValueAsFloat(0f));
-            } else if (msg.isTag("hypotheticalQuantityWon")) {
+            } else if (tag == TAG_HQW) {
                 quote.setHQW(msg.getValueAsInt(-1));
-            } else if (msg.isTag("auctionStatus")) {
+            } else if (tag == TAG_AUCTION_STATUS) {
                 quote.setAuctionStatus(msg.getValueAsInt(Quote.AUCTION_INITIALIZING));
-            } else if (msg.isTag("nextQuoteTime")) {
+            } else if (tag == TAG_NEXT_QUOTE_TIME) {
                 quote.setNextQuoteTime(1000 * msg.getValueAsLong(0));
-            } else if (msg.isTag("auctionStatus")) {
+            } else if (tag == TAG_LAST_QUOTE_TIME) {
                 quote.setLastQuoteTime(1000 * msg.getValueAsLong(0));
             }
         }
+        auctionState.updateQuote(quote);
+        if (journal != null) {
+            journal.quote(quote);
+        }
+        quoteScheduler.quoteReceived(quote, getServerTime());
 
         try {
             agent.quoteUpdated(quote);
@@ -1479,14 +1702,7 @@ public class TACAgent implements Task, TACMessageReceiver {
                     "agent could not handle quoteUpdated for " + quote, e);
         }
 
-        try {
-            if (isLastAuction(quote)) {
-                agent.quoteUpdated(getAuctionCategory(auction));
-            }
-        } catch (Exception e) {
-            log.log(Level.SEVERE,
-                    "agent could not handle quoteUpdated for " + quote, e);
-        }
+        completeQuote(auction);
         if (quote.isAuctionClosed()
                 && (oldAuctionStatus != Quote.AUCTION_CLOSED)) {
             requestTransactions(OP_CLOSE_AUCTION + auction);
@@ -1496,25 +1712,15 @@ public class TACAgent implements Task, TACMessageReceiver {
         }
     }
 
-    private boolean isLastAuction(Quote quote) {
-        int auction = quote.getAuction();
-        int category = getAuctionCategory(auction);
-        long serverTime, quoteTime;
-        if (category == CAT_ENTERTAINMENT) {
-            return auction == MAX_ENTERTAINMENT;
-        } else if (category == CAT_FLIGHT) {
-            return auction == MAX_FLIGHT;
-        } else if (!quote.isAuctionClosed() &&
-                (quoteTime = quote.getNextQuoteTime()) > 0 &&
-                (serverTime = getServerTime()) > quoteTime) {
-            lastHotelAuction = auction;
-            log.fine("rerequesting hotel quote for auction " + auction);
-            TimeDispatcher.getDefault()
-                    .addTask(serverTime + 1000, quote, connection, this);
-            return false;
-        } else {
-            return auction == lastHotelAuction;
-        }
+    // A failed quote request must still complete its batch
+    private void handleQuoteError(TACMessage msg) {
+        Object obj = msg.getUserData();
+        int auction = obj instanceof Quote
+                ? ((Quote) obj).getAuction()
+                : ((Bid) obj).getAuction();
+        pendingQuotes[auction] = 0L;
+        quoteScheduler.requestFailed(auction, getServerTime());
+        completeQuote(auction);
     }
 
     private void handleBidInfo(TACMessage msg) {
@@ -1591,6 +1797,7 @@ public class TACAgent implements Task, TACMessageReceiver {
                 }
             }
             int row = bid.getAuction();
+            journalBid(row);
             if (tableModel != null) {
                 tableModel.fireTableRowsUpdated(row, row);
             }
@@ -1612,6 +1819,7 @@ public class TACAgent implements Task, TACMessageReceiver {
                 } else {
                     changeBid(auction, activeBid, newBid);
                 }
+                journalBid(auction);
                 if (isActiveBid) {
                     try {
                         agent.bidUpdated(newBid);
@@ -1632,12 +1840,12 @@ public class TACAgent implements Task, TACMessageReceiver {
 
     private synchronized void recoverBid(Bid bid) {
         int auction = bid.getAuction();
-        if (bids[auction] != null) {
+        if (getBid(auction) != null) {
             log.warning("bid already exist for auction "
                     + getAuctionTypeAsString(auction)
                     + " when recovering bid");
         } else {
-            bids[auction] = bid;
+            auctionState.setBid(auction, bid);
             log.finer("bid " + bid.getID() + " for "
                     + getAuctionTypeAsString(auction) + " has been recovered");
         }
@@ -1645,15 +1853,15 @@ public class TACAgent implements Task, TACMessageReceiver {
 
     private synchronized void updateBid(Bid bid) {
         int auction = bid.getAuction();
-        bid.setReplacing(bids[auction]);
-        bids[auction] = bid;
+        bid.setReplacing(getBid(auction));
+        auctionState.setBid(auction, bid);
     }
 
     private synchronized void changeBid(int auction, Bid bid, Bid newBid) {
         Bid activeBid = getBid(auction);
         if (activeBid != null) {
             if (activeBid.same(bid)) {
-                bids[auction] = newBid;
+                auctionState.setBid(auction, newBid);
             } else {
                 Bid child;
                 while ((child = activeBid.getReplacing()) != null && !child.same(bid)) {
@@ -1670,6 +1878,135 @@ public class TACAgent implements Task, TACMessageReceiver {
         changeBid(auction, bid, null);
     }
 
+
+    // -------------------------------------------------------------------
+    // Game journal
+    // -------------------------------------------------------------------
+
+    private void openJournal(int gameID) {
+        journalRecovered = false;
+        GameJournal previous = this.journal;
+        if (previous != null) {
+            // Restarted without the game ending (for example after a
+            // reconnect): the game is not over, so it is not marked ended
+            journal = null;
+            previous.close();
+        }
+        if (!useJournal) {
+            return;
+        }
+        File file = new File(childLogPrefix + '_' + userName + "_GAME_"
+                + gameID + ".journal");
+        try {
+            long start = System.nanoTime();
+            String server = host + ':' + port;
+            GameJournal j = GameJournal.open(file, gameID);
+            JournalRecovery recovery = new JournalRecovery();
+            if (j.getRecordCount() > 0 && !j.isEnded()
+                    && recovery.accepts(j, server, startTime)) {
+                // The agent has been restarted during the game
+                j.replay(recovery);
+                journalRecovered = true;
+                log.info("restored game " + gameID + " from "
+                        + j.getRecordCount() + " journal records in "
+                        + ((System.nanoTime() - start) / 1000) + " us");
+            } else {
+                // A new journal, an ended game or another game with the
+                // same id: the records are not appended to
+                j.clear(server, startTime);
+            }
+            journal = j;
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "could not open game journal " + file, e);
+        }
+    }
+
+    private void closeJournal() {
+        GameJournal j = this.journal;
+        if (j != null) {
+            journal = null;
+            j.gameEnded();
+            j.close();
+        }
+    }
+
+    // Records the active bid of the auction (if it has been assigned an id)
+    private void journalBid(int auction) {
+        if (journal != null) {
+            Bid bid = getBid(auction);
+            if (bid == null) {
+                journal.bidRemoved(auction);
+            } else if (bid.getID() != Bid.NO_ID) {
+                journal.bid(bid);
+            }
+        }
+    }
+
+    // Folds the journal of the current game into the agent state
+    private class JournalRecovery implements GameJournal.Listener {
+
+        // Game ids are reused by restarted servers (and by other servers)
+        boolean accepts(GameJournal j, String server, long gameStartTime) {
+            if (server.equals(j.getServer())
+                    && gameStartTime == j.getGameStartTime()) {
+                return true;
+            }
+            log.warning("discarding journal " + j.getFile() + " of game "
+                    + j.getGameID() + " at " + j.getServer() + " started "
+                    + j.getGameStartTime() + " (playing at " + server
+                    + " started " + gameStartTime + ')');
+            return false;
+        }
+
+        public void quote(int auction, float askPrice, float bidPrice, int hqw,
+                          int status, long lastQuoteTime, long nextQuoteTime) {
+            Quote quote = quotes[auction];
+            quote.setAskPrice(askPrice);
+            quote.setBidPrice(bidPrice);
+            quote.setHQW(hqw);
+            quote.setAuctionStatus(status);
+            quote.setLastQuoteTime(lastQuoteTime);
+            quote.setNextQuoteTime(nextQuoteTime);
+            auctionState.updateQuote(quote);
+        }
+
+        public void transaction(int auction, int quantity, float price) {
+            auctionState.addOwn(auction, quantity, price);
+        }
+
+        public void endowment(int auction, int quantity) {
+            auctionState.addOwn(auction, quantity, 0f);
+        }
+
+        public void own(int auction, int own) {
+            auctionState.setOwn(auction, own);
+        }
+
+        public void allocation(int auction, int allocation) {
+            auctionState.setAllocation(auction, allocation);
+        }
+
+        public void bid(int auction, int bidID, int processingState,
+                        String bidString, String bidHash) {
+            Bid bid = new Bid(auction);
+            bid.setID(bidID);
+            if (bidString != null) {
+                bid.setBidString(bidString);
+            }
+            bid.setBidHash(bidHash);
+            bid.setProcessingState(processingState);
+            auctionState.setBid(auction, bid);
+        }
+
+        public void bidRemoved(int auction) {
+            auctionState.setBid(auction, null);
+        }
+
+        public void transWatermark(int transID) {
+            transactionSync.setWatermark(transID);
+        }
+    }
+
     private void handleGetAuctions(TACMessage msg) {
         while (msg.nextTag()) {
             if (msg.isTag("auctionIDs")) {
@@ -1723,8 +2060,9 @@ public class TACAgent implements Task, TACMessageReceiver {
         }
 
         // Check if the agent already have any bids in the game i.e.
-        // if the agent has been restarted during a game
-        if ((getServerTime() - startTime) > 2500) {
+        // if the agent has been restarted during a game (unless they
+        // already have been restored from the game journal)
+        if ((getServerTime() - startTime) > 2500 && !journalRecovered) {
             msg = new TACMessage("recoverBidIDs");
             sendMessage(msg, this);
         }
@@ -1799,7 +2137,10 @@ public class TACAgent implements Task, TACMessageReceiver {
                 int quantity = -1;
                 while (msg.nextTag() && !msg.isTag("/ticketEndowments")) {
                     if (msg.isTag("/ticketEndowmentTuple")) {
-                        addOwn(CAT_ENTERTAINMENT, type, day, quantity);
+                        // Endowments restored from the journal are already owned
+                        if (!journalRecovered) {
+                            addOwn(CAT_ENTERTAINMENT, type, day, quantity);
+                        }
                     } else if (msg.isTag("type")) {
                         type = msg.getValueAsInt(-1);
                     } else if (msg.isTag("day")) {
@@ -1826,7 +2167,7 @@ public class TACAgent implements Task, TACMessageReceiver {
         }
 
         if (gameRunning) {
-            TimeDispatcher.getDefault()
+            runtime.getDispatcher()
                     .addTask(startTime + 1000 + gameLength, "gameEnds",
                             connection, this);
         }
@@ -1872,7 +2213,10 @@ public class TACAgent implements Task, TACMessageReceiver {
 
     private void addOwn(int category, int type, int day, int quantity) {
         int pos = getAuctionFor(category, type, day);
-        owns[pos] += quantity;
+        auctionState.addOwn(pos, quantity, 0f);
+        if (journal != null) {
+            journal.endowment(pos, quantity);
+        }
     }
 
     private void addAuction(int category, int type, int day, int id) {
@@ -1882,7 +2226,7 @@ public class TACAgent implements Task, TACMessageReceiver {
                 + "): " + id);
     }
 
-    private int getAuctionPos(int id) {
+    int getAuctionPos(int id) {
         for (int i = 0; i < NO_AUCTIONS; i++) {
             if (auctionIDs[i] == id) {
                 return i;
@@ -1948,7 +2292,7 @@ public class TACAgent implements Task, TACMessageReceiver {
                     long sleepTime = (long) (60 * (10000 + Math.random() * 2000));
                     reset(sleepTime < delay ? sleepTime : delay, connection);
                 } else {
-                    TimeDispatcher.getDefault()
+                    runtime.getDispatcher()
                             .addTask(nextGameTime + 1000, "gameStarts", connection, this);
                 }
             }
@@ -1971,7 +2315,7 @@ public class TACAgent implements Task, TACMessageReceiver {
                 // Make sure the log formatter uses the server time instead of
                 // local time
                 logFormatter.setTimeDiff(timeDiff);
-                TimeDispatcher.getDefault().setTimeDiff(timeDiff);
+                runtime.getDispatcher().setTimeDiff(timeDiff);
             }
         }
     }
@@ -2000,7 +2344,7 @@ public class TACAgent implements Task, TACMessageReceiver {
         Logger root = Logger.getLogger("se");
         root.setLevel(logLevel);
 
-        LogFormatter.setConsoleLevel(consoleLogLevel);
+        runtime.setConsoleLevel(consoleLogLevel);
 //     LogFormatter.setLevelForAllHandlers(logLevel);
 
         if (fileLevel < 6) {
@@ -2008,6 +2352,7 @@ public class TACAgent implements Task, TACMessageReceiver {
                 this.rootFileHandler = new FileHandler(logPrefix + "%g.log",
                         1000000, 10);
                 this.rootFileHandler.setLevel(fileLogLevel);
+                this.rootFileHandler.setFilter(runtime.getLogFilter());
                 root.addHandler(this.rootFileHandler);
             } catch (IOException ioe) {
                 log.log(Level.SEVERE, "could not log to file", ioe);
@@ -2020,7 +2365,24 @@ public class TACAgent implements Task, TACMessageReceiver {
         this.logFormatter = new LogFormatter();
         // Set shorter names for the log
         this.logFormatter.setAliasLevel(2);
-        LogFormatter.setFormatterForAllHandlers(this.logFormatter);
+        if (runtime.isStandalone()) {
+            LogFormatter.setFormatterForAllHandlers(this.logFormatter);
+        } else if (this.rootFileHandler != null) {
+            // The console is shared with the other agents in the JVM
+            this.rootFileHandler.setFormatter(this.logFormatter);
+        }
+    }
+
+    // Frees what a hosted agent holds in the JVM when it exits (a
+    // standalone agent exits the JVM instead)
+    private void release() {
+        messageDispatcher.stop();
+        exitGameLog();
+        if (rootFileHandler != null) {
+            Logger.getLogger("").removeHandler(rootFileHandler);
+            Logger.getLogger("se").removeHandler(rootFileHandler);
+            rootFileHandler.close();
+        }
     }
 
     private synchronized void enterGameLog(int gameID) {
@@ -2034,6 +2396,7 @@ public class TACAgent implements Task, TACMessageReceiver {
                 childFileHandler = new FileHandler(name, true);
                 childFileHandler.setFormatter(logFormatter);
                 childFileHandler.setLevel(rootFileHandler.getLevel());
+                childFileHandler.setFilter(runtime.getLogFilter());
                 childFileName = name;
                 root.addHandler(childFileHandler);
                 root.removeHandler(rootFileHandler);
@@ -2100,12 +2463,12 @@ public class TACAgent implements Task, TACMessageReceiver {
                 case 4:
                     return quotes[row].getAuctionStatusAsString();
                 case 5:
-                    Bid bd = bids[row];
+                    Bid bd = getBid(row);
                     return (bd != null)
                             ? bd.getProcessingStateAsString()
                             : "no bid";
                 case 6:
-                    Bid bid = bids[row];
+                    Bid bid = getBid(row);
                     if (bid != null) {
                         return bid.getBidString();
                     }
@@ -2115,11 +2478,11 @@ public class TACAgent implements Task, TACMessageReceiver {
                     return hqw >= 0 ? Integer.toString(hqw) : "";
                 }
                 case 8:
-                    return Integer.toString(allocate[row]);
+                    return Integer.toString(getAllocation(row));
                 case 9:
-                    return Integer.toString(owns[row]);
+                    return Integer.toString(getOwn(row));
                 case 10:
-                    return Float.toString(costs[row]);
+                    return Float.toString(auctionState.getState().getCost(row));
                 default:
                     return "-";
             }
@@ -2136,7 +2499,7 @@ public class TACAgent implements Task, TACMessageReceiver {
         log.severe("* FATAL ERROR: " + message);
         log.severe("************************************************************");
         disconnect(500);
-        System.exit(1);
+        runtime.exit(1);
     }
 
     void fatalError(String message, long delay) {
@@ -2164,6 +2527,10 @@ public class TACAgent implements Task, TACMessageReceiver {
 //       + "    -gameType <type>          set the game type to play\n"
                         + "    -exitAfterGames <games>   set the number of games to play\n"
                         + "    -connection <className>   set the TAC connection handler\n"
+                        + "    -codec <className>        set the wire codec (socket connections)\n"
+                        + "    -trace                    record the server messages of each game\n"
+                        + "    -replayTrace <file>       the game trace or log to replay\n"
+                        + "    -simSeed <seed>           seed the simulated games\n"
                         + "    -consoleLogLevel <level>  set the console log level\n"
                         + "    -fileLogLevel <level>     set the file log level\n"
                         + "    -logPrefix <prefix>       set the prefix to log files\n"
@@ -2193,7 +2560,8 @@ public class TACAgent implements Task, TACMessageReceiver {
         } catch (Exception e) {
             log.log(Level.SEVERE, "could not create AgentImpl object of class "
                     + agentClass, e);
-            new TACAgent(null).fatalError("no agent implementation available");
+            new TACAgent(null, AgentRuntime.createStandalone())
+                    .fatalError("no agent implementation available");
             return;
         }
 
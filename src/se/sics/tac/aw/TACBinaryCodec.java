@@ -0,0 +1,448 @@
+package se.sics.tac.aw;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Compact binary wire format for use against servers (or the
+ * {@link TACCodecProxy}) that understand it. Each message is a frame
+ * consisting of its payload length as a varint followed by the payload.
+ * The payload is the XML element tree written as a sequence of tokens:
+ * <pre>
+ *   token = varint((code &lt;&lt; 3) | kind)
+ *   OPEN   code is the tag id (0: the name follows as a string)
+ *   CLOSE  closes the innermost open element
+ *   INT    zigzag varint value
+ *   FLOAT  4 byte IEEE 754 value (big endian)
+ *   TEXT   varint length followed by the bytes
+ * </pre>
+ * Tag ids come from a fixed dictionary shared by both ends. New names may
+ * only be appended to the dictionary. Values are only written as numbers
+ * when the number formats back to the exact same text, so translating
+ * between XML and binary is lossless (apart from whitespace between
+ * elements and XML declarations).
+ */
+public class TACBinaryCodec extends TACCodec {
+
+    private static final int OPEN = 0;
+    private static final int CLOSE = 1;
+    private static final int INT = 2;
+    private static final int FLOAT = 3;
+    private static final int TEXT = 4;
+
+    /**
+     * The tag dictionary. The id of a name is its index + 1.
+     */
+    private static final String[] DICTIONARY = {
+            // Requests and replies
+            "auth", "quit", "tacerror", "serverTime", "nextGame",
+            "getGameParams", "getGameAuctionIDs", "getGameConsts",
+            "submitBid", "replaceBid", "getQuote", "bidInfo",
+            "transIDs", "transInfo", "recoverBidIDs",
+            // Parameters and reply elements
+            "userName", "userPW", "userID", "gameID", "gameType",
+            "gameLength", "startTime", "time", "auctionID", "auctionIDs",
+            "bidID", "bidString", "bidHash", "rejectReason", "commandStatus",
+            "processingState", "timeProcessed", "timeClosed", "expireMode",
+            "expireTime", "divisible", "transID", "earliestTransID",
+            "askPrice", "bidPrice", "hypotheticalQuantityWon",
+            "lastAskPrice", "lastBidPrice", "auctionStatus", "nextQuoteTime",
+            "lastQuoteTime", "finalPrice", "list", "type", "day", "category",
+            "ID", "client", "arrival", "departure", "hotel", "price",
+            "quantity", "buyer", "seller", "status",
+            "TACAuctionTuple", "auctionBidIDsTuple", "clientPrefTuple",
+            "clientPreferences", "ticketEndowmentTuple", "ticketEndowments",
+            "ticketPreferences", "typePriceTuple"
+    };
+
+    private static final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+    static {
+        for (int i = 0; i < DICTIONARY.length; i++) {
+            ids.put(DICTIONARY[i], Integer.valueOf(i + 1));
+        }
+    }
+
+    // Frame being received
+    private int frameSize = -1;
+    private int sizeShift = 0;
+    private int sizeValue = 0;
+    private byte[] frame = new byte[1024];
+    private int frameLength = 0;
+
+    // Reused encoding and decoding buffers
+    private final Bytes encoded = new Bytes(512);
+    private final Bytes decoded = new Bytes(1024);
+    private String[] names = new String[16];
+
+    protected synchronized ByteBuffer encodeMessage(TACMessage msg) {
+        Bytes out = encoded;
+        out.length = 0;
+        writeOpen(out, msg.getType());
+        for (int i = 0, n = msg.getParameterCount(); i < n; i++) {
+            writeOpen(out, msg.getParameterName(i));
+            String value = msg.getParameterString(i);
+            if (value == null) {
+                out.putVarint(INT);
+                out.putVarlong(zigzag(msg.getParameterInt(i)));
+            } else {
+                byte[] text = ascii(value);
+                writeValue(out, text, 0, text.length);
+            }
+            out.putVarint(CLOSE);
+        }
+        out.putVarint(CLOSE);
+        msg.setTimeSent();
+        return toFrame(out);
+    }
+
+    protected byte[] decodeMessage(ByteBuffer in) {
+        while (frameSize < 0) {
+            if (!in.hasRemaining()) {
+                return null;
+            }
+            int b = in.get();
+            sizeValue |= (b & 0x7f) << sizeShift;
+            sizeShift += 7;
+            if ((b & 0x80) == 0) {
+                frameSize = sizeValue;
+                sizeValue = 0;
+                sizeShift = 0;
+            }
+        }
+        int len = Math.min(frameSize - frameLength, in.remaining());
+        frame = append(frame, frameLength, in, len);
+        frameLength += len;
+        if (frameLength < frameSize) {
+            return null;
+        }
+        byte[] xml = toXml(frame, frameSize);
+        frameSize = -1;
+        frameLength = 0;
+        return xml;
+    }
+
+    /**
+     * Translates a binary payload into XML.
+     */
+    public synchronized byte[] toXml(byte[] payload, int length) {
+        Bytes out = decoded;
+        out.length = 0;
+        int depth = 0;
+        int[] pos = {0};
+        while (pos[0] < length) {
+            int token = readVarint(payload, pos);
+            switch (token & 7) {
+                case OPEN: {
+                    int code = token >>> 3;
+                    String name;
+                    if (code == 0) {
+                        int len = readVarint(payload, pos);
+                        name = new String(payload, pos[0], len, StandardCharsets.ISO_8859_1);
+                        pos[0] += len;
+                    } else if (code <= DICTIONARY.length) {
+                        name = DICTIONARY[code - 1];
+                    } else {
+                        throw new IllegalStateException("unknown tag id " + code);
+                    }
+                    if (depth == names.length) {
+                        String[] tmp = new String[depth * 2];
+                        System.arraycopy(names, 0, tmp, 0, depth);
+                        names = tmp;
+                    }
+                    names[depth++] = name;
+                    out.put('<');
+                    out.putAscii(name);
+                    out.put('>');
+                    break;
+                }
+                case CLOSE:
+                    if (depth == 0) {
+                        throw new IllegalStateException("unbalanced close tag");
+                    }
+                    out.put('<');
+                    out.put('/');
+                    out.putAscii(names[--depth]);
+                    out.put('>');
+                    names[depth] = null;
+                    break;
+                case INT:
+                    out.putAscii(Long.toString(unzigzag(readVarlong(payload, pos))));
+                    break;
+                case FLOAT: {
+                    int p = pos[0];
+                    int bits = ((payload[p] & 0xff) << 24) | ((payload[p + 1] & 0xff) << 16)
+                            | ((payload[p + 2] & 0xff) << 8) | (payload[p + 3] & 0xff);
+                    pos[0] = p + 4;
+                    out.putAscii(Float.toString(Float.intBitsToFloat(bits)));
+                    break;
+                }
+                case TEXT: {
+                    int len = readVarint(payload, pos);
+                    out.put(payload, pos[0], len);
+                    pos[0] += len;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("unknown token " + token);
+            }
+        }
+        byte[] xml = new byte[out.length];
+        System.arraycopy(out.data, 0, xml, 0, out.length);
+        return xml;
+    }
+
+    /**
+     * Translates an XML message (without the terminating NUL) into a
+     * binary frame.
+     */
+    public synchronized ByteBuffer fromXml(byte[] xml, int length) {
+        Bytes out = encoded;
+        out.length = 0;
+        int i = 0;
+        while (i < length) {
+            if (xml[i] == '<') {
+                int end = indexOf(xml, '>', i, length);
+                if (end < 0) {
+                    throw new IllegalArgumentException("unterminated tag");
+                }
+                byte next = i + 1 < end ? xml[i + 1] : 0;
+                if (next == '?' || next == '!') {
+                    // Declarations and comments are not needed by the parser
+                } else if (next == '/') {
+                    out.putVarint(CLOSE);
+                } else {
+                    boolean empty = xml[end - 1] == '/';
+                    int nameEnd = i + 1;
+                    while (nameEnd < end && xml[nameEnd] != ' ' && xml[nameEnd] != '/') {
+                        nameEnd++;
+                    }
+                    writeOpen(out, new String(xml, i + 1, nameEnd - i - 1,
+                            StandardCharsets.ISO_8859_1));
+                    if (empty) {
+                        out.putVarint(CLOSE);
+                    }
+                }
+                i = end + 1;
+            } else {
+                int end = indexOf(xml, '<', i, length);
+                if (end < 0) {
+                    end = length;
+                }
+                // Whitespace between elements is dropped but whitespace
+                // values are kept
+                if (!isWhitespace(xml, i, end)
+                        || (end + 1 < length && xml[end + 1] == '/')) {
+                    writeValue(out, xml, i, end);
+                }
+                i = end;
+            }
+        }
+        return toFrame(out);
+    }
+
+    private static void writeOpen(Bytes out, String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            out.putVarint((id.intValue() << 3) | OPEN);
+        } else {
+            out.putVarint(OPEN);
+            out.putVarint(name.length());
+            out.putAscii(name);
+        }
+    }
+
+    private static void writeValue(Bytes out, byte[] text, int start, int end) {
+        if (isInteger(text, start, end)) {
+            out.putVarint(INT);
+            out.putVarlong(zigzag(parseLong(text, start, end)));
+        } else if (isFloat(text, start, end)) {
+            String value = new String(text, start, end - start,
+                    StandardCharsets.ISO_8859_1);
+            out.putVarint(FLOAT);
+            int bits = Float.floatToIntBits(Float.parseFloat(value));
+            out.put(bits >>> 24);
+            out.put(bits >>> 16);
+            out.put(bits >>> 8);
+            out.put(bits);
+        } else {
+            out.putVarint(TEXT);
+            out.putVarint(end - start);
+            out.put(text, start, end - start);
+        }
+    }
+
+    // Integers are only encoded as numbers if they format back to the same text
+    private static boolean isInteger(byte[] text, int start, int end) {
+        int i = start;
+        if (i < end && text[i] == '-') {
+            i++;
+        }
+        int digits = end - i;
+        if (digits == 0 || digits > 18 || (text[i] == '0' && (digits > 1 || i > start))) {
+            return false;
+        }
+        for (; i < end; i++) {
+            if (text[i] < '0' || text[i] > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isFloat(byte[] text, int start, int end) {
+        int dot = -1;
+        for (int i = start; i < end; i++) {
+            byte c = text[i];
+            if (c == '.') {
+                if (dot >= 0) {
+                    return false;
+                }
+                dot = i;
+            } else if ((c < '0' || c > '9') && !(c == '-' && i == start)) {
+                return false;
+            }
+        }
+        if (dot < 0 || end - start > 12) {
+            return false;
+        }
+        String value = new String(text, start, end - start,
+                StandardCharsets.ISO_8859_1);
+        try {
+            return Float.toString(Float.parseFloat(value)).equals(value);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static long parseLong(byte[] text, int start, int end) {
+        boolean negative = text[start] == '-';
+        long value = 0;
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            value = value * 10 + (text[i] - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    private static boolean isWhitespace(byte[] text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (text[i] > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] data, int c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int readVarint(byte[] data, int[] pos) {
+        return (int) readVarlong(data, pos);
+    }
+
+    private static long readVarlong(byte[] data, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        int p = pos[0];
+        byte b;
+        do {
+            b = data[p++];
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        pos[0] = p;
+        return value;
+    }
+
+    // Prefixes the payload with its length and copies it into a buffer
+    private static ByteBuffer toFrame(Bytes payload) {
+        int size = payload.length + 5;
+        ByteBuffer buffer = size <= TACMessageTemplate.BUFFER_SIZE
+                ? TACMessageTemplate.acquire()
+                : ByteBuffer.allocate(size);
+        int len = payload.length;
+        while ((len & ~0x7f) != 0) {
+            buffer.put((byte) ((len & 0x7f) | 0x80));
+            len >>>= 7;
+        }
+        buffer.put((byte) len);
+        buffer.put(payload.data, 0, payload.length);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] ascii(String text) {
+        byte[] data = new byte[text.length()];
+        for (int i = 0, n = data.length; i < n; i++) {
+            data[i] = (byte) text.charAt(i);
+        }
+        return data;
+    }
+
+    /**
+     * Growable byte array used for encoding.
+     */
+    private static class Bytes {
+        byte[] data;
+        int length;
+
+        Bytes(int capacity) {
+            data = new byte[capacity];
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > data.length) {
+                byte[] tmp = new byte[Math.max(data.length * 2, length + extra)];
+                System.arraycopy(data, 0, tmp, 0, length);
+                data = tmp;
+            }
+        }
+
+        void put(int b) {
+            ensure(1);
+            data[length++] = (byte) b;
+        }
+
+        void put(byte[] src, int start, int len) {
+            ensure(len);
+            System.arraycopy(src, start, data, length, len);
+            length += len;
+        }
+
+        void putAscii(String text) {
+            int len = text.length();
+            ensure(len);
+            for (int i = 0; i < len; i++) {
+                data[length++] = (byte) text.charAt(i);
+            }
+        }
+
+        void putVarint(int value) {
+            putVarlong(value & 0xffffffffL);
+        }
+
+        void putVarlong(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                data[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            data[length++] = (byte) value;
+        }
+    }
+}
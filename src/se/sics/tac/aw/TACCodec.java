@@ -0,0 +1,127 @@
+package se.sics.tac.aw;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wire format used by a socket connection to the server. A codec encodes
+ * outgoing messages into buffers and extracts received messages from the
+ * byte stream. Received messages are always returned as XML since that is
+ * what {@link TACMessage} parses.
+ * <p>
+ * A codec instance holds the framing state of one connection and is only
+ * decoded from by that connection's reader thread. The codec also counts
+ * the bytes and messages on the wire and the time spent decoding.
+ */
+public abstract class TACCodec {
+
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong messagesOut = new AtomicLong();
+    private long bytesIn;
+    private long messagesIn;
+    private long decodeTime;
+
+    /**
+     * Creates the codec with the specified class name (XML if
+     * <code>null</code>).
+     */
+    public static TACCodec createCodec(String className) {
+        if (className == null) {
+            return new TACXmlCodec();
+        }
+        try {
+            return (TACCodec) Class.forName(className).newInstance();
+        } catch (Exception e) {
+            throw new IllegalArgumentException("could not create codec " + className, e);
+        }
+    }
+
+    /**
+     * Encodes the message and returns a flipped buffer ready to be written.
+     * The buffer may be returned to {@link TACMessageTemplate#release} when
+     * written.
+     */
+    public final ByteBuffer encode(TACMessage msg) {
+        ByteBuffer buffer = encodeMessage(msg);
+        bytesOut.addAndGet(buffer.remaining());
+        messagesOut.incrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Consumes bytes from the buffer until a complete message has been
+     * received or the buffer is empty.
+     *
+     * @return the received message as XML or <code>null</code> if more
+     * data is needed
+     */
+    public final byte[] decode(ByteBuffer in) {
+        long startTime = System.nanoTime();
+        int start = in.position();
+        byte[] msg = decodeMessage(in);
+        synchronized (this) {
+            bytesIn += in.position() - start;
+            decodeTime += System.nanoTime() - startTime;
+            if (msg != null) {
+                messagesIn++;
+            }
+        }
+        return msg;
+    }
+
+    protected abstract ByteBuffer encodeMessage(TACMessage msg);
+
+    protected abstract byte[] decodeMessage(ByteBuffer in);
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    public long getMessagesOut() {
+        return messagesOut.get();
+    }
+
+    public synchronized long getBytesIn() {
+        return bytesIn;
+    }
+
+    public synchronized long getMessagesIn() {
+        return messagesIn;
+    }
+
+    /**
+     * Returns the time in nanoseconds spent decoding received data.
+     */
+    public synchronized long getDecodeTime() {
+        return decodeTime;
+    }
+
+    public synchronized void resetStatistics() {
+        bytesOut.set(0L);
+        messagesOut.set(0L);
+        bytesIn = 0L;
+        messagesIn = 0L;
+        decodeTime = 0L;
+    }
+
+    public synchronized String toString() {
+        return getClass().getSimpleName()
+                + " out: " + messagesOut.get() + " msg " + bytesOut.get() + " bytes"
+                + ", in: " + messagesIn + " msg " + bytesIn + " bytes"
+                + ", decode " + (decodeTime / 1000) + " us";
+    }
+
+    /**
+     * Appends bytes to a growable frame buffer and returns the (possibly
+     * new) buffer.
+     */
+    static byte[] append(byte[] frame, int frameLength, ByteBuffer in, int len) {
+        if (frameLength + len > frame.length) {
+            byte[] tmp = new byte[Math.max(frame.length * 2, frameLength + len)];
+            System.arraycopy(frame, 0, tmp, 0, frameLength);
+            frame = tmp;
+        }
+        in.get(frame, frameLength, len);
+        return frame;
+    }
+}
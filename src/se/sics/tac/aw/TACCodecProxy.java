@@ -0,0 +1,151 @@
+package se.sics.tac.aw;
+
+import se.sics.tac.util.ArgEnumerator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Small proxy that lets agents using the {@link TACBinaryCodec} play
+ * against a server that only speaks XML. Each agent connection gets its
+ * own server connection and every message is translated on the way
+ * through.
+ * <p>
+ * Start it with <code>java se.sics.tac.aw.TACCodecProxy -port 6501
+ * -host localhost -serverPort 6500</code> and point the agent (with
+ * <code>codec=se.sics.tac.aw.TACBinaryCodec</code>) at port 6501.
+ */
+public class TACCodecProxy implements Runnable {
+
+    private static final Logger log = Logger.getLogger(TACCodecProxy.class.getName());
+
+    private final Socket agentSocket;
+    private final Socket serverSocket;
+
+    // Agent to server: binary in, XML out
+    private final TACBinaryCodec agentCodec = new TACBinaryCodec();
+    // Server to agent: XML in, binary out
+    private final TACXmlCodec serverCodec = new TACXmlCodec();
+    private final TACBinaryCodec replyCodec = new TACBinaryCodec();
+
+    private TACCodecProxy(Socket agentSocket, Socket serverSocket) {
+        this.agentSocket = agentSocket;
+        this.serverSocket = serverSocket;
+    }
+
+    /**
+     * Forwards the server's replies to the agent on the calling thread and
+     * the agent's requests to the server on a new thread.
+     */
+    public void run() {
+        Thread requests = new Thread(new Runnable() {
+            public void run() {
+                forwardRequests();
+            }
+        }, "TACCodecProxy-requests");
+        requests.start();
+        try {
+            InputStream input = serverSocket.getInputStream();
+            OutputStream output = agentSocket.getOutputStream();
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = input.read(buffer)) >= 0) {
+                ByteBuffer in = ByteBuffer.wrap(buffer, 0, len);
+                byte[] xml;
+                while ((xml = serverCodec.decode(in)) != null) {
+                    write(output, replyCodec.fromXml(xml, xml.length));
+                }
+                output.flush();
+            }
+        } catch (IOException e) {
+            log.log(Level.FINE, "server connection closed", e);
+        } finally {
+            close();
+            log.info("agent " + agentSocket.getRemoteSocketAddress()
+                    + " disconnected: requests " + agentCodec
+                    + ", replies " + serverCodec);
+        }
+    }
+
+    private void forwardRequests() {
+        try {
+            InputStream input = agentSocket.getInputStream();
+            OutputStream output = serverSocket.getOutputStream();
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = input.read(buffer)) >= 0) {
+                ByteBuffer in = ByteBuffer.wrap(buffer, 0, len);
+                byte[] xml;
+                while ((xml = agentCodec.decode(in)) != null) {
+                    output.write(xml);
+                    output.write(0);
+                }
+                output.flush();
+            }
+        } catch (IOException e) {
+            log.log(Level.FINE, "agent connection closed", e);
+        } finally {
+            close();
+        }
+    }
+
+    private static void write(OutputStream output, ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            output.write(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+        } else {
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            output.write(data);
+        }
+        TACMessageTemplate.release(buffer);
+    }
+
+    private void close() {
+        try {
+            agentSocket.close();
+            serverSocket.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "could not close proxy connection", e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String usage =
+                "Usage: TACCodecProxy [-options]\n"
+                        + "where options include:\n"
+                        + "    -port <port>              set the port to accept agents on\n"
+                        + "    -host <host>              set the TAC server host\n"
+                        + "    -serverPort <port>        set the TAC server port\n"
+                        + "    -h                        show this help message\n";
+        ArgEnumerator a = new ArgEnumerator(args, usage, true);
+        int port = a.getArgument("-port", 6501);
+        String host = a.getArgument("-host", "localhost");
+        int serverPort = a.getArgument("-serverPort", 6500);
+        a.checkArguments();
+
+        ServerSocket server = new ServerSocket(port);
+        log.info("translating binary agents on port " + port
+                + " to XML server " + host + ':' + serverPort);
+        while (true) {
+            Socket agentSocket = server.accept();
+            try {
+                Socket serverSocket = new Socket(host, serverPort);
+                agentSocket.setTcpNoDelay(true);
+                serverSocket.setTcpNoDelay(true);
+                new Thread(new TACCodecProxy(agentSocket, serverSocket),
+                        "TACCodecProxy-replies").start();
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "could not connect to server " + host
+                        + ':' + serverPort, e);
+                agentSocket.close();
+            }
+        }
+    }
+}
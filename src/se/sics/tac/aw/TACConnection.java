@@ -29,9 +29,12 @@ import java.io.IOException;
 public abstract class TACConnection {
 
   protected TACAgent agent;
+  // The dispatcher, metrics and lifecycle of the agent
+  protected AgentRuntime runtime;
 
   final void init(TACAgent agent) {
     this.agent = agent;
+    this.runtime = agent.getRuntime();
     init();
   }
 
@@ -40,9 +43,31 @@ public abstract class TACConnection {
   public abstract boolean isConnected();
   public abstract void disconnect();
   public abstract void sendMessage(TACMessage msg) throws IOException;
+
+  /**
+   * Returns the codec used on the wire or <code>null</code> if the
+   * connection does not use one.
+   */
+  public TACCodec getCodec() {
+    return null;
+  }
   public void sendMessage(TACMessage msg, TACMessageReceiver rcv)
     throws IOException {
     msg.setMessageReceiver(rcv);
     sendMessage(msg);
   }
+
+  /**
+   * Hands a received message to the agent's message dispatcher for
+   * delivery to its receiver. Connections should never call the receivers
+   * from their I/O threads.
+   */
+  protected void deliver(TACMessage msg) {
+    runtime.messageReceived(msg);
+    TACTrace trace = agent.getTrace();
+    if (trace != null) {
+      trace.record(agent.getServerTime(), msg);
+    }
+    agent.getMessageDispatcher().deliver(msg, this);
+  }
 }
@@ -31,24 +31,50 @@
 package se.sics.tac.aw;
 import java.io.*;
 import java.net.*;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.*;
 
-public class TACHttpConnection extends TACConnection implements Runnable {
+import se.sics.tac.util.LatencyHistogram;
+
+public class TACHttpConnection extends TACConnection {
 
   private static final Logger log =
     Logger.getLogger(TACHttpConnection.class.getName());
 
+  // Retries after the first attempt and the backoff before the first retry
+  private static final int MAX_RETRIES = 3;
+  private static final long RETRY_BACKOFF = 100;
+  private static final long MAX_RETRY_BACKOFF = 2000;
+
   private URL url;
-  private ArrayList queue = new ArrayList();
   private boolean disconnected = false;
 
+  // Quotes and bid infos are independent of each other and of other
+  // requests and are sent concurrently over the keep-alive connections.
+  // All other requests are sent one at the time, in order.
+  private ExecutorService concurrent;
+  private ExecutorService ordered;
+  // Replies are handed over one at the time, whichever thread read them,
+  // so that they are never delivered concurrently to the agent
+  private final Object deliveryLock = new Object();
+
   protected void init() {
     try {
       url = new URL("http://" + agent.getHost() + ':' + agent.getPort() +
 		    '/' + agent.getUser() + '/' + agent.getPassword());
       log.fine("Using HTTP TAC server at " + url);
-      new Thread(this).start();
+
+      // The senders bound the connections this agent has open to the
+      // server (one per sender), whatever other agents in the JVM use
+      int connections = agent.getHttpConnections();
+      concurrent =
+	Executors.newFixedThreadPool(connections, new SenderFactory("http"));
+      ordered =
+	Executors.newSingleThreadExecutor(new SenderFactory("http-ordered"));
 
       TACMessage msg = new TACMessage("auth");
       msg.setParameter("userName", agent.getUser());
@@ -56,7 +82,8 @@ public class TACHttpConnection extends TACConnection implements Runnable {
       msg.setMessageReceiver(agent);
       sendMessage(msg);
     } catch (Exception e) {
-      new RuntimeException("Fatal: " + e);
+      disconnected = true;
+      log.log(Level.SEVERE, "could not initialize HTTP connection", e);
     }
   }
 
@@ -66,91 +93,147 @@ public class TACHttpConnection extends TACConnection implements Runnable {
 
   public void disconnect() {
     disconnected = true;
+    if (concurrent != null) {
+      concurrent.shutdown();
+      ordered.shutdown();
+    }
+  }
+
+  public void sendMessage(final TACMessage msg) throws IOException {
+    if (disconnected) {
+      throw new IOException("Disconnected from server");
+    }
+    String type = msg.getType();
+    ExecutorService executor =
+      "getQuote".equals(type) || "bidInfo".equals(type)
+      ? concurrent : ordered;
+    try {
+      executor.execute(new Runnable() {
+	  public void run() {
+	    send(msg);
+	  }
+	});
+    } catch (java.util.concurrent.RejectedExecutionException e) {
+      throw new IOException("Disconnected from server");
+    }
+  }
+
+  /**
+   * Returns the latency histogram for the specified message type.
+   */
+  public LatencyHistogram getLatency(String type) {
+    return runtime.getMetrics().getMetrics(type).getLatency();
   }
 
-  public void run() {
-    while (true) {
-      TACMessage msg = getMessage();
-      boolean sent;
-      for (int errors = 0; !(sent = sendMsg(msg)) && errors < 3; errors++) {
-	log.warning("failed to send message " + msg.getType()
-		    + " (retry " + (errors + 1) + ')');
-	try {
-	  Thread.sleep(1000);
-	} catch (Exception e) {
-	  e.printStackTrace();
+  private void send(TACMessage msg) {
+    ByteBuffer buffer = msg.encode();
+    byte[] data = new byte[buffer.remaining()];
+    buffer.get(data);
+    TACMessageTemplate.release(buffer);
+
+    // The latency includes any retries
+    TACMetrics metrics = runtime.getMetrics();
+    metrics.requestSent(msg, data.length);
+    long backoff = RETRY_BACKOFF;
+    for (int retry = 0; !disconnected; retry++) {
+      if (sendMsg(msg, data)) {
+	// Outside the retries: a failing receiver is not a transport
+	// failure and the request must not be sent again
+	synchronized (deliveryLock) {
+	  deliver(msg);
 	}
+	return;
       }
-      if (!sent) {
+      if (retry == MAX_RETRIES) {
+	metrics.requestFailed(msg, true);
 	agent.fatalError("could not send message " + msg.getType()
 			 + " to server");
+	return;
       }
-    }
-  }
-
-  private synchronized TACMessage getMessage() {
-    while (queue.isEmpty()) {
+      metrics.requestRetried(msg);
+      log.warning("failed to send message " + msg.getType()
+		  + " (retry " + (retry + 1) + " in " + backoff + " ms)");
       try {
-	wait();
-      } catch (Exception e) {
-	e.printStackTrace();
+	Thread.sleep(backoff);
+      } catch (InterruptedException e) {
+	return;
       }
+      backoff = Math.min(backoff * 2, MAX_RETRY_BACKOFF);
     }
-    return (TACMessage) queue.remove(0);
-  }
-
-  private synchronized void addMessage(TACMessage msg) {
-    queue.add(msg);
-    notify();
   }
 
-  public void sendMessage(TACMessage msg) throws IOException {
-    if (disconnected) {
-      throw new IOException("Disconnected from server");
-    }
-    addMessage(msg);
-  }
-
-  private boolean sendMsg(TACMessage msg) {
+  private boolean sendMsg(TACMessage msg, byte[] data) {
+    HttpURLConnection conn = null;
     try {
-      String msgStr = msg.getMessageString();
-      URLConnection conn = url.openConnection();
-      conn.setRequestProperty("Content-Length", "" + msgStr.length());
+
+      conn = (HttpURLConnection) url.openConnection();
+      conn.setRequestMethod("POST");
+      conn.setUseCaches(false);
       conn.setDoOutput(true);
+      conn.setFixedLengthStreamingMode(data.length);
       OutputStream output = conn.getOutputStream();
-      output.write(msgStr.getBytes());
-      output.flush();
+      output.write(data);
+      output.close();
 
       InputStream input = conn.getInputStream();
       int len = conn.getContentLength();
       int totalRead = 0;
       int read;
-      byte[] content = new byte[len];
+      byte[] content = new byte[len > 0 ? len : 0];
       while ((len > totalRead)
 	     && (read = input.read(content, totalRead, len - totalRead)) > 0) {
 	totalRead += read;
       }
-      output.close();
+      // Closing (not disconnecting) returns the socket to the keep-alive cache
       input.close();
 
-      if (len < totalRead) {
+      if (totalRead < len) {
 	// Connection closed from other end
 	log.severe("truncated message response for " + msg.getType());
 	return false;
 
       } else {
-	msgStr = new String(content);
-	msg.setReceivedMessage(msgStr);
-
-	// Should be delivered by a dispatcher!!!
-
-	msg.deliverMessage();
+	msg.setReceivedMessage(content, totalRead);
+	runtime.getMetrics().replyReceived(msg, totalRead);
       }
       return true;
     } catch (Exception e) {
       log.log(Level.SEVERE, "could not send message", e);
+      if (conn != null) {
+	drainError(conn);
+      }
       return false;
     }
   }
 
+  // Reads the error body so the connection can be reused
+  private void drainError(HttpURLConnection conn) {
+    try {
+      InputStream error = conn.getErrorStream();
+      if (error != null) {
+	byte[] buffer = new byte[512];
+	while (error.read(buffer) > 0);
+	error.close();
+      }
+    } catch (IOException e) {
+      conn.disconnect();
+    }
+  }
+
+  private static class SenderFactory implements ThreadFactory {
+
+    private final String name;
+    private final AtomicInteger count = new AtomicInteger();
+
+    SenderFactory(String name) {
+      this.name = name;
+    }
+
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, name + '-' + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
 } // TACHttpConnection
@@ -0,0 +1,996 @@
+package se.sics.tac.aw;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.StringTokenizer;
+import java.util.logging.Logger;
+
+/**
+ * One TAC Classic game played in process: the 28 auctions, the client
+ * preferences and entertainment endowments of eight agents and the scores
+ * at the end of the game. Agent 0 is the agent being run; agents 1 to 7
+ * are simple opponent bots played by the market itself.
+ * <ul>
+ * <li>Flights follow the {@link FlightPriceProcess} with unlimited supply.
+ *     A buy bid at or above the ask price transacts at the ask price.
+ * <li>Hotels are ascending multi-unit auctions with 16 rooms. The ask price
+ *     is the 16th highest unit bid and is quoted every minute. One randomly
+ *     chosen hotel auction closes at the end of each minute except the
+ *     last, and the 16 highest units win at the ask price. A new bid must
+ *     keep at least the units it would win above the ask price.
+ * <li>Entertainment tickets are traded in continuous double auctions. Bids
+ *     transact immediately at the price of the standing bid they match.
+ * </ul>
+ * Each agent has one active bid per auction; a new bid replaces it.
+ * Scores are the utility of a greedy allocation of the goods owned at the
+ * end of the game to the clients, minus the cost of the goods. The TAC
+ * server uses an optimal allocation, so scores are somewhat lower.
+ * <p>
+ * All events (price changes, hotel closings, opponent bids and the game
+ * end) are tasks in the {@link TimeDispatcher}, so a market on manual
+ * time is driven entirely by the virtual clock (see
+ * {@link TACSimConnection}).
+ */
+public class TACMarket implements Task {
+
+    private static final Logger log = Logger.getLogger(TACMarket.class.getName());
+
+    public static final int AGENTS = 8;
+    public static final int CLIENTS = 8;
+    public static final int HOTEL_ROOMS = 16;
+    public static final int DEFAULT_GAME_LENGTH = 9 * 60 * 1000;
+
+    private static final int NO_AUCTIONS = 28;
+    private static final int HOTEL_CLOSE_PERIOD = 60 * 1000;
+    private static final int BOT_PERIOD = 10 * 1000;
+    // Server codes used in the replies
+    private static final int REJECT_ACTIVE_BID_CHANGED = 1;
+
+    // Market events (task values)
+    private static final Integer FLIGHT_UPDATE = 1;
+    private static final Integer HOTEL_CLOSE = 2;
+    private static final Integer BOTS = 3;
+    private static final Integer GAME_END = 4;
+
+    private final int gameID;
+    private final long startTime;
+    private final int gameLength;
+    private final Random random;
+    // Runs the market events on the clock of the agent playing the game
+    private final TimeDispatcher dispatcher;
+
+    private final int[][][] prefs = new int[AGENTS][CLIENTS][6];
+    private final int[][] endowments = new int[AGENTS][NO_AUCTIONS];
+    private final int[][] owns = new int[AGENTS][NO_AUCTIONS];
+    private final float[] costs = new float[AGENTS];
+    private final int[] utilities = new int[AGENTS];
+
+    private final FlightPriceProcess[] flights = new FlightPriceProcess[8];
+    private final float[] askPrices = new float[NO_AUCTIONS];
+    private final float[] bidPrices = new float[NO_AUCTIONS];
+    private final int[] statuses = new int[NO_AUCTIONS];
+    private final long[] lastQuoteTimes = new long[NO_AUCTIONS];
+    private final int[][] hqws = new int[AGENTS][NO_AUCTIONS];
+    private final int[] hotelCloseOrder = new int[8];
+    private int hotelsClosed = 0;
+
+    private final MarketBid[][] activeBids = new MarketBid[AGENTS][NO_AUCTIONS];
+    // Bid ids and transaction ids are the index in these lists plus one
+    private final ArrayList<MarketBid> bids = new ArrayList<MarketBid>();
+    private final ArrayList<MarketTransaction> transactions =
+            new ArrayList<MarketTransaction>();
+    private boolean ended = false;
+
+    // What the opponent bots need for their clients and will pay for hotels
+    private final int[][] botNeeds = new int[AGENTS][NO_AUCTIONS];
+    private final float[][] botLimits = new float[AGENTS][NO_AUCTIONS];
+    private final long[] botFlightTimes = new long[AGENTS];
+
+    public TACMarket(int gameID, long startTime, int gameLength, Random random,
+                     TimeDispatcher dispatcher) {
+        this.gameID = gameID;
+        this.startTime = startTime;
+        this.gameLength = gameLength;
+        this.random = random;
+        this.dispatcher = dispatcher;
+
+        for (int a = 0; a < AGENTS; a++) {
+            for (int c = 0; c < CLIENTS; c++) {
+                int[] p = prefs[a][c];
+                p[TACAgent.ARRIVAL] = 1 + random.nextInt(4);
+                p[TACAgent.DEPARTURE] = p[TACAgent.ARRIVAL] + 1
+                        + random.nextInt(5 - p[TACAgent.ARRIVAL]);
+                p[TACAgent.HOTEL_VALUE] = 50 + random.nextInt(101);
+                p[TACAgent.E1] = random.nextInt(201);
+                p[TACAgent.E2] = random.nextInt(201);
+                p[TACAgent.E3] = random.nextInt(201);
+            }
+            // 12 tickets: for each type two tickets on day 1 or 4 and two
+            // on day 2 or 3
+            for (int type = 1; type <= 3; type++) {
+                int early = random.nextBoolean() ? 1 : 4;
+                int late = random.nextBoolean() ? 2 : 3;
+                endowments[a][getAuction(TACAgent.CAT_ENTERTAINMENT, type, early)] += 2;
+                endowments[a][getAuction(TACAgent.CAT_ENTERTAINMENT, type, late)] += 2;
+            }
+            System.arraycopy(endowments[a], 0, owns[a], 0, NO_AUCTIONS);
+        }
+
+        for (int i = 0; i < flights.length; i++) {
+            flights[i] = new FlightPriceProcess(random, gameLength);
+            askPrices[i] = flights[i].getPrice();
+        }
+        for (int i = 0; i < 8; i++) {
+            hotelCloseOrder[i] = TACAgent.MIN_HOTEL + i;
+        }
+        for (int i = 7; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = hotelCloseOrder[i];
+            hotelCloseOrder[i] = hotelCloseOrder[j];
+            hotelCloseOrder[j] = tmp;
+        }
+        for (int i = 0; i < NO_AUCTIONS; i++) {
+            statuses[i] = Quote.AUCTION_INTERMEDIATE_CLEAR;
+            lastQuoteTimes[i] = startTime;
+        }
+        for (int a = 1; a < AGENTS; a++) {
+            planBot(a);
+        }
+    }
+
+    /**
+     * Schedules the market events of the game.
+     */
+    public void start() {
+        dispatcher.addTask(startTime + FlightPriceProcess.UPDATE_PERIOD, this,
+                FLIGHT_UPDATE, this);
+        dispatcher.addTask(startTime + HOTEL_CLOSE_PERIOD, this, HOTEL_CLOSE, this);
+        dispatcher.addTask(startTime + random.nextInt(BOT_PERIOD), this, BOTS, this);
+        dispatcher.addTask(startTime + gameLength, this, GAME_END, this);
+    }
+
+    /**
+     * Cancels all remaining market events.
+     */
+    public void stop() {
+        dispatcher.cancelTask(this, this);
+    }
+
+    public int getGameID() {
+        return gameID;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public int getGameLength() {
+        return gameLength;
+    }
+
+    public synchronized boolean isEnded() {
+        return ended;
+    }
+
+    /**
+     * Returns the server id of the auction (unique over all games).
+     */
+    public int getAuctionID(int auction) {
+        return gameID * NO_AUCTIONS + auction;
+    }
+
+    /**
+     * Returns the auction with the specified server id or -1 if it is not
+     * an auction in this game.
+     */
+    public int getAuction(int auctionID) {
+        int auction = auctionID - gameID * NO_AUCTIONS;
+        return auction >= 0 && auction < NO_AUCTIONS ? auction : -1;
+    }
+
+    private static int getAuction(int category, int type, int day) {
+        return TACAgent.getAuctionFor(category, type, day);
+    }
+
+    /**
+     * Returns the client preferences of the agent, indexed as in
+     * {@link TACAgent#getClientPreference}.
+     */
+    public int[][] getClientPreferences(int agent) {
+        return prefs[agent];
+    }
+
+    public int getEndowment(int agent, int auction) {
+        return endowments[agent][auction];
+    }
+
+
+    // -------------------------------------------------------------------
+    // Quotes
+    // -------------------------------------------------------------------
+
+    public synchronized float getAskPrice(int auction) {
+        return askPrices[auction];
+    }
+
+    public synchronized float getBidPrice(int auction) {
+        return bidPrices[auction];
+    }
+
+    public synchronized int getHQW(int agent, int auction) {
+        return hqws[agent][auction];
+    }
+
+    public synchronized int getAuctionStatus(int auction) {
+        return statuses[auction];
+    }
+
+    public synchronized long getLastQuoteTime(int auction) {
+        return lastQuoteTimes[auction];
+    }
+
+    /**
+     * Returns the time of the next quote or 0 if the quote changes with
+     * each transaction (entertainment) or the auction is closed.
+     */
+    public synchronized long getNextQuoteTime(int auction) {
+        if (statuses[auction] == Quote.AUCTION_CLOSED) {
+            return 0L;
+        }
+        switch (TACAgent.getAuctionCategory(auction)) {
+            case TACAgent.CAT_FLIGHT:
+                return lastQuoteTimes[auction] + FlightPriceProcess.UPDATE_PERIOD;
+            case TACAgent.CAT_HOTEL:
+                return startTime + (hotelsClosed + 1) * HOTEL_CLOSE_PERIOD;
+            default:
+                return 0L;
+        }
+    }
+
+
+    // -------------------------------------------------------------------
+    // Bids
+    // -------------------------------------------------------------------
+
+    /**
+     * Submits a bid for the agent, replacing its active bid in the auction.
+     * If replacedID is not -1 the bid is only accepted if it still
+     * replaces that bid with that hash.
+     *
+     * @return the bid, which is rejected or has a command status other
+     * than {@link TACAgent#NO_ERROR} if it was not accepted
+     */
+    public synchronized MarketBid submitBid(int agent, int auction, String bidString,
+                                            int replacedID, String replacedHash) {
+        long now = now();
+        MarketBid bid = new MarketBid(bids.size() + 1, agent, auction, now);
+        if (ended || statuses[auction] == Quote.AUCTION_CLOSED) {
+            bid.commandStatus = TACAgent.AUCTION_CLOSED;
+            return bid;
+        }
+        if (!bid.parse(bidString)) {
+            bid.commandStatus = TACAgent.BAD_BIDSTRING_FORMAT;
+            return bid;
+        }
+        bids.add(bid);
+
+        MarketBid active = activeBids[agent][auction];
+        int reject = Bid.NOT_REJECTED;
+        if (replacedID != -1 && (active == null || active.id != replacedID
+                || !active.getHash().equals(replacedHash))) {
+            reject = REJECT_ACTIVE_BID_CHANGED;
+        } else if (bid.getSellQuantity() > 0
+                && (TACAgent.getAuctionCategory(auction) != TACAgent.CAT_ENTERTAINMENT
+                || bid.getSellQuantity() > owns[agent][auction])) {
+            reject = Bid.SELL_NOT_ALLOWED;
+        } else if (TACAgent.getAuctionCategory(auction) == TACAgent.CAT_HOTEL
+                && active != null
+                && bid.getQuantityAbove(askPrices[auction]) < hqws[agent][auction]) {
+            // Must keep bidding above the ask price for the rooms it wins
+            reject = Bid.PRICE_NOT_BEAT;
+        }
+        if (reject != Bid.NOT_REJECTED) {
+            bid.rejectReason = reject;
+            bid.processingState = Bid.REJECTED;
+            return bid;
+        }
+
+        if (active != null) {
+            active.processingState = Bid.REPLACED;
+            active.timeClosed = now;
+        }
+        activeBids[agent][auction] = bid;
+        bid.processingState = Bid.VALID;
+        switch (TACAgent.getAuctionCategory(auction)) {
+            case TACAgent.CAT_FLIGHT:
+                matchFlight(bid, now);
+                break;
+            case TACAgent.CAT_ENTERTAINMENT:
+                matchEntertainment(bid, now);
+                break;
+            default:
+                break;
+        }
+        return bid;
+    }
+
+    /**
+     * Returns the bid with the specified id or <code>null</code>.
+     */
+    public synchronized MarketBid getBid(int bidID) {
+        return bidID > 0 && bidID <= bids.size() ? bids.get(bidID - 1) : null;
+    }
+
+    /**
+     * Returns the active bids of the agent in all auctions.
+     */
+    public synchronized MarketBid[] getActiveBids(int agent) {
+        ArrayList<MarketBid> list = new ArrayList<MarketBid>();
+        for (int i = 0; i < NO_AUCTIONS; i++) {
+            if (activeBids[agent][i] != null) {
+                list.add(activeBids[agent][i]);
+            }
+        }
+        return list.toArray(new MarketBid[list.size()]);
+    }
+
+    private void matchFlight(MarketBid bid, long now) {
+        float ask = askPrices[bid.auction];
+        boolean changed = false;
+        for (int i = 0; i < bid.points; i++) {
+            if (bid.quantity[i] > 0 && bid.price[i] >= ask) {
+                addTransaction(bid.agent, bid.auction, bid.quantity[i], ask, now);
+                bid.quantity[i] = 0;
+                changed = true;
+            }
+        }
+        if (changed) {
+            bid.transacted(now);
+        }
+    }
+
+    // Continuous double auction: the bid trades at the prices of the best
+    // standing bids of the other agents, then stands with what is left
+    private void matchEntertainment(MarketBid bid, long now) {
+        int auction = bid.auction;
+        boolean changed = false;
+        for (int i = 0; i < bid.points; i++) {
+            while (bid.quantity[i] != 0) {
+                boolean buy = bid.quantity[i] > 0;
+                MarketBid best = null;
+                int bestPoint = -1;
+                for (int a = 0; a < AGENTS; a++) {
+                    MarketBid other = activeBids[a][auction];
+                    if (a == bid.agent || other == null) {
+                        continue;
+                    }
+                    for (int j = 0; j < other.points; j++) {
+                        int q = other.quantity[j];
+                        float p = other.price[j];
+                        if (buy ? (q < 0 && p <= bid.price[i]) : (q > 0 && p >= bid.price[i])) {
+                            if (best == null
+                                    || (buy ? p < best.price[bestPoint] : p > best.price[bestPoint])
+                                    || (p == best.price[bestPoint] && other.id < best.id)) {
+                                best = other;
+                                bestPoint = j;
+                            }
+                        }
+                    }
+                }
+                if (best == null) {
+                    break;
+                }
+                int quantity = Math.min(Math.abs(bid.quantity[i]),
+                        Math.abs(best.quantity[bestPoint]));
+                float price = best.price[bestPoint];
+                int buyer = buy ? bid.agent : best.agent;
+                int seller = buy ? best.agent : bid.agent;
+                addTransaction(buyer, auction, quantity, price, now);
+                addTransaction(seller, auction, -quantity, price, now);
+                bid.quantity[i] += buy ? -quantity : quantity;
+                best.quantity[bestPoint] += buy ? quantity : -quantity;
+                best.transacted(now);
+                changed = true;
+            }
+        }
+        if (changed) {
+            bid.transacted(now);
+        }
+        updateEntertainmentQuote(auction, now);
+    }
+
+    private void updateEntertainmentQuote(int auction, long now) {
+        float ask = 0f;
+        float bid = 0f;
+        for (int a = 0; a < AGENTS; a++) {
+            MarketBid b = activeBids[a][auction];
+            if (b == null) {
+                continue;
+            }
+            for (int j = 0; j < b.points; j++) {
+                if (b.quantity[j] < 0 && (ask == 0f || b.price[j] < ask)) {
+                    ask = b.price[j];
+                } else if (b.quantity[j] > 0 && b.price[j] > bid) {
+                    bid = b.price[j];
+                }
+            }
+        }
+        if (ask != askPrices[auction] || bid != bidPrices[auction]) {
+            askPrices[auction] = ask;
+            bidPrices[auction] = bid;
+            lastQuoteTimes[auction] = now;
+        }
+    }
+
+    // Sorts the units bid in the hotel auction by price (highest first) and
+    // then by bid (earliest first), updates the ask price and the rooms
+    // each agent would win, and returns the winning units by agent
+    private int[] clearHotel(int auction) {
+        int units = 0;
+        for (int a = 0; a < AGENTS; a++) {
+            MarketBid b = activeBids[a][auction];
+            if (b != null) {
+                units += b.getBuyQuantity();
+            }
+        }
+        float[] prices = new float[units];
+        int[] ids = new int[units];
+        int[] agents = new int[units];
+        int n = 0;
+        for (int a = 0; a < AGENTS; a++) {
+            MarketBid b = activeBids[a][auction];
+            if (b == null) {
+                continue;
+            }
+            for (int j = 0; j < b.points; j++) {
+                for (int q = 0; q < b.quantity[j]; q++) {
+                    // Insertion sort, there are rarely more than 100 units
+                    int k = n++;
+                    while (k > 0 && (prices[k - 1] < b.price[j]
+                            || (prices[k - 1] == b.price[j] && ids[k - 1] > b.id))) {
+                        prices[k] = prices[k - 1];
+                        ids[k] = ids[k - 1];
+                        agents[k] = agents[k - 1];
+                        k--;
+                    }
+                    prices[k] = b.price[j];
+                    ids[k] = b.id;
+                    agents[k] = a;
+                }
+            }
+        }
+        int[] won = new int[AGENTS];
+        for (int i = 0, m = Math.min(n, HOTEL_ROOMS); i < m; i++) {
+            won[agents[i]]++;
+        }
+        askPrices[auction] = n >= HOTEL_ROOMS ? prices[HOTEL_ROOMS - 1] : 0f;
+        for (int a = 0; a < AGENTS; a++) {
+            hqws[a][auction] = won[a];
+        }
+        return won;
+    }
+
+    private void closeHotel(int auction, long now) {
+        int[] won = clearHotel(auction);
+        float price = askPrices[auction];
+        for (int a = 0; a < AGENTS; a++) {
+            if (won[a] > 0) {
+                addTransaction(a, auction, won[a], price, now);
+            }
+            MarketBid b = activeBids[a][auction];
+            if (b != null) {
+                for (int j = 0; j < b.points; j++) {
+                    b.quantity[j] = 0;
+                }
+                b.transacted(now);
+            }
+        }
+        statuses[auction] = Quote.AUCTION_CLOSED;
+        lastQuoteTimes[auction] = now;
+    }
+
+    private void addTransaction(int agent, int auction, int quantity, float price,
+                                long now) {
+        owns[agent][auction] += quantity;
+        costs[agent] += quantity * price;
+        transactions.add(new MarketTransaction(transactions.size() + 1, agent,
+                auction, quantity, price, now));
+    }
+
+
+    // -------------------------------------------------------------------
+    // Transactions
+    // -------------------------------------------------------------------
+
+    /**
+     * Returns the ids of the agent's transactions after the specified id.
+     */
+    public synchronized int[] getTransactionIDs(int agent, int earliestTransID) {
+        int count = 0;
+        int start = Math.max(earliestTransID, 0);
+        for (int i = start, n = transactions.size(); i < n; i++) {
+            if (transactions.get(i).agent == agent) {
+                count++;
+            }
+        }
+        int[] ids = new int[count];
+        count = 0;
+        for (int i = start, n = transactions.size(); i < n; i++) {
+            if (transactions.get(i).agent == agent) {
+                ids[count++] = i + 1;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the transaction with the specified id or <code>null</code>.
+     */
+    public synchronized MarketTransaction getTransaction(int transID) {
+        return transID > 0 && transID <= transactions.size()
+                ? transactions.get(transID - 1) : null;
+    }
+
+
+    // -------------------------------------------------------------------
+    // Market events
+    // -------------------------------------------------------------------
+
+    public void performWork(long time, Object key, Object value) {
+        synchronized (this) {
+            if (ended) {
+                return;
+            }
+            if (value == FLIGHT_UPDATE) {
+                updateFlights(time);
+            } else if (value == HOTEL_CLOSE) {
+                closeNextHotel(time);
+            } else if (value == BOTS) {
+                for (int a = 1; a < AGENTS; a++) {
+                    playBot(a, time);
+                }
+                dispatcher.addTask(time + BOT_PERIOD, this, BOTS, this);
+            } else if (value == GAME_END) {
+                endGame(time);
+            }
+        }
+    }
+
+    private void updateFlights(long time) {
+        long gameTime = time - startTime;
+        for (int i = 0; i < flights.length; i++) {
+            askPrices[i] = flights[i].step(gameTime, random);
+            lastQuoteTimes[i] = time;
+            for (int a = 0; a < AGENTS; a++) {
+                if (activeBids[a][i] != null) {
+                    matchFlight(activeBids[a][i], time);
+                }
+            }
+        }
+        if (gameTime + FlightPriceProcess.UPDATE_PERIOD < gameLength) {
+            dispatcher.addTask(time + FlightPriceProcess.UPDATE_PERIOD,
+                    this, FLIGHT_UPDATE, this);
+        }
+    }
+
+    private void closeNextHotel(long time) {
+        closeHotel(hotelCloseOrder[hotelsClosed++], time);
+        // The remaining hotels are quoted
+        for (int i = hotelsClosed; i < hotelCloseOrder.length; i++) {
+            clearHotel(hotelCloseOrder[i]);
+            lastQuoteTimes[hotelCloseOrder[i]] = time;
+        }
+        if (hotelsClosed < hotelCloseOrder.length
+                && (hotelsClosed + 1) * HOTEL_CLOSE_PERIOD < gameLength) {
+            dispatcher.addTask(time + HOTEL_CLOSE_PERIOD, this,
+                    HOTEL_CLOSE, this);
+        }
+    }
+
+    private void endGame(long time) {
+        while (hotelsClosed < hotelCloseOrder.length) {
+            closeHotel(hotelCloseOrder[hotelsClosed++], time);
+        }
+        for (int i = 0; i < NO_AUCTIONS; i++) {
+            statuses[i] = Quote.AUCTION_CLOSED;
+            lastQuoteTimes[i] = time;
+        }
+        for (int a = 0; a < AGENTS; a++) {
+            utilities[a] = allocate(a);
+        }
+        ended = true;
+        log.fine("game " + gameID + " ended: score " + getScore(0)
+                + " (utility " + utilities[0] + ", cost " + costs[0] + ')');
+    }
+
+
+    // -------------------------------------------------------------------
+    // Opponent bots
+    // -------------------------------------------------------------------
+
+    // Each client travels on its preferred days and stays in the good
+    // hotel if it values it enough
+    private void planBot(int agent) {
+        for (int c = 0; c < CLIENTS; c++) {
+            int[] p = prefs[agent][c];
+            int arrival = p[TACAgent.ARRIVAL];
+            int departure = p[TACAgent.DEPARTURE];
+            botNeeds[agent][getAuction(TACAgent.CAT_FLIGHT, TACAgent.TYPE_INFLIGHT, arrival)]++;
+            botNeeds[agent][getAuction(TACAgent.CAT_FLIGHT, TACAgent.TYPE_OUTFLIGHT, departure)]++;
+            int type = p[TACAgent.HOTEL_VALUE] > 100
+                    ? TACAgent.TYPE_GOOD_HOTEL : TACAgent.TYPE_CHEAP_HOTEL;
+            for (int day = arrival; day < departure; day++) {
+                botNeeds[agent][getAuction(TACAgent.CAT_HOTEL, type, day)]++;
+            }
+        }
+        for (int i = TACAgent.MIN_HOTEL; i <= TACAgent.MAX_HOTEL; i++) {
+            botLimits[agent][i] = 60f + random.nextFloat() * 140f
+                    + (TACAgent.getAuctionType(i) == TACAgent.TYPE_GOOD_HOTEL ? 60f : 0f);
+        }
+        botFlightTimes[agent] = startTime + random.nextInt(2 * HOTEL_CLOSE_PERIOD);
+    }
+
+    private void playBot(int agent, long time) {
+        if (botFlightTimes[agent] > 0 && time >= botFlightTimes[agent]) {
+            botFlightTimes[agent] = 0;
+            for (int i = TACAgent.MIN_FLIGHT; i <= TACAgent.MAX_FLIGHT; i++) {
+                if (botNeeds[agent][i] > 0) {
+                    submitBid(agent, i, "((" + botNeeds[agent][i] + " 1000))", -1, null);
+                }
+            }
+        }
+
+        // Raise the hotel bids once a minute, in the middle of the minute
+        if ((time - startTime) % HOTEL_CLOSE_PERIOD / BOT_PERIOD == 3) {
+            for (int i = TACAgent.MIN_HOTEL; i <= TACAgent.MAX_HOTEL; i++) {
+                int need = botNeeds[agent][i];
+                float ask = askPrices[i];
+                if (need > 0 && statuses[i] != Quote.AUCTION_CLOSED
+                        && botLimits[agent][i] > ask + 1f) {
+                    float price = Math.min(botLimits[agent][i],
+                            ask + 1f + random.nextFloat() * 30f);
+                    submitBid(agent, i, "((" + need + ' ' + (int) price + "))", -1, null);
+                }
+            }
+        }
+
+        // Trade a ticket now and then to keep the entertainment auctions liquid
+        if (random.nextInt(3) == 0) {
+            int i = TACAgent.MIN_ENTERTAINMENT
+                    + random.nextInt(TACAgent.MAX_ENTERTAINMENT - TACAgent.MIN_ENTERTAINMENT + 1);
+            if (owns[agent][i] > 0 && random.nextBoolean()) {
+                submitBid(agent, i, "((-1 " + (50 + random.nextInt(100)) + "))", -1, null);
+            } else {
+                submitBid(agent, i, "((1 " + (20 + random.nextInt(80)) + "))", -1, null);
+            }
+        }
+    }
+
+
+    // -------------------------------------------------------------------
+    // Scoring
+    // -------------------------------------------------------------------
+
+    /**
+     * Returns the utility minus the cost of the agent. Only available when
+     * the game has ended.
+     */
+    public synchronized float getScore(int agent) {
+        return utilities[agent] - costs[agent];
+    }
+
+    public synchronized int getUtility(int agent) {
+        return utilities[agent];
+    }
+
+    public synchronized float getCost(int agent) {
+        return costs[agent];
+    }
+
+    // Greedy allocation: the clients with the most to gain get the best
+    // travel package the owned goods allow, then the most valued
+    // entertainment for their nights
+    private int allocate(int agent) {
+        int[] own = owns[agent].clone();
+        int[][] p = prefs[agent];
+        Integer[] order = new Integer[CLIENTS];
+        for (int c = 0; c < CLIENTS; c++) {
+            order[c] = c;
+        }
+        Arrays.sort(order, (c1, c2) -> getBonus(p[c2]) - getBonus(p[c1]));
+
+        int total = 0;
+        for (int k = 0; k < CLIENTS; k++) {
+            int[] pref = p[order[k]];
+            int bestUtility = -1;
+            int bestArrival = 0;
+            int bestDeparture = 0;
+            int bestType = 0;
+            for (int arrival = 1; arrival <= 4; arrival++) {
+                if (own[getAuction(TACAgent.CAT_FLIGHT, TACAgent.TYPE_INFLIGHT, arrival)] <= 0) {
+                    continue;
+                }
+                for (int departure = arrival + 1; departure <= 5; departure++) {
+                    if (own[getAuction(TACAgent.CAT_FLIGHT, TACAgent.TYPE_OUTFLIGHT,
+                            departure)] <= 0) {
+                        continue;
+                    }
+                    int penalty = 100 * (Math.abs(arrival - pref[TACAgent.ARRIVAL])
+                            + Math.abs(departure - pref[TACAgent.DEPARTURE]));
+                    for (int type = TACAgent.TYPE_CHEAP_HOTEL; type <= TACAgent.TYPE_GOOD_HOTEL; type++) {
+                        int utility = 1000 - penalty
+                                + (type == TACAgent.TYPE_GOOD_HOTEL ? pref[TACAgent.HOTEL_VALUE] : 0);
+                        if (utility > bestUtility && hasHotel(own, type, arrival, departure)) {
+                            bestUtility = utility;
+                            bestArrival = arrival;
+                            bestDeparture = departure;
+                            bestType = type;
+                        }
+                    }
+                }
+            }
+            if (bestUtility < 0) {
+                continue;
+            }
+            own[getAuction(TACAgent.CAT_FLIGHT, TACAgent.TYPE_INFLIGHT, bestArrival)]--;
+            own[getAuction(TACAgent.CAT_FLIGHT, TACAgent.TYPE_OUTFLIGHT, bestDeparture)]--;
+            for (int day = bestArrival; day < bestDeparture; day++) {
+                own[getAuction(TACAgent.CAT_HOTEL, bestType, day)]--;
+            }
+
+            // At most one event per night and one of each type
+            boolean[] usedDay = new boolean[6];
+            for (int n = 0; n < 3; n++) {
+                int type = 0;
+                for (int t = 1; t <= 3; t++) {
+                    int value = pref[TACAgent.E1 + t - 1];
+                    if (value >= 0 && (type == 0 || value > pref[TACAgent.E1 + type - 1])) {
+                        type = t;
+                    }
+                }
+                if (type == 0) {
+                    break;
+                }
+                for (int day = bestArrival; day < bestDeparture; day++) {
+                    int auction = getAuction(TACAgent.CAT_ENTERTAINMENT, type, day);
+                    if (!usedDay[day] && own[auction] > 0) {
+                        own[auction]--;
+                        usedDay[day] = true;
+                        bestUtility += pref[TACAgent.E1 + type - 1];
+                        break;
+                    }
+                }
+                // Mark the type as considered
+                pref = pref.clone();
+                pref[TACAgent.E1 + type - 1] = -1;
+            }
+            total += bestUtility;
+        }
+        return total;
+    }
+
+    private static int getBonus(int[] pref) {
+        return pref[TACAgent.HOTEL_VALUE] + pref[TACAgent.E1] + pref[TACAgent.E2]
+                + pref[TACAgent.E3];
+    }
+
+    private static boolean hasHotel(int[] own, int type, int arrival, int departure) {
+        for (int day = arrival; day < departure; day++) {
+            if (own[getAuction(TACAgent.CAT_HOTEL, type, day)] <= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long now() {
+        return dispatcher.getServerTime();
+    }
+
+    public String toString() {
+        return "TACMarket[" + gameID + ']';
+    }
+
+
+    // -------------------------------------------------------------------
+    // A bid in the market
+    // -------------------------------------------------------------------
+
+    public static class MarketBid {
+
+        private final int id;
+        private final int agent;
+        private final int auction;
+        private final long timeSubmitted;
+        // The remaining quantity at each price (negative to sell)
+        private int points;
+        private int[] quantity;
+        private float[] price;
+        private String bidString;
+        private int version = 0;
+        private int processingState = Bid.UNPROCESSED;
+        private int rejectReason = Bid.NOT_REJECTED;
+        private int commandStatus = TACAgent.NO_ERROR;
+        private long timeClosed;
+
+        MarketBid(int id, int agent, int auction, long timeSubmitted) {
+            this.id = id;
+            this.agent = agent;
+            this.auction = auction;
+            this.timeSubmitted = timeSubmitted;
+        }
+
+        // Parses "((q p) (q p) ...)"
+        private boolean parse(String bidString) {
+            if (bidString == null) {
+                return false;
+            }
+            StringTokenizer tok = new StringTokenizer(bidString, "() \t\r\n");
+            int n = tok.countTokens();
+            if ((n & 1) != 0) {
+                return false;
+            }
+            points = n / 2;
+            quantity = new int[points];
+            price = new float[points];
+            try {
+                for (int i = 0; i < points; i++) {
+                    quantity[i] = Integer.parseInt(tok.nextToken());
+                    price[i] = Float.parseFloat(tok.nextToken());
+                }
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            this.bidString = bidString;
+            return true;
+        }
+
+        private int getBuyQuantity() {
+            int q = 0;
+            for (int i = 0; i < points; i++) {
+                if (quantity[i] > 0) {
+                    q += quantity[i];
+                }
+            }
+            return q;
+        }
+
+        private int getSellQuantity() {
+            int q = 0;
+            for (int i = 0; i < points; i++) {
+                if (quantity[i] < 0) {
+                    q -= quantity[i];
+                }
+            }
+            return q;
+        }
+
+        private int getQuantityAbove(float askPrice) {
+            int q = 0;
+            for (int i = 0; i < points; i++) {
+                if (quantity[i] > 0 && price[i] > askPrice) {
+                    q += quantity[i];
+                }
+            }
+            return q;
+        }
+
+        // The remaining quantities changed: new bid string and hash
+        private void transacted(long time) {
+            StringBuffer sb = new StringBuffer().append('(');
+            boolean empty = true;
+            for (int i = 0; i < points; i++) {
+                if (quantity[i] != 0) {
+                    sb.append('(').append(quantity[i]).append(' ')
+                            .append(price[i]).append(')');
+                    empty = false;
+                }
+            }
+            bidString = sb.append(')').toString();
+            version++;
+            if (empty) {
+                processingState = Bid.TRANSACTED;
+                timeClosed = time;
+            }
+        }
+
+        public int getID() {
+            return id;
+        }
+
+        public int getAgent() {
+            return agent;
+        }
+
+        public int getAuction() {
+            return auction;
+        }
+
+        public String getBidString() {
+            return bidString;
+        }
+
+        public String getHash() {
+            return id + "." + version;
+        }
+
+        public int getProcessingState() {
+            return processingState;
+        }
+
+        public int getRejectReason() {
+            return rejectReason;
+        }
+
+        public int getCommandStatus() {
+            return commandStatus;
+        }
+
+        public long getTimeSubmitted() {
+            return timeSubmitted;
+        }
+
+        public long getTimeClosed() {
+            return timeClosed;
+        }
+
+        public String toString() {
+            return "MarketBid[" + id + ',' + agent + ',' + auction + ',' + bidString + ']';
+        }
+    }
+
+
+    // -------------------------------------------------------------------
+    // A transaction in the market
+    // -------------------------------------------------------------------
+
+    public static class MarketTransaction {
+
+        private final int id;
+        private final int agent;
+        private final int auction;
+        private final int quantity;
+        private final float price;
+        private final long time;
+
+        MarketTransaction(int id, int agent, int auction, int quantity, float price,
+                          long time) {
+            this.id = id;
+            this.agent = agent;
+            this.auction = auction;
+            this.quantity = quantity;
+            this.price = price;
+            this.time = time;
+        }
+
+        public int getID() {
+            return id;
+        }
+
+        public int getAgent() {
+            return agent;
+        }
+
+        public int getAuction() {
+            return auction;
+        }
+
+        public int getQuantity() {
+            return quantity;
+        }
+
+        public float getPrice() {
+            return price;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public String toString() {
+            return "MarketTransaction[" + id + ',' + agent + ',' + auction + ','
+                    + quantity + ',' + price + ']';
+        }
+    }
+}
@@ -24,7 +24,7 @@
  */
 
 package se.sics.tac.aw;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,16 +33,27 @@ public class TACMessage {
   private static final Logger log =
     Logger.getLogger(TACMessage.class.getName());
 
-  private static long msgCount = 0;
-  private static long totalResponseTime = 0;
+  private final static double[] POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+    1e11, 1e12, 1e13, 1e14, 1e15
+  };
 
   private final String type;
-  private ArrayList msg;
+
+  // Parameters: integer values are kept unconverted (value is null)
+  private String[] names;
+  private String[] values;
+  private int[] intValues;
+  private int parameterCount = 0;
 
   private String sentMessage;
   private long timeSent;
-  private String receivedMessage;
+  private long timeSentNanos;
+  private byte[] received;
+  private int receivedLength;
   private int pos = 0;
+  private int tagPos = -1;
+  private int tagID = TACTag.UNKNOWN;
   private long responseTime;
   private boolean isTACError = false;
 
@@ -51,7 +62,6 @@ public class TACMessage {
 
   public TACMessage(String type) {
     this.type = type;
-    msg = new ArrayList();
   }
 
   public String getType() {
@@ -94,17 +104,48 @@ public class TACMessage {
   }
 
   void setReceivedMessage(String receivedMessage) {
-    if (this.receivedMessage != null) {
+    byte[] data = receivedMessage.getBytes();
+    setReceivedMessage(data, data.length);
+  }
+
+  // The message takes ownership of the buffer
+  void setReceivedMessage(byte[] buffer, int length) {
+    if (this.received != null) {
       throw new IllegalStateException("Message alredy received: " +
-				      this.receivedMessage);
+				      getReceivedMessage());
     }
     if (timeSent > 0) {
       responseTime = System.currentTimeMillis() - timeSent;
     }
-    this.receivedMessage = receivedMessage;
-    totalResponseTime += responseTime;
-    msgCount++;
+    this.received = buffer;
+    this.receivedLength = length;
 
+    if (log.isLoggable(Level.FINEST)) {
+      logExchange();
+    }
+
+    pos = 0;
+    if (nextTag() && (!isDeclaration() || nextTag())) {
+      if (isTag(type)) {
+	pos = 0;
+	tagPos = -1;
+      } else if (isTag("tacerror")) {
+	isTACError = true;
+      } else {
+	throw new IllegalStateException("Message not expected: " +
+					type + " -> " + getTag());
+      }
+    } else {
+      throw new IllegalArgumentException("Malformed message: " +
+					 getReceivedMessage());
+    }
+  }
+
+  String getReceivedMessage() {
+    return received == null ? null : new String(received, 0, receivedLength);
+  }
+
+  private void logExchange() {
     // Check if extra information should be displayed
     if ("getQuote".equals(type)) {
       Object data = userData;
@@ -128,124 +169,265 @@ public class TACMessage {
       }
     }
 
-    log.finest("XML out: '" + sentMessage + '\'');
-    log.finest("XML in: '" + receivedMessage + "' responseTime: " +
-	       getResponseTime() + " avg: " +
-	       getAverageResponseTime() + " count: " +
-	       getMessageCount());
-
-    pos = 0;
-    if (nextTag() && (!isDeclaration() || nextTag())) {
-      if (isTag(type)) {
-	pos = 0;
-      } else if (isTag("tacerror")) {
-	isTACError = true;
-      } else {
-	throw new IllegalStateException("Message not expected: " +
-					type + " -> " + getTag());
-      }
-    } else {
-      throw new IllegalArgumentException("Malformed message: " +
-					 receivedMessage);
-    }
+    log.finest("XML out: '" + getSentMessage() + '\'');
+    log.finest("XML in: '" + getReceivedMessage() + "' responseTime: " +
+	       getResponseTime());
   }
 
   public void setParameter(String name, String value) {
-    msg.add(name);
-    msg.add(value);
-    sentMessage = null;
+    addParameter(name, value, 0);
   }
 
   public void setParameter(String name, int value) {
-    msg.add(name);
-    msg.add(Integer.toString(value));
-    sentMessage = null;
+    addParameter(name, null, value);
   }
 
   public void setParameter(String name, float value) {
-    msg.add(name);
-    msg.add(Float.toString(value));
+    addParameter(name, Float.toString(value), 0);
+  }
+
+  private void addParameter(String name, String value, int intValue) {
+    if (names == null) {
+      names = new String[4];
+      values = new String[4];
+      intValues = new int[4];
+    } else if (parameterCount == names.length) {
+      int size = parameterCount * 2;
+      String[] tmp = new String[size];
+      System.arraycopy(names, 0, tmp, 0, parameterCount);
+      names = tmp;
+      tmp = new String[size];
+      System.arraycopy(values, 0, tmp, 0, parameterCount);
+      values = tmp;
+      int[] itmp = new int[size];
+      System.arraycopy(intValues, 0, itmp, 0, parameterCount);
+      intValues = itmp;
+    }
+    names[parameterCount] = name;
+    values[parameterCount] = value;
+    intValues[parameterCount] = intValue;
+    parameterCount++;
     sentMessage = null;
   }
 
   public String getParameter(String name) {
-    for (int i = 0, n = msg.size(); i < n; i += 2) {
-      if (msg.get(i).equals(name))
-	return (String) msg.get(i + 1);
+    for (int i = 0; i < parameterCount; i++) {
+      if (names[i].equals(name))
+	return getParameterValue(i);
     }
     return null;
   }
 
+  int getParameterCount() {
+    return parameterCount;
+  }
+
+  String getParameterName(int index) {
+    return names[index];
+  }
+
+  // Returns null for integer parameters
+  String getParameterString(int index) {
+    return values[index];
+  }
+
+  int getParameterInt(int index) {
+    return intValues[index];
+  }
+
+  private String getParameterValue(int index) {
+    String value = values[index];
+    return value != null ? value : Integer.toString(intValues[index]);
+  }
+
+  /**
+   * Encodes this message, including the terminating NUL, using the
+   * pre-encoded template for its type and timestamps it as sent.
+   *
+   * @return a flipped buffer that should be handed back with
+   *	<code>TACMessageTemplate.release()</code> when written
+   */
+  ByteBuffer encode() {
+    ByteBuffer buffer = TACMessageTemplate.encode(this);
+    setTimeSent();
+    return buffer;
+  }
+
+  // Timestamp the generation of this message (when it was sent)
+  void setTimeSent() {
+    this.timeSent = System.currentTimeMillis();
+    this.timeSentNanos = System.nanoTime();
+  }
+
+  /**
+   * Returns the <code>System.nanoTime()</code> when this message was
+   * encoded for sending.
+   */
+  long getTimeSentNanos() {
+    return timeSentNanos;
+  }
+
+  // -------------------------------------------------------------------
+  // Parse cursor over the received bytes. None of the tag tests or the
+  // numeric value accessors create any objects.
+  // -------------------------------------------------------------------
+
   public boolean nextTag() {
-    if (pos < receivedMessage.length()) {
-      int nextPos = receivedMessage.indexOf('<', pos);
-      if (nextPos >= 0) {
-	pos = nextPos + 1;
+    byte[] buf = received;
+    for (int i = pos, n = receivedLength; i < n; i++) {
+      if (buf[i] == '<') {
+	pos = i + 1;
+	tagPos = -1;
 	return true;
       }
     }
     return false;
   }
 
+  /**
+   * Returns the interned id of the tag at the cursor or
+   * <code>TACTag.UNKNOWN</code> if the tag name has not been registered.
+   */
+  public int getTagID() {
+    if (tagPos != pos) {
+      int end = indexOf('>', pos);
+      tagID = end > 0 ? TACTag.lookup(received, pos, end) : TACTag.UNKNOWN;
+      tagPos = pos;
+    }
+    return tagID;
+  }
+
+  public boolean isTag(int id) {
+    return getTagID() == id;
+  }
+
   public String getValue() {
-    int start = receivedMessage.indexOf('>', pos);
-    int end = receivedMessage.indexOf('<', start);
+    int start = indexOf('>', pos);
+    int end = indexOf('<', start);
     if (start > 0 && end > 0) {
-      return receivedMessage.substring(start + 1, end);
+      return new String(received, start + 1, end - start - 1);
     }
     return null;
   }
 
   public int getValueAsInt(int def) {
-    String val = getValue();
-    if (val != null) {
+    long val = parseLong(def);
+    return val >= Integer.MIN_VALUE && val <= Integer.MAX_VALUE
+      ? (int) val : def;
+  }
+
+  public long getValueAsLong(long def) {
+    return parseLong(def);
+  }
+
+  public float getValueAsFloat(float def) {
+    int start = indexOf('>', pos);
+    int end = indexOf('<', start);
+    if (start <= 0 || end <= 0) {
+      return def;
+    }
+    byte[] buf = received;
+    int i = start + 1;
+    boolean negative = false;
+    if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+      negative = buf[i] == '-';
+      i++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int decimals = 0;
+    boolean point = false;
+    for (; i < end; i++) {
+      int c = buf[i];
+      if (c >= '0' && c <= '9') {
+	mantissa = mantissa * 10 + (c - '0');
+	digits++;
+	if (point) {
+	  decimals++;
+	}
+      } else if (c == '.' && !point) {
+	point = true;
+      } else {
+	break;
+      }
+    }
+    if (i < end || digits == 0 || digits > 15
+	|| decimals >= POWERS_OF_TEN.length) {
+      // Exponents, NaN and other unusual formats
       try {
-	return Integer.parseInt(val);
+	return Float.parseFloat(new String(buf, start + 1, end - start - 1));
       } catch (Exception e) {
+	return def;
       }
     }
-    return def;
+    double value = mantissa / POWERS_OF_TEN[decimals];
+    return (float) (negative ? -value : value);
   }
 
-  public long getValueAsLong(long def) {
-    String val = getValue();
-    if (val != null) {
-      try {
-	return Long.parseLong(val);
-      } catch (Exception e) {
+  private long parseLong(long def) {
+    int start = indexOf('>', pos);
+    int end = indexOf('<', start);
+    if (start <= 0 || end <= 0) {
+      return def;
+    }
+    byte[] buf = received;
+    int i = start + 1;
+    boolean negative = false;
+    if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+      negative = buf[i] == '-';
+      i++;
+    }
+    if (i == end || end - i > 18) {
+      return def;
+    }
+    long value = 0;
+    for (; i < end; i++) {
+      int c = buf[i];
+      if (c < '0' || c > '9') {
+	return def;
       }
+      value = value * 10 + (c - '0');
     }
-    return def;
+    return negative ? -value : value;
   }
 
-  public float getValueAsFloat(float def) {
-    String val = getValue();
-    if (val != null) {
-      try {
-	return Float.parseFloat(val);
-      } catch (Exception e) {
+  private int indexOf(int c, int from) {
+    if (from < 0) {
+      return -1;
+    }
+    byte[] buf = received;
+    for (int i = from, n = receivedLength; i < n; i++) {
+      if (buf[i] == c) {
+	return i;
       }
     }
-    return def;
+    return -1;
   }
 
   public String getTag() {
-    int end = receivedMessage.indexOf('>', pos);
+    int end = indexOf('>', pos);
     if (end > 0) {
-      return receivedMessage.substring(pos, end);
+      return new String(received, pos, end - pos);
     }
     return null;
   }
 
   public boolean isDeclaration() {
-    return pos < receivedMessage.length()
-      && receivedMessage.charAt(pos) == '?';
+    return pos < receivedLength && received[pos] == '?';
   }
 
   public boolean isTag(String name) {
-    name = name + '>';
     int len = name.length();
-    return receivedMessage.regionMatches(pos, name, 0, len);
+    if (pos + len >= receivedLength || received[pos + len] != '>') {
+      return false;
+    }
+    byte[] buf = received;
+    for (int i = 0, p = pos; i < len; i++, p++) {
+      if (buf[p] != name.charAt(i)) {
+	return false;
+      }
+    }
+    return true;
   }
 
 //   public void reset() {
@@ -253,41 +435,26 @@ public class TACMessage {
 //   }
 
   public String getMessageString() {
+    String message = getSentMessage();
+    setTimeSent();
+    return message + '\0';
+  }
+
+  // The request without marking it as sent
+  String getSentMessage() {
     String message = this.sentMessage;
     if (message == null) {
       StringBuffer sb = new StringBuffer();
       sb.append('<').append(type).append('>');
 
-      for (int i = 0, n = msg.size(); i < n; i += 2) {
-	sb.append('<').append(msg.get(i)).append('>');
-	sb.append(msg.get(i+1));
-	sb.append("</").append(msg.get(i)).append('>');
+      for (int i = 0; i < parameterCount; i++) {
+	sb.append('<').append(names[i]).append('>');
+	sb.append(getParameterValue(i));
+	sb.append("</").append(names[i]).append('>');
       }
       sb.append("</").append(type).append('>');
-      this.sentMessage = sb.toString();
-      // Timestamp the generation of this message (when it was sent)
-      this.timeSent = System.currentTimeMillis();
-      return sb.append('\0').toString();
-    } else {
-      // Timestamp the generation of this message (when it was sent)
-      this.timeSent = System.currentTimeMillis();
-      return message + '\0';
-    }
-  }
-
-  public static long getMessageCount() {
-    return msgCount;
-  }
-
-  public static float getAverageResponseTime() {
-    if (msgCount == 0) {
-      return 0f;
+      message = this.sentMessage = sb.toString();
     }
-    return (float) (totalResponseTime / msgCount);
-  }
-
-  public static void resetResponseTime() {
-    totalResponseTime = 0;
-    msgCount = 0;
+    return message;
   }
 }
@@ -0,0 +1,175 @@
+package se.sics.tac.aw;
+
+import com.botbox.util.ArrayQueue;
+import se.sics.tac.util.LatencyHistogram;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers received messages to their receivers on a separate thread so
+ * that the connection threads only do I/O. Messages are delivered by a
+ * single consumer in the order they were received, which preserves the
+ * order of replies for each auction (and for the agent as a whole).
+ * <p>
+ * The dispatcher keeps track of the backlog of undelivered messages, the
+ * time messages wait in the backlog, and the time spent in the receivers.
+ */
+public class TACMessageDispatcher implements Runnable {
+
+    private static final Logger log = Logger.getLogger(TACMessageDispatcher.class.getName());
+
+    /**
+     * Callbacks taking longer than this (in milliseconds) are logged.
+     */
+    private static final int SLOW_CALLBACK = 500;
+
+    private final ArrayQueue queue = new ArrayQueue();
+
+    private final LatencyHistogram queueDelay = new LatencyHistogram();
+    private final LatencyHistogram callbackTime = new LatencyHistogram();
+    private int maxDepth = 0;
+    private long deliveredCount = 0;
+
+    private Thread thread;
+    private volatile boolean synchronous = false;
+    private boolean stopped = false;
+
+    public TACMessageDispatcher() {
+    }
+
+    /**
+     * Starts the delivery thread unless it has already been started.
+     */
+    public synchronized void start() {
+        if (thread == null) {
+            thread = new Thread(this, "TACMessageDispatcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the delivery thread. Undelivered messages are dropped.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        notify();
+    }
+
+    /**
+     * Sets whether messages are delivered directly in the thread that
+     * received them instead of by the delivery thread. Used when replaying
+     * games, where the connection has no I/O thread.
+     */
+    public void setSynchronous(boolean synchronous) {
+        this.synchronous = synchronous;
+    }
+
+    public boolean isSynchronous() {
+        return synchronous;
+    }
+
+    /**
+     * Queues a received message for delivery. The message is dropped when
+     * delivered if the connection it was received on has been closed.
+     */
+    public void deliver(TACMessage msg, TACConnection connection) {
+        Entry entry = new Entry(msg, connection, System.nanoTime());
+        if (synchronous) {
+            deliver(entry);
+            return;
+        }
+        synchronized (this) {
+            queue.add(entry);
+            if (queue.size() > maxDepth) {
+                maxDepth = queue.size();
+            }
+            notify();
+        }
+    }
+
+    public synchronized int getDepth() {
+        return queue.size();
+    }
+
+    public synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public synchronized long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    /**
+     * Returns the time messages wait before being delivered.
+     */
+    public LatencyHistogram getQueueDelay() {
+        return queueDelay;
+    }
+
+    /**
+     * Returns the time spent in the receivers' callbacks.
+     */
+    public LatencyHistogram getCallbackTime() {
+        return callbackTime;
+    }
+
+    public void run() {
+        while (true) {
+            Entry entry;
+            synchronized (this) {
+                while (queue.isEmpty() && !stopped) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        log.log(Level.SEVERE, "message dispatcher interrupted", e);
+                    }
+                }
+                if (stopped) {
+                    return;
+                }
+                entry = (Entry) queue.remove(0);
+            }
+            deliver(entry);
+        }
+    }
+
+    private void deliver(Entry entry) {
+        if (entry.connection.isConnected()) {
+            long startTime = System.nanoTime();
+            queueDelay.record((startTime - entry.receivedTime) / 1000);
+            entry.msg.deliverMessage();
+            callbackTime.recordSince(startTime);
+
+            long time = (System.nanoTime() - startTime) / 1000000;
+            if (time > SLOW_CALLBACK) {
+                log.warning("slow callback for " + entry.msg.getType()
+                        + " (" + time + " ms, "
+                        + getDepth() + " messages waiting)");
+            }
+        }
+        synchronized (this) {
+            deliveredCount++;
+        }
+    }
+
+    public synchronized String toString() {
+        return "depth=" + queue.size() + " (max " + maxDepth
+                + ") delivered=" + deliveredCount
+                + " wait: " + queueDelay
+                + " callback: " + callbackTime;
+    }
+
+    private static class Entry {
+        final TACMessage msg;
+        final TACConnection connection;
+        final long receivedTime;
+
+        Entry(TACMessage msg, TACConnection connection, long receivedTime) {
+            this.msg = msg;
+            this.connection = connection;
+            this.receivedTime = receivedTime;
+        }
+    }
+}
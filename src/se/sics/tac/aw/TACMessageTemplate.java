@@ -0,0 +1,200 @@
+package se.sics.tac.aw;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Pre-encoded byte skeleton for one message type. The opening and closing
+ * tags of the message and of every parameter name are encoded once and
+ * cached, so encoding a message only copies these bytes and writes the
+ * variable values (integer values are written as digits without creating
+ * any strings). String values are encoded as UTF-8.
+ * <p>
+ * Encoded messages are written into buffers taken from a shared pool of
+ * direct buffers that are handed back when the connection has written them.
+ */
+public final class TACMessageTemplate {
+
+    /**
+     * Capacity of the pooled buffers. Messages that do not fit (very long
+     * bid strings) are encoded into a one-off buffer instead.
+     */
+    public static final int BUFFER_SIZE = 2048;
+
+    private static final int MAX_POOLED = 256;
+
+    private static final ConcurrentHashMap<String, TACMessageTemplate> templates =
+            new ConcurrentHashMap<String, TACMessageTemplate>();
+    private static final ConcurrentHashMap<String, byte[][]> parameterTags =
+            new ConcurrentHashMap<String, byte[][]>();
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool =
+            new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final byte[] head;
+    private final byte[] tail;
+
+    private TACMessageTemplate(String type) {
+        head = ascii("<" + type + '>');
+        tail = ascii("</" + type + ">\0");
+    }
+
+    /**
+     * Returns the (shared) template for the message type.
+     */
+    public static TACMessageTemplate getTemplate(String type) {
+        TACMessageTemplate template = templates.get(type);
+        if (template == null) {
+            template = new TACMessageTemplate(type);
+            TACMessageTemplate old = templates.putIfAbsent(type, template);
+            if (old != null) {
+                template = old;
+            }
+        }
+        return template;
+    }
+
+    /**
+     * Takes a cleared buffer from the pool, allocating a new one if the pool is empty.
+     */
+    public static ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire()} to the pool. Buffers
+     * of other sizes are ignored.
+     */
+    public static void release(ByteBuffer buffer) {
+        if (buffer.isDirect() && buffer.capacity() == BUFFER_SIZE
+                && pool.size() < MAX_POOLED) {
+            pool.offer(buffer);
+        }
+    }
+
+    /**
+     * Encodes the message including the terminating NUL.
+     *
+     * @throws java.nio.BufferOverflowException if the buffer is too small
+     */
+    void encode(TACMessage msg, ByteBuffer out) {
+        out.put(head);
+        for (int i = 0, n = msg.getParameterCount(); i < n; i++) {
+            byte[][] tags = getParameterTags(msg.getParameterName(i));
+            out.put(tags[0]);
+            String value = msg.getParameterString(i);
+            if (value == null) {
+                putInt(out, msg.getParameterInt(i));
+            } else {
+                putString(out, value);
+            }
+            out.put(tags[1]);
+        }
+        out.put(tail);
+    }
+
+    /**
+     * Encodes the message into a pooled buffer (or a larger one-off buffer
+     * if needed) and returns it flipped and ready to be written.
+     */
+    static ByteBuffer encode(TACMessage msg) {
+        TACMessageTemplate template = getTemplate(msg.getType());
+        ByteBuffer buffer = acquire();
+        try {
+            template.encode(msg, buffer);
+        } catch (java.nio.BufferOverflowException e) {
+            release(buffer);
+            buffer = ByteBuffer.allocate(template.getEncodedLength(msg));
+            template.encode(msg, buffer);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Returns the number of bytes the message is encoded into (at most, for
+     * integer values, which are counted at their maximal length).
+     */
+    int getEncodedLength(TACMessage msg) {
+        int length = head.length + tail.length;
+        for (int i = 0, n = msg.getParameterCount(); i < n; i++) {
+            byte[][] tags = getParameterTags(msg.getParameterName(i));
+            length += tags[0].length + tags[1].length;
+            String value = msg.getParameterString(i);
+            length += value == null ? 11 : utf8Length(value);
+        }
+        return length;
+    }
+
+    private static byte[][] getParameterTags(String name) {
+        byte[][] tags = parameterTags.get(name);
+        if (tags == null) {
+            tags = new byte[][]{ascii("<" + name + '>'), ascii("</" + name + '>')};
+            parameterTags.putIfAbsent(name, tags);
+        }
+        return tags;
+    }
+
+    private static void putInt(ByteBuffer out, int value) {
+        if (value < 0) {
+            if (value == Integer.MIN_VALUE) {
+                out.put(ascii(Integer.toString(value)));
+                return;
+            }
+            out.put((byte) '-');
+            value = -value;
+        }
+        int divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.put((byte) ('0' + (value / divisor) % 10));
+        }
+    }
+
+    private static void putString(ByteBuffer out, String value) {
+        int n = value.length();
+        for (int j = 0; j < n; j++) {
+            if (value.charAt(j) >= 0x80) {
+                // Not plain ASCII: let the charset handle the rest
+                out.put(value.substring(j).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            out.put((byte) value.charAt(j));
+        }
+    }
+
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int j = 0, n = value.length(); j < n; j++) {
+            char c = value.charAt(j);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && j + 1 < n
+                    && Character.isLowSurrogate(value.charAt(j + 1))) {
+                length += 4;
+                j++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static byte[] ascii(String text) {
+        byte[] data = new byte[text.length()];
+        for (int i = 0, n = data.length; i < n; i++) {
+            data[i] = (byte) text.charAt(i);
+        }
+        return data;
+    }
+}
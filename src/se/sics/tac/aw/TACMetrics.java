@@ -0,0 +1,237 @@
+package se.sics.tac.aw;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import se.sics.tac.util.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.ObjectName;
+
+/**
+ * Registry of transport metrics per message type: reply latency, requests
+ * in flight, bytes in and out, retries and errors. The connections record
+ * requests as they are written and replies as they are received, so the
+ * latency covers the time on the wire and in the server but not the time
+ * waiting for delivery to the agent.
+ * <p>
+ * The metrics can be exported as a periodic log line (see
+ * {@link TACAgent}), as text over HTTP on the local host and as a JMX
+ * MBean. Each agent has metrics of its own (see {@link AgentRuntime}).
+ */
+public class TACMetrics implements TACMetricsMBean {
+
+    private static final Logger log = Logger.getLogger(TACMetrics.class.getName());
+
+    private final ConcurrentHashMap<String, MessageMetrics> types =
+            new ConcurrentHashMap<String, MessageMetrics>();
+
+    private HttpServer httpServer;
+
+    /**
+     * Returns the metrics for the message type, creating them if needed.
+     */
+    public MessageMetrics getMetrics(String type) {
+        MessageMetrics m = types.get(type);
+        if (m == null) {
+            m = new MessageMetrics(type);
+            MessageMetrics old = types.putIfAbsent(type, m);
+            if (old != null) {
+                m = old;
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Records that a request has been written to the server.
+     */
+    public void requestSent(TACMessage msg, int bytes) {
+        MessageMetrics m = getMetrics(msg.getType());
+        m.sent.incrementAndGet();
+        m.inFlight.incrementAndGet();
+        m.bytesOut.addAndGet(bytes);
+    }
+
+    /**
+     * Records that the reply for a request has been received. The reply
+     * must have been set in the message.
+     */
+    public void replyReceived(TACMessage msg, int bytes) {
+        MessageMetrics m = getMetrics(msg.getType());
+        m.inFlight.decrementAndGet();
+        m.bytesIn.addAndGet(bytes);
+        m.latency.recordSince(msg.getTimeSentNanos());
+        if (msg.isTACError()) {
+            m.errors.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records that a request was given up without a reply.
+     */
+    public void requestFailed(TACMessage msg, boolean wasSent) {
+        MessageMetrics m = getMetrics(msg.getType());
+        if (wasSent) {
+            m.inFlight.decrementAndGet();
+        }
+        m.errors.incrementAndGet();
+    }
+
+    public void requestRetried(TACMessage msg) {
+        getMetrics(msg.getType()).retries.incrementAndGet();
+    }
+
+    public String[] getTypes() {
+        String[] names = types.keySet().toArray(new String[0]);
+        Arrays.sort(names);
+        return names;
+    }
+
+    public String getSummary(String type) {
+        MessageMetrics m = types.get(type);
+        return m == null ? null : m.toString();
+    }
+
+    /**
+     * Returns one line per message type.
+     */
+    public String getSummary() {
+        StringBuffer sb = new StringBuffer();
+        String[] names = getTypes();
+        for (int i = 0; i < names.length; i++) {
+            sb.append(types.get(names[i])).append('\n');
+        }
+        return sb.toString();
+    }
+
+    public void reset() {
+        types.clear();
+    }
+
+    /**
+     * Registers the metrics as the MBean <code>se.sics.tac.aw:type=TACMetrics</code>,
+     * with the key <code>agent</code> added when an agent name is specified
+     * (for agents sharing the JVM).
+     */
+    public synchronized void registerMBean(String agent) {
+        try {
+            String type = "se.sics.tac.aw:type=TACMetrics";
+            ObjectName name = new ObjectName(agent == null ? type
+                    : type + ",agent=" + ObjectName.quote(agent));
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            }
+        } catch (Exception e) {
+            log.log(Level.WARNING, "could not register metrics MBean", e);
+        }
+    }
+
+    /**
+     * Serves the summary as text at <code>http://localhost:port/metrics</code>.
+     */
+    public synchronized void startHttpServer(int port) {
+        if (httpServer != null) {
+            return;
+        }
+        try {
+            httpServer = HttpServer.create(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            httpServer.createContext("/metrics", new HttpHandler() {
+                public void handle(HttpExchange exchange) throws IOException {
+                    byte[] body = getSummary().getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("Content-Type",
+                            "text/plain; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                }
+            });
+            httpServer.start();
+            log.info("serving metrics at http://localhost:" + port + "/metrics");
+        } catch (IOException e) {
+            log.log(Level.WARNING, "could not serve metrics on port " + port, e);
+            httpServer = null;
+        }
+    }
+
+    public synchronized void stopHttpServer() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpServer = null;
+        }
+    }
+
+
+    // -------------------------------------------------------------------
+    // Metrics for one message type
+    // -------------------------------------------------------------------
+
+    public static class MessageMetrics {
+
+        private final String type;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong inFlight = new AtomicLong();
+        private final AtomicLong bytesOut = new AtomicLong();
+        private final AtomicLong bytesIn = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+
+        MessageMetrics(String type) {
+            this.type = type;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * Returns the reply latency in microseconds.
+         */
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        public long getSent() {
+            return sent.get();
+        }
+
+        public long getInFlight() {
+            return inFlight.get();
+        }
+
+        public long getBytesOut() {
+            return bytesOut.get();
+        }
+
+        public long getBytesIn() {
+            return bytesIn.get();
+        }
+
+        public long getRetries() {
+            return retries.get();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        public String toString() {
+            return type + ": sent=" + sent.get() + " inFlight=" + inFlight.get()
+                    + " out=" + bytesOut.get() + "B in=" + bytesIn.get()
+                    + "B retries=" + retries.get() + " errors=" + errors.get()
+                    + " latency " + latency;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package se.sics.tac.aw;
+
+/**
+ * JMX management interface of {@link TACMetrics}.
+ */
+public interface TACMetricsMBean {
+
+    /**
+     * Returns the message types that have been recorded.
+     */
+    String[] getTypes();
+
+    /**
+     * Returns one summary line per message type.
+     */
+    String getSummary();
+
+    /**
+     * Returns the summary line for the message type or <code>null</code>.
+     */
+    String getSummary(String type);
+
+    void reset();
+}
@@ -0,0 +1,290 @@
+package se.sics.tac.aw;
+
+import com.botbox.util.ArrayQueue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking connection to the TAC server. A single I/O thread owns the
+ * socket channel: senders only enqueue the encoded message and wake the
+ * selector, and the I/O thread flushes everything that is pending with one
+ * gathering write. Replies are framed on the NUL terminator directly in the
+ * (direct) read buffer by the connection's {@link TACCodec}.
+ * <p>
+ * Use it by setting <code>connection=se.sics.tac.aw.TACNioConnection</code>
+ * in the agent configuration.
+ */
+public class TACNioConnection extends TACConnection implements Runnable {
+
+    private static final Logger log = Logger.getLogger(TACNioConnection.class.getName());
+
+    /**
+     * Size of the direct buffer the socket is read into.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Maximum number of buffers handed to a single gathering write.
+     */
+    private static final int MAX_GATHER = 64;
+
+    /**
+     * How often the I/O thread checks for requests that have timed out.
+     */
+    private static final int TIMEOUT_CHECK_PERIOD = 1000;
+
+    private SocketChannel channel;
+    private Selector selector;
+    private SelectionKey key;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+    /**
+     * Frames and decodes the received bytes.
+     */
+    private TACCodec codec;
+
+    /**
+     * Encoded messages waiting to be written, in send order.
+     */
+    private final ArrayQueue outbound = new ArrayQueue();
+
+    /**
+     * Requests pipelined to the server and waiting for their replies.
+     */
+    private TACRequestWindow window;
+
+    private volatile boolean disconnected = true;
+
+    protected void init() {
+        window = new TACRequestWindow(agent.getRequestWindow(), agent.getRequestTimeout(),
+                runtime.getMetrics());
+        codec = agent.createCodec();
+        doConnect();
+    }
+
+    public TACCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Returns the window of requests waiting for replies.
+     */
+    public TACRequestWindow getRequestWindow() {
+        return window;
+    }
+
+    public boolean isConnected() {
+        return !disconnected;
+    }
+
+    public void disconnect() {
+        disconnected = true;
+        Selector selector = this.selector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        SocketChannel channel = this.channel;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (Exception e) {
+                log.log(Level.SEVERE, "could not close connection:", e);
+            } finally {
+                this.channel = null;
+                log.fine("request window at disconnect: " + window);
+                window.clear();
+            }
+        }
+    }
+
+    public void sendMessage(TACMessage msg) throws IOException {
+        if (disconnected) {
+            throw new IOException("Disconnected from server");
+        }
+
+        synchronized (this) {
+            // The request window and the write queue must be kept in the
+            // same order. Requests beyond the window are written when
+            // replies arrive.
+            if (!window.add(msg)) {
+                return;
+            }
+            write(msg);
+        }
+        selector.wakeup();
+    }
+
+    public void run() {
+        try {
+            while (!disconnected) {
+                selector.select(TIMEOUT_CHECK_PERIOD);
+                if (disconnected) {
+                    break;
+                }
+                if (key.isValid() && key.isReadable()) {
+                    if (!read()) {
+                        break;
+                    }
+                    promote();
+                }
+                selector.selectedKeys().clear();
+                flush();
+                checkTimeout();
+            }
+        } catch (Throwable e) {
+            if (!disconnected) {
+                log.log(Level.SEVERE, "could not read:", e);
+            }
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "could not close selector", e);
+            }
+            agent.reset(0, this);
+        }
+    }
+
+    // Must be called with the lock held to keep the window order
+    private void write(TACMessage msg) {
+        ByteBuffer buffer = codec.encode(msg);
+        runtime.getMetrics().requestSent(msg, buffer.remaining());
+        outbound.add(buffer);
+    }
+
+    private synchronized void promote() {
+        TACMessage msg;
+        while ((msg = window.promote()) != null) {
+            write(msg);
+        }
+    }
+
+    private void checkTimeout() {
+        TACMessage msg = window.getExpired(System.currentTimeMillis());
+        if (msg != null) {
+            log.severe("no reply for " + msg.getType() + " (request "
+                    + window.getOldestSequence() + ") after "
+                    + (window.getTimeout() / 1000) + " sec: " + window);
+            // The reply stream can no longer be trusted
+            disconnect();
+        }
+    }
+
+    /**
+     * Writes as many of the pending messages as the socket accepts using a
+     * single gathering write. Write interest is only registered when the
+     * socket buffer is full.
+     */
+    private void flush() throws IOException {
+        int count;
+        synchronized (this) {
+            count = Math.min(outbound.size(), MAX_GATHER);
+            for (int i = 0; i < count; i++) {
+                gather[i] = (ByteBuffer) outbound.get(i);
+            }
+        }
+        if (count == 0) {
+            key.interestOps(SelectionKey.OP_READ);
+            return;
+        }
+
+        channel.write(gather, 0, count);
+
+        int written = 0;
+        while (written < count && !gather[written].hasRemaining()) {
+            written++;
+        }
+        synchronized (this) {
+            for (int i = 0; i < written; i++) {
+                outbound.remove(0);
+            }
+        }
+        for (int i = 0; i < written; i++) {
+            TACMessageTemplate.release(gather[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            gather[i] = null;
+        }
+
+        boolean pending;
+        synchronized (this) {
+            pending = !outbound.isEmpty();
+        }
+        key.interestOps(pending
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                : SelectionKey.OP_READ);
+    }
+
+    /**
+     * Reads what is available from the socket and handles all complete
+     * messages. Returns false if the server closed the connection.
+     */
+    private boolean read() throws IOException {
+        int len = channel.read(readBuffer);
+        if (len < 0) {
+            return false;
+        }
+        readBuffer.flip();
+        byte[] data;
+        while ((data = codec.decode(readBuffer)) != null) {
+            handleMessage(data);
+        }
+        readBuffer.clear();
+        return true;
+    }
+
+    // Synchronized to ensure that no one else sends a message before
+    // authentication of this connection!
+    private synchronized void doConnect() {
+        try {
+            String host = agent.getHost();
+            int port = agent.getPort();
+            log.fine("Connecting to server " + host + ':' + port);
+            channel = SocketChannel.open(new InetSocketAddress(host, port));
+            channel.socket().setTcpNoDelay(true);
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            key = channel.register(selector, SelectionKey.OP_READ);
+            disconnected = false;
+            new Thread(this, "TACNioConnection").start();
+
+            // Automatically login! -> give an auth to the agent...
+            TACMessage msg = new TACMessage("auth");
+            msg.setParameter("userName", agent.getUser());
+            msg.setParameter("userPW", agent.getPassword());
+            msg.setMessageReceiver(agent);
+            sendMessage(msg);
+
+        } catch (Exception e) {
+            disconnected = true;
+            log.log(Level.SEVERE, "connection to server failed:", e);
+            channel = null;
+        }
+    }
+
+    private void handleMessage(byte[] msg) {
+        if (disconnected) {
+            // The requests in flight were dropped (and recorded as failed)
+            // by disconnect()
+            return;
+        }
+        TACMessage tacMsg = window.complete(msg, msg.length);
+        if (tacMsg == null) {
+            log.warning("dropped reply matching no request: "
+                    + new String(msg, 0, Math.min(msg.length, 200)));
+            return;
+        }
+        tacMsg.setReceivedMessage(msg, msg.length);
+        runtime.getMetrics().replyReceived(tacMsg, msg.length);
+        deliver(tacMsg);
+    }
+}
@@ -26,33 +26,54 @@
 package se.sics.tac.aw;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import com.botbox.util.ArrayQueue;
-
 public class TACReader extends TACConnection implements Runnable {
 
   private static final Logger log =
     Logger.getLogger(TACReader.class.getName());
 
+  // How often the reader checks for requests that have timed out
+  private static final int TIMEOUT_CHECK_PERIOD = 1000;
+
   private InputStream input;
-  private OutputStreamWriter output;
+  private OutputStream output;
+  private byte[] writeBuffer = new byte[TACMessageTemplate.BUFFER_SIZE];
   private Socket socket;
 
-  private ArrayQueue queue = new ArrayQueue();
+  // Requests pipelined to the server and waiting for their replies
+  private TACRequestWindow window;
+  private TACCodec codec;
   private boolean disconnected = true;
 
   protected void init() {
+    window = new TACRequestWindow(agent.getRequestWindow(),
+				  agent.getRequestTimeout(),
+				  runtime.getMetrics());
+    codec = agent.createCodec();
     doConnect();
   }
 
+  public TACCodec getCodec() {
+    return codec;
+  }
+
   public boolean isConnected() {
     return !disconnected;
   }
 
+  /**
+   * Returns the window of requests waiting for replies
+   */
+  public TACRequestWindow getRequestWindow() {
+    return window;
+  }
+
   public void disconnect() {
     disconnected = true;
     if (socket != null) {
@@ -64,6 +85,8 @@ public class TACReader extends TACConnection implements Runnable {
 	log.log(Level.SEVERE,"could not close connection:", e);
       } finally {
 	socket = null;
+	log.fine("request window at disconnect: " + window);
+	window.clear();
       }
     }
   }
@@ -73,39 +96,61 @@ public class TACReader extends TACConnection implements Runnable {
       throw new IOException("Disconnected from server");
     }
 
-    String msgStr = msg.getMessageString();
-    addMessage(msg);
-    output.write(msgStr);
+    // Requests beyond the window are written when replies arrive
+    if (window.add(msg)) {
+      write(msg);
+    }
+  }
+
+  // Must be called with the lock held to keep the window order
+  private void write(TACMessage msg) throws IOException {
+    ByteBuffer buffer = codec.encode(msg);
+    // Recorded before writing: the reply may be read (and counted) by the
+    // reader thread before the flush returns
+    runtime.getMetrics().requestSent(msg, buffer.remaining());
+    while (buffer.hasRemaining()) {
+      int len = Math.min(buffer.remaining(), writeBuffer.length);
+      buffer.get(writeBuffer, 0, len);
+      output.write(writeBuffer, 0, len);
+    }
+    TACMessageTemplate.release(buffer);
     output.flush();
   }
 
+  // Promoted requests are written by the reader thread, holding the
+  // connection lock, since a reply is what frees their slot and no sender
+  // may be around to write them. A write that blocks (the server not
+  // reading) therefore also stops the reading of replies until the socket
+  // buffer drains, which is acceptable: such a server is not replying
+  // either and the request timeout disconnects it.
+  private synchronized void writePromoted() throws IOException {
+    TACMessage msg;
+    while (!disconnected && (msg = window.promote()) != null) {
+      write(msg);
+    }
+  }
+
   public void run() {
     try {
       byte[] buffer = new byte[1024];
-      StringBuffer lastMessage = new StringBuffer();
       int len;
-      int lastPos;
-
-      while (!disconnected && (len = input.read(buffer)) != -1) {
-	lastPos = 0;
-	for (int i = 0; i < len; i++) {
-	  if (buffer[i] == 0) {
-	    String msg = new String(buffer, lastPos, i - lastPos);
-	    lastMessage.append(msg);
-	    handleMessage(lastMessage.toString());
-	    lastMessage = new StringBuffer();
-	    lastPos = i + 1;
-	    /* To test if the server handles agents that does not read
-	       if (msg.indexOf("bidInfo") > 0) {
-	       System.out.println("Reader sleeping...");
-	       Thread.sleep(200000);
-	       }
-	    */
+
+      while (!disconnected) {
+	try {
+	  if ((len = input.read(buffer)) == -1) {
+	    break;
 	  }
+	} catch (SocketTimeoutException e) {
+	  checkTimeout();
+	  continue;
 	}
-	if (lastPos < len) {
-	  lastMessage.append(new String(buffer, lastPos, len - lastPos));
+	ByteBuffer in = ByteBuffer.wrap(buffer, 0, len);
+	byte[] data;
+	while ((data = codec.decode(in)) != null) {
+	  handleMessage(data);
 	}
+	writePromoted();
+	checkTimeout();
       }
     } catch (Throwable e) {
       log.log(Level.SEVERE, "could not read:", e);
@@ -114,6 +159,17 @@ public class TACReader extends TACConnection implements Runnable {
     }
   }
 
+  private void checkTimeout() {
+    TACMessage msg = window.getExpired(System.currentTimeMillis());
+    if (msg != null) {
+      log.severe("no reply for " + msg.getType() + " (request "
+		 + window.getOldestSequence() + ") after "
+		 + (window.getTimeout() / 1000) + " sec: " + window);
+      // The reply stream can no longer be trusted
+      disconnect();
+    }
+  }
+
   // Synchronized to ensure that no one else sends a message before
   // authentication of this connection!
   private synchronized void doConnect() {
@@ -122,8 +178,9 @@ public class TACReader extends TACConnection implements Runnable {
       int port = agent.getPort();
       log.fine("Connecting to server " + host + ':' + port);
       socket = new Socket(host, port);
+      socket.setSoTimeout(TIMEOUT_CHECK_PERIOD);
       input = socket.getInputStream();
-      output = new OutputStreamWriter(socket.getOutputStream());
+      output = socket.getOutputStream();
       disconnected = false;
       new Thread(this).start();
 
@@ -141,27 +198,20 @@ public class TACReader extends TACConnection implements Runnable {
     }
   }
 
-  private synchronized void addMessage(TACMessage msg) {
-    queue.add(msg);
-  }
-
-  private synchronized TACMessage getMessage() {
-    if (queue.isEmpty()) {
-      return null;
+  private void handleMessage(byte[] msg) {
+    if (disconnected) {
+      // The requests in flight were dropped (and recorded as failed) by
+      // disconnect()
+      return;
     }
-    return (TACMessage) queue.remove(0);
-  }
-
-  private void handleMessage(String msg) {
-    TACMessage tacMsg = getMessage();
+    TACMessage tacMsg = window.complete(msg, msg.length);
     if (tacMsg == null) {
-      ///??? ILLEGAL STATE!!!
-      throw new IllegalStateException("received unexpected message: "
-				      + msg);
-    }
-    if (!disconnected) {
-      tacMsg.setReceivedMessage(msg);
-      tacMsg.deliverMessage();
+      log.warning("dropped reply matching no request: "
+		  + new String(msg, 0, Math.min(msg.length, 200)));
+      return;
     }
+    tacMsg.setReceivedMessage(msg, msg.length);
+    runtime.getMetrics().replyReceived(tacMsg, msg.length);
+    deliver(tacMsg);
   }
 }
@@ -0,0 +1,202 @@
+package se.sics.tac.aw;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Connection that replays a recorded game (see {@link TACTrace}) instead
+ * of talking to a server. Each request is answered with the recorded reply
+ * to the same request (or, if the agent sends a request that was never
+ * recorded, to the same type of request) that was received closest before
+ * the current time.
+ * <p>
+ * The game runs on a virtual clock: the time dispatcher is switched to
+ * manual time and the replay thread moves it from task to task, and
+ * replies are delivered directly in the requesting thread. There are no
+ * waits, so a game replays as fast as the agent can process it.
+ * <pre>
+ *   java -jar PostTraumaticAgent.jar -connection se.sics.tac.aw.TACReplayConnection
+ *        -replayTrace games/aw_GAME_100.trace -nogui
+ * </pre>
+ * The agent exits when the replay is done. Agents that start threads of
+ * their own and wait for the wall clock are not replayed deterministically.
+ */
+public class TACReplayConnection extends TACConnection implements Runnable {
+
+    private static final Logger log = Logger.getLogger(TACReplayConnection.class.getName());
+
+    /**
+     * Replies received up to this long after a request are regarded as
+     * available when the request is sent (they were on their way).
+     */
+    private static final int REPLY_WINDOW = 1000;
+
+    /**
+     * The replay ends when the next timer task is this long after the last
+     * recorded message.
+     */
+    private static final int END_MARGIN = 10000;
+
+    // Requests that are only answered once (each recorded reply is used once)
+    private static final String[] ONCE_TYPES = {"auth", "nextGame"};
+
+    private TACTrace.Record[] records;
+    // Recorded replies by request and by message type, in time order
+    private final HashMap<String, ArrayList<TACTrace.Record>> byRequest =
+            new HashMap<String, ArrayList<TACTrace.Record>>();
+    private final HashMap<String, ArrayList<TACTrace.Record>> byType =
+            new HashMap<String, ArrayList<TACTrace.Record>>();
+
+    private volatile boolean connected = false;
+    private int replied = 0;
+    private int unanswered = 0;
+
+    protected void init() {
+        String name = agent.getReplayTrace();
+        if (name == null) {
+            log.severe("no game to replay (set replayTrace)");
+            return;
+        }
+        try {
+            records = TACTrace.read(new File(name));
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "could not read replay trace " + name, e);
+            return;
+        }
+        if (records.length == 0) {
+            log.severe("nothing to replay in " + name);
+            return;
+        }
+        for (int i = 0; i < records.length; i++) {
+            add(byRequest, records[i].getRequest(), records[i]);
+            add(byType, records[i].getType(), records[i]);
+        }
+        log.fine("replaying " + records.length + " messages from " + name);
+
+        // Start when the last login/next game message was received, so the
+        // game is as close ahead as when it was recorded
+        long startTime = records[0].getTime();
+        for (int i = 0; i < records.length
+                && TACTrace.isSessionType(records[i].getType()); i++) {
+            startTime = Math.max(startTime, records[i].getTime());
+        }
+        runtime.getDispatcher().setManualTime(startTime);
+        agent.getMessageDispatcher().setSynchronous(true);
+        connected = true;
+
+        TACMessage msg = new TACMessage("auth");
+        msg.setParameter("userName", agent.getUser());
+        msg.setParameter("userPW", agent.getPassword());
+        msg.setMessageReceiver(agent);
+        sendMessage(msg);
+
+        Thread thread = new Thread(this, "replay");
+        thread.start();
+    }
+
+    private static void add(HashMap<String, ArrayList<TACTrace.Record>> map,
+                            String key, TACTrace.Record record) {
+        ArrayList<TACTrace.Record> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<TACTrace.Record>();
+            map.put(key, list);
+        }
+        list.add(record);
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public void disconnect() {
+        connected = false;
+    }
+
+    public void sendMessage(TACMessage msg) {
+        if (!connected) {
+            return;
+        }
+        TACTrace.Record record = findReply(msg);
+        if (record == null) {
+            log.finer("no recorded reply for " + msg.getSentMessage());
+            synchronized (this) {
+                unanswered++;
+            }
+            return;
+        }
+        synchronized (this) {
+            replied++;
+        }
+        msg.setReceivedMessage(record.getReply());
+        deliver(msg);
+    }
+
+    private synchronized TACTrace.Record findReply(TACMessage msg) {
+        String type = msg.getType();
+        ArrayList<TACTrace.Record> list = byRequest.get(msg.getSentMessage());
+        if (list == null) {
+            list = byType.get(type);
+            if (list == null) {
+                return null;
+            }
+        }
+
+        if (isOnceType(type)) {
+            if (list.isEmpty()) {
+                return null;
+            }
+            TACTrace.Record record = list.remove(0);
+            // Used up for both the request and the type
+            byRequest.get(record.getRequest()).remove(record);
+            byType.get(type).remove(record);
+            return record;
+        }
+
+        // The last reply received before the time the request is sent
+        long time = agent.getServerTime() + REPLY_WINDOW;
+        int low = 0;
+        int high = list.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (list.get(mid).getTime() <= time) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return list.get(high >= 0 ? high : 0);
+    }
+
+    private static boolean isOnceType(String type) {
+        for (int i = 0; i < ONCE_TYPES.length; i++) {
+            if (ONCE_TYPES[i].equals(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves the virtual clock from task to task until the recorded game is
+     * over and then exits.
+     */
+    public void run() {
+        long start = System.nanoTime();
+        long endTime = records[records.length - 1].getTime() + END_MARGIN;
+        TimeDispatcher dispatcher = runtime.getDispatcher();
+        long next;
+        while (connected && (next = dispatcher.getNextTaskTime()) <= endTime) {
+            dispatcher.advanceTo(next);
+        }
+        synchronized (this) {
+            log.info("replay done in " + ((System.nanoTime() - start) / 1000000)
+                    + " ms: " + replied + " replies, " + unanswered
+                    + " requests without recorded reply");
+        }
+        runtime.exit(0);
+    }
+}
@@ -0,0 +1,260 @@
+package se.sics.tac.aw;
+
+import com.botbox.util.ArrayQueue;
+
+/**
+ * Bounded window of requests sent to the server and still waiting for a
+ * reply. Each request gets a sequence number when it enters the window and
+ * replies are correlated by message type: a reply is matched to the oldest
+ * in-flight request of the same type (a tacerror matches the oldest request)
+ * so that a reply arriving out of order is detected instead of being handed
+ * to the wrong request.
+ * <p>
+ * When the window is full, new requests are parked (in send order) and are
+ * promoted as replies free up slots. The connection is responsible for
+ * writing a request when {@link #add(TACMessage)} returns true and for
+ * writing promoted requests returned by {@link #promote()}. Both must be
+ * done while holding the connection's send lock so that the write order
+ * matches the window order.
+ */
+public class TACRequestWindow {
+
+    private final int capacity;
+    private final long timeout;
+
+    private final TACMessage[] requests;
+    private final long[] sequences;
+    private final long[] sentTimes;
+    private final TACMetrics metrics;
+    private int head = 0;
+    private int count = 0;
+
+    private final ArrayQueue parked = new ArrayQueue();
+
+    private long nextSequence = 0;
+
+    // Statistics
+    private int maxDepth = 0;
+    private int maxParked = 0;
+    private long completedCount = 0;
+    private long outOfOrderCount = 0;
+    private long unexpectedCount = 0;
+    private long timeoutCount = 0;
+
+    /**
+     * @param capacity the maximal number of requests in flight
+     * @param timeout  the time in milliseconds to wait for a reply before
+     *                 the request is regarded as lost
+     * @param metrics  the metrics to record dropped requests in
+     */
+    public TACRequestWindow(int capacity, long timeout, TACMetrics metrics) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.timeout = timeout;
+        this.metrics = metrics;
+        this.requests = new TACMessage[capacity];
+        this.sequences = new long[capacity];
+        this.sentTimes = new long[capacity];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Adds a request to the window.
+     *
+     * @return true if the request entered the window and should be written
+     * now, false if it was parked because the window is full
+     */
+    public synchronized boolean add(TACMessage msg) {
+        if (count == capacity || !parked.isEmpty()) {
+            parked.add(msg);
+            if (parked.size() > maxParked) {
+                maxParked = parked.size();
+            }
+            return false;
+        }
+        enter(msg);
+        return true;
+    }
+
+    /**
+     * Moves the oldest parked request into the window if there is room.
+     *
+     * @return the request to write or <code>null</code> if none could be promoted
+     */
+    public synchronized TACMessage promote() {
+        if (count == capacity || parked.isEmpty()) {
+            return null;
+        }
+        TACMessage msg = (TACMessage) parked.remove(0);
+        enter(msg);
+        return msg;
+    }
+
+    private void enter(TACMessage msg) {
+        int index = (head + count) % capacity;
+        requests[index] = msg;
+        sequences[index] = nextSequence++;
+        sentTimes[index] = System.currentTimeMillis();
+        count++;
+        if (count > maxDepth) {
+            maxDepth = count;
+        }
+    }
+
+    /**
+     * Removes and returns the request the reply belongs to.
+     *
+     * @param reply  the received reply
+     * @param length the number of bytes in the reply
+     * @return the request or <code>null</code> if no in-flight request
+     * matches the reply (the reply should then be dropped)
+     */
+    public synchronized TACMessage complete(byte[] reply, int length) {
+        int nameStart = rootTagStart(reply, length);
+        if (nameStart >= 0 && count > 0) {
+            boolean isError = matches("tacerror", reply, nameStart, length);
+            for (int i = 0; i < count; i++) {
+                int index = (head + i) % capacity;
+                TACMessage msg = requests[index];
+                if (isError || matches(msg.getType(), reply, nameStart, length)) {
+                    if (i > 0) {
+                        outOfOrderCount++;
+                    }
+                    remove(i);
+                    completedCount++;
+                    return msg;
+                }
+            }
+        }
+        unexpectedCount++;
+        return null;
+    }
+
+    private void remove(int position) {
+        // Close the gap by shifting the older entries one step forward
+        for (int i = position; i > 0; i--) {
+            int to = (head + i) % capacity;
+            int from = (head + i - 1) % capacity;
+            requests[to] = requests[from];
+            sequences[to] = sequences[from];
+            sentTimes[to] = sentTimes[from];
+        }
+        requests[head] = null;
+        head = (head + 1) % capacity;
+        count--;
+    }
+
+    /**
+     * Returns the oldest in-flight request that has waited longer than the
+     * timeout or <code>null</code> if no request has expired. The request
+     * remains in the window.
+     */
+    public synchronized TACMessage getExpired(long currentTime) {
+        if (count > 0 && timeout > 0 && (currentTime - sentTimes[head]) > timeout) {
+            timeoutCount++;
+            return requests[head];
+        }
+        return null;
+    }
+
+    /**
+     * Returns the sequence number the oldest in-flight request was given or
+     * -1 if no request is in flight.
+     */
+    public synchronized long getOldestSequence() {
+        return count > 0 ? sequences[head] : -1L;
+    }
+
+    /**
+     * Drops all in-flight and parked requests (when the connection is
+     * closed). The in-flight requests are recorded as failed.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < capacity; i++) {
+            if (requests[i] != null) {
+                metrics.requestFailed(requests[i], true);
+                requests[i] = null;
+            }
+        }
+        head = 0;
+        count = 0;
+        parked.clear();
+    }
+
+    public synchronized int getDepth() {
+        return count;
+    }
+
+    public synchronized int getParkedCount() {
+        return parked.size();
+    }
+
+    public synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public synchronized int getMaxParked() {
+        return maxParked;
+    }
+
+    public synchronized long getCompletedCount() {
+        return completedCount;
+    }
+
+    public synchronized long getOutOfOrderCount() {
+        return outOfOrderCount;
+    }
+
+    /**
+     * Returns the number of replies that matched no in-flight request.
+     */
+    public synchronized long getUnexpectedCount() {
+        return unexpectedCount;
+    }
+
+    public synchronized long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    public synchronized String toString() {
+        return "depth=" + count + " (max " + maxDepth + '/' + capacity
+                + ") parked=" + parked.size() + " (max " + maxParked
+                + ") completed=" + completedCount
+                + " outOfOrder=" + outOfOrderCount
+                + " unexpected=" + unexpectedCount
+                + " timeouts=" + timeoutCount;
+    }
+
+    // Returns the start of the root tag name (after any XML declaration)
+    private static int rootTagStart(byte[] reply, int length) {
+        for (int i = 0; i < length; i++) {
+            if (reply[i] == '<' && i + 1 < length && reply[i + 1] != '?') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matches(String name, byte[] reply, int start, int length) {
+        int len = name.length();
+        if (start + len >= length) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (reply[start + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        byte end = reply[start + len];
+        return end == '>' || end == ' ' || end == '/';
+    }
+}
@@ -0,0 +1,318 @@
+package se.sics.tac.aw;
+
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Connection that plays games against an in-process TAC Classic market
+ * (see {@link TACMarket}) instead of a TAC server. The agent plays with
+ * seven opponent bots and a new game starts a few seconds after the agent
+ * asks for one.
+ * <p>
+ * The games run on a virtual clock: the time dispatcher is switched to
+ * manual time and the simulator thread moves it from task to task, and
+ * replies are delivered directly in the requesting thread. A game takes
+ * as long as the agent needs to compute its bids.
+ * <pre>
+ *   java -jar PostTraumaticAgent.jar -connection se.sics.tac.aw.TACSimConnection
+ *        -simSeed 42 -exitAfterGames 100 -nogui
+ * </pre>
+ * Each agent has its own virtual clock (see {@link AgentRuntime}), so
+ * many agents can play simulated games side by side in one JVM (see
+ * {@link TACTournament}).
+ */
+public class TACSimConnection extends TACConnection implements Runnable {
+
+    private static final Logger log = Logger.getLogger(TACSimConnection.class.getName());
+
+    // The agent is the first agent in each market
+    private static final int AGENT = 0;
+    private static final int USER_ID = 1;
+
+    /**
+     * A new game starts this long after the agent asks for it.
+     */
+    private static final int GAME_DELAY = 5000;
+
+    private Random random;
+    private TACMarket market;
+    private int nextGameID = 1;
+    private volatile boolean connected = false;
+
+    // Results over all games played
+    private int games = 0;
+    private double totalScore = 0.0;
+    private long simulationStart;
+
+    protected void init() {
+        random = agent.hasSimulatorSeed()
+                ? new Random(agent.getSimulatorSeed()) : new Random();
+
+        runtime.getDispatcher().setManualTime(System.currentTimeMillis() / 1000 * 1000);
+        agent.getMessageDispatcher().setSynchronous(true);
+        // The game ids restart at 1 in every run, so the journal of an
+        // earlier run would be taken for the game being played
+        agent.disableJournal();
+        connected = true;
+        simulationStart = System.nanoTime();
+
+        TACMessage msg = new TACMessage("auth");
+        msg.setParameter("userName", agent.getUser());
+        msg.setParameter("userPW", agent.getPassword());
+        msg.setMessageReceiver(agent);
+        sendMessage(msg);
+
+        Thread thread = new Thread(this, "simulator");
+        thread.start();
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public void disconnect() {
+        connected = false;
+    }
+
+    public void sendMessage(TACMessage msg) {
+        if (!connected) {
+            return;
+        }
+        String reply = handle(msg);
+        if (reply != null) {
+            msg.setReceivedMessage(reply);
+            deliver(msg);
+        }
+    }
+
+    private String handle(TACMessage msg) {
+        String type = msg.getType();
+        StringBuffer sb = new StringBuffer().append('<').append(type).append('>');
+        int status = TACAgent.NO_ERROR;
+        if ("quit".equals(type)) {
+            return null;
+        } else if ("auth".equals(type)) {
+            tag(sb, "userID", USER_ID);
+        } else if ("serverTime".equals(type)) {
+            tag(sb, "time", agent.getServerTime() / 1000);
+        } else if ("nextGame".equals(type)) {
+            TACMarket m = nextGame();
+            tag(sb, "gameID", m.getGameID());
+            tag(sb, "startTime", m.getStartTime() / 1000);
+        } else {
+            TACMarket m = getMarket();
+            if (m == null) {
+                status = TACAgent.GAME_NOT_FOUND;
+            } else if ("getGameAuctionIDs".equals(type)) {
+                auctionIDs(m, sb);
+            } else if ("getGameConsts".equals(type)) {
+                tag(sb, "gameLength", m.getGameLength() / 1000);
+                tag(sb, "gameType", "tacClassic");
+            } else if ("getGameParams".equals(type)) {
+                gameParams(m, sb);
+            } else if ("recoverBidIDs".equals(type)) {
+                recoverBidIDs(m, sb);
+            } else if ("getQuote".equals(type)) {
+                status = quote(m, msg, sb);
+            } else if ("submitBid".equals(type) || "replaceBid".equals(type)) {
+                status = submitBid(m, msg, sb);
+            } else if ("bidInfo".equals(type)) {
+                status = bidInfo(m, msg, sb);
+            } else if ("transIDs".equals(type)) {
+                int[] ids = m.getTransactionIDs(AGENT,
+                        getInt(msg, "earliestTransID", -1));
+                sb.append("<list>");
+                for (int i = 0; i < ids.length; i++) {
+                    tag(sb, "transID", ids[i]);
+                }
+                sb.append("</list>");
+            } else if ("transInfo".equals(type)) {
+                TACMarket.MarketTransaction trans =
+                        m.getTransaction(getInt(msg, "transID", -1));
+                if (trans == null || trans.getAgent() != AGENT) {
+                    status = TACAgent.TRANS_NOT_FOUND;
+                } else {
+                    tag(sb, "auctionID", m.getAuctionID(trans.getAuction()));
+                    tag(sb, "quantity", trans.getQuantity());
+                    tag(sb, "price", trans.getPrice());
+                }
+            } else {
+                log.warning("unsupported message " + type);
+                status = TACAgent.NOT_SUPPORTED;
+            }
+        }
+        tag(sb, "commandStatus", status);
+        return sb.append("</").append(type).append('>').toString();
+    }
+
+    private synchronized TACMarket getMarket() {
+        return market;
+    }
+
+    // Returns the game in progress or starts a new one
+    private synchronized TACMarket nextGame() {
+        long now = agent.getServerTime();
+        if (market == null || market.getStartTime() + market.getGameLength() < now) {
+            long startTime = (now + GAME_DELAY + 999) / 1000 * 1000;
+            market = new TACMarket(nextGameID++, startTime,
+                    TACMarket.DEFAULT_GAME_LENGTH, random, runtime.getDispatcher());
+            market.start();
+            // After the market has ended the game
+            final TACMarket m = market;
+            runtime.getDispatcher().addTask(startTime + m.getGameLength(), m, null,
+                    (time, key, value) -> gameEnded(m));
+        }
+        return market;
+    }
+
+    private synchronized void gameEnded(TACMarket m) {
+        games++;
+        totalScore += m.getScore(AGENT);
+        long elapsed = (System.nanoTime() - simulationStart) / 1000000;
+        log.info("game " + m.getGameID() + " score " + m.getScore(AGENT)
+                + " (utility " + m.getUtility(AGENT) + ", cost " + m.getCost(AGENT)
+                + "), average " + (float) (totalScore / games) + " over " + games
+                + " games in " + elapsed + " ms");
+        if (runtime instanceof TACTournament.Game) {
+            ((TACTournament.Game) runtime).gameEnded(m);
+        }
+    }
+
+    private void auctionIDs(TACMarket m, StringBuffer sb) {
+        sb.append("<auctionIDs><list>");
+        for (int i = 0, n = TACAgent.getAuctionNo(); i < n; i++) {
+            sb.append("<TACAuctionTuple>");
+            tag(sb, "category", TACAgent.auctionCategoryToString(TACAgent.getAuctionCategory(i)));
+            tag(sb, "type", TACAgent.getAuctionType(i));
+            tag(sb, "day", TACAgent.getAuctionDay(i));
+            tag(sb, "ID", m.getAuctionID(i));
+            sb.append("</TACAuctionTuple>");
+        }
+        sb.append("</list></auctionIDs>");
+    }
+
+    private void gameParams(TACMarket m, StringBuffer sb) {
+        int[][] prefs = m.getClientPreferences(AGENT);
+        sb.append("<clientPreferences><list>");
+        for (int c = 0; c < prefs.length; c++) {
+            int[] p = prefs[c];
+            sb.append("<clientPrefTuple>");
+            tag(sb, "client", c + 1);
+            tag(sb, "arrival", p[TACAgent.ARRIVAL]);
+            tag(sb, "departure", p[TACAgent.DEPARTURE]);
+            tag(sb, "hotel", p[TACAgent.HOTEL_VALUE]);
+            sb.append("<ticketPreferences><list>");
+            for (int type = 1; type <= 3; type++) {
+                sb.append("<typePriceTuple>");
+                tag(sb, "type", type);
+                tag(sb, "price", p[TACAgent.E1 + type - 1]);
+                sb.append("</typePriceTuple>");
+            }
+            sb.append("</list></ticketPreferences></clientPrefTuple>");
+        }
+        sb.append("</list></clientPreferences><ticketEndowments><list>");
+        for (int i = TACAgent.MIN_ENTERTAINMENT; i <= TACAgent.MAX_ENTERTAINMENT; i++) {
+            int quantity = m.getEndowment(AGENT, i);
+            if (quantity > 0) {
+                sb.append("<ticketEndowmentTuple>");
+                tag(sb, "type", TACAgent.getAuctionType(i));
+                tag(sb, "day", TACAgent.getAuctionDay(i));
+                tag(sb, "quantity", quantity);
+                sb.append("</ticketEndowmentTuple>");
+            }
+        }
+        sb.append("</list></ticketEndowments>");
+    }
+
+    private void recoverBidIDs(TACMarket m, StringBuffer sb) {
+        TACMarket.MarketBid[] bids = m.getActiveBids(AGENT);
+        sb.append("<list>");
+        for (int i = 0; i < bids.length; i++) {
+            sb.append("<auctionBidIDsTuple>");
+            tag(sb, "auctionID", m.getAuctionID(bids[i].getAuction()));
+            tag(sb, "bidID", bids[i].getID());
+            sb.append("</auctionBidIDsTuple>");
+        }
+        sb.append("</list>");
+    }
+
+    private int quote(TACMarket m, TACMessage msg, StringBuffer sb) {
+        int auction = m.getAuction(getInt(msg, "auctionID", -1));
+        if (auction < 0) {
+            return TACAgent.AUCTION_NOT_FOUND;
+        }
+        tag(sb, "lastAskPrice", m.getAskPrice(auction));
+        tag(sb, "lastBidPrice", m.getBidPrice(auction));
+        if (msg.getParameter("bidID") != null
+                && TACAgent.getAuctionCategory(auction) == TACAgent.CAT_HOTEL) {
+            tag(sb, "hypotheticalQuantityWon", m.getHQW(AGENT, auction));
+        }
+        tag(sb, "auctionStatus", m.getAuctionStatus(auction));
+        tag(sb, "nextQuoteTime", m.getNextQuoteTime(auction) / 1000);
+        tag(sb, "lastQuoteTime", m.getLastQuoteTime(auction) / 1000);
+        return TACAgent.NO_ERROR;
+    }
+
+    private int submitBid(TACMarket m, TACMessage msg, StringBuffer sb) {
+        int auction = m.getAuction(getInt(msg, "auctionID", -1));
+        if (auction < 0) {
+            return TACAgent.AUCTION_NOT_FOUND;
+        }
+        TACMarket.MarketBid bid = m.submitBid(AGENT, auction, msg.getParameter("bidString"),
+                getInt(msg, "bidID", -1), msg.getParameter("bidHash"));
+        if (bid.getCommandStatus() == TACAgent.NO_ERROR) {
+            tag(sb, "bidID", bid.getID());
+            tag(sb, "bidHash", bid.getHash());
+            tag(sb, "rejectReason", bid.getRejectReason());
+        }
+        return bid.getCommandStatus();
+    }
+
+    private int bidInfo(TACMarket m, TACMessage msg, StringBuffer sb) {
+        TACMarket.MarketBid bid = m.getBid(getInt(msg, "bidID", -1));
+        if (bid == null || bid.getAgent() != AGENT) {
+            return TACAgent.BID_NOT_FOUND;
+        }
+        synchronized (m) {
+            tag(sb, "bidString", bid.getBidString());
+            tag(sb, "bidHash", bid.getHash());
+            tag(sb, "rejectReason", bid.getRejectReason());
+            tag(sb, "processingState", bid.getProcessingState());
+            tag(sb, "timeClosed", bid.getTimeClosed() / 1000);
+            tag(sb, "timeProcessed", bid.getTimeSubmitted() / 1000);
+        }
+        return TACAgent.NO_ERROR;
+    }
+
+    private static int getInt(TACMessage msg, String name, int def) {
+        String value = msg.getParameter(name);
+        if (value == null) {
+            return def;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    private static void tag(StringBuffer sb, String name, Object value) {
+        sb.append('<').append(name).append('>').append(value)
+                .append("</").append(name).append('>');
+    }
+
+    /**
+     * Moves the virtual clock from task to task until the agent exits or
+     * disconnects.
+     */
+    public void run() {
+        TimeDispatcher dispatcher = runtime.getDispatcher();
+        long next;
+        while (connected && (next = dispatcher.getNextTaskTime()) < Long.MAX_VALUE) {
+            dispatcher.advanceTo(next);
+        }
+        if (connected) {
+            log.severe("simulation stopped: nothing more is scheduled");
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package se.sics.tac.aw;
+
+/**
+ * Registry of interned XML tag names. Each tag name is given a small integer
+ * id once, and received messages can then resolve the tag under the parse
+ * cursor to its id directly from the received bytes without creating any
+ * strings (see {@link TACMessage#getTagID()}).
+ * <p>
+ * Lookups never lock; registering a new name publishes a new table.
+ */
+public final class TACTag {
+
+    /**
+     * Id returned for tags that have not been registered.
+     */
+    public static final int UNKNOWN = 0;
+
+    private static volatile Table table = new Table(128);
+
+    private TACTag() {
+    }
+
+    /**
+     * Returns the id for the specified tag name, registering it if needed.
+     *
+     * @param name the tag name (without brackets), e.g. "getQuote" or "/transInfo"
+     * @return the id of the tag name, always greater than UNKNOWN
+     */
+    public static int getID(String name) {
+        Table t = table;
+        int id = t.find(name);
+        if (id != UNKNOWN) {
+            return id;
+        }
+        synchronized (TACTag.class) {
+            t = table;
+            id = t.find(name);
+            if (id == UNKNOWN) {
+                // Copy on write so concurrent lookups always see a complete table
+                t = t.copyFor(t.count + 1);
+                id = t.add(name);
+                table = t;
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Returns the tag name registered for the id or <code>null</code> if unknown.
+     */
+    public static String getName(int id) {
+        Table t = table;
+        return id > UNKNOWN && id < t.count ? t.names[id] : null;
+    }
+
+    /**
+     * Returns the id of the tag name stored in the bytes
+     * <code>buffer[start..end)</code> or UNKNOWN if the name has not been
+     * registered. This method does not allocate.
+     */
+    static int lookup(byte[] buffer, int start, int end) {
+        return table.find(buffer, start, end);
+    }
+
+    private static int hash(String name) {
+        int h = 0;
+        for (int i = 0, n = name.length(); i < n; i++) {
+            h = 31 * h + (name.charAt(i) & 0xff);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static int hash(byte[] buffer, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + (buffer[i] & 0xff);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Open addressing hash table from tag name to id. Slots hold ids and
+     * the names are stored in id order.
+     */
+    private static class Table {
+
+        private final int[] slots;
+        private final String[] names;
+        private int count = 1;
+
+        Table(int capacity) {
+            slots = new int[capacity * 2];
+            names = new String[capacity];
+        }
+
+        Table copyFor(int size) {
+            Table t = new Table(size < names.length ? names.length : names.length * 2);
+            for (int i = 1; i < count; i++) {
+                t.add(names[i]);
+            }
+            return t;
+        }
+
+        int add(String name) {
+            int id = count++;
+            names[id] = name;
+            int mask = slots.length - 1;
+            int i = hash(name) & mask;
+            while (slots[i] != UNKNOWN) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = id;
+            return id;
+        }
+
+        int find(String name) {
+            int mask = slots.length - 1;
+            for (int i = hash(name) & mask, id; (id = slots[i]) != UNKNOWN; i = (i + 1) & mask) {
+                if (names[id].equals(name)) {
+                    return id;
+                }
+            }
+            return UNKNOWN;
+        }
+
+        int find(byte[] buffer, int start, int end) {
+            int mask = slots.length - 1;
+            for (int i = hash(buffer, start, end) & mask, id; (id = slots[i]) != UNKNOWN; i = (i + 1) & mask) {
+                if (matches(names[id], buffer, start, end)) {
+                    return id;
+                }
+            }
+            return UNKNOWN;
+        }
+
+        private static boolean matches(String name, byte[] buffer, int start, int end) {
+            int len = name.length();
+            if (len != end - start) {
+                return false;
+            }
+            for (int i = 0; i < len; i++) {
+                if (name.charAt(i) != (buffer[start + i] & 0xff)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
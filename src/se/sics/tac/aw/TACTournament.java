@@ -0,0 +1,316 @@
+package se.sics.tac.aw;
+
+import se.sics.tac.util.ArgEnumerator;
+import se.sics.tac.util.LogFormatter;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Plays many simulated games (see {@link TACSimConnection}) in one JVM,
+ * several at the same time, and reports the distribution of the agent's
+ * scores and ranks. Each game has its own agent, agent implementation,
+ * runtime (see {@link AgentRuntime}) and market on a virtual clock, so the
+ * games are independent of each other and of the number of threads.
+ * <pre>
+ *   java -cp PostTraumaticAgent.jar se.sics.tac.aw.TACTournament
+ *        -games 1000 -threads 8 -simSeed 1 -results results.txt
+ * </pre>
+ * The games use consecutive seeds starting with simSeed, so a tournament
+ * can be repeated game by game.
+ */
+public class TACTournament {
+
+    private static final Logger log = Logger.getLogger(TACTournament.class.getName());
+
+    /**
+     * A game that has not ended after this long (wall time) is given up.
+     */
+    private static final int GAME_TIMEOUT = 5 * 60 * 1000;
+
+    private final String agentClass;
+    private final Properties config;
+    private final int gameCount;
+    private final int threads;
+    private final int seed;
+    private final Game[] games;
+    private long elapsed;
+
+    public TACTournament(String agentClass, Properties config, int gameCount,
+                         int threads, int seed) {
+        this.agentClass = agentClass;
+        this.config = config;
+        this.gameCount = gameCount;
+        this.threads = threads;
+        this.seed = seed;
+        this.games = new Game[gameCount];
+    }
+
+    /**
+     * Plays all games and returns when they have ended.
+     */
+    public void run() throws InterruptedException {
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < gameCount; i++) {
+            final int index = i;
+            executor.execute(() -> play(index));
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        elapsed = (System.nanoTime() - start) / 1000000;
+    }
+
+    private void play(int index) {
+        Game game = new Game(index, seed + index);
+        synchronized (games) {
+            games[index] = game;
+        }
+        try {
+            Properties p = new Properties();
+            p.putAll(config);
+            p.setProperty("agent", "tournament" + index);
+            p.setProperty("password", "tournament");
+            p.setProperty("connection", TACSimConnection.class.getName());
+            p.setProperty("simSeed", Integer.toString(game.seed));
+            p.setProperty("exitAfterGames", "1");
+            p.setProperty("logPrefix", config.getProperty("logPrefix", "aw") + '_' + index);
+            // Restarting a simulated game makes no sense
+            p.setProperty("journal", "false");
+            AgentImpl agent = (AgentImpl) Class.forName(agentClass).newInstance();
+            new TACAgent(agent, new ArgEnumerator(new String[0], ""), p, game);
+            if (!game.awaitExit(GAME_TIMEOUT)) {
+                log.severe("game " + index + " (seed " + game.seed
+                        + ") did not end within " + (GAME_TIMEOUT / 1000) + " seconds");
+            }
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "could not play game " + index, e);
+        } finally {
+            // Stops the agent unless it has already exited
+            game.exit(1);
+            AgentRuntime.unbind();
+        }
+    }
+
+    /**
+     * Returns the games played (null for games not started).
+     */
+    public Game[] getGames() {
+        synchronized (games) {
+            return games.clone();
+        }
+    }
+
+    /**
+     * Writes one line per game: index, seed, score, utility, cost and
+     * rank, or only index and seed if the game did not end.
+     */
+    public void writeResults(String file) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            out.println("# game\tseed\tscore\tutility\tcost\trank");
+            Game[] games = getGames();
+            for (int i = 0; i < games.length; i++) {
+                Game g = games[i];
+                if (g == null) {
+                    continue;
+                }
+                out.print(g.index + "\t" + g.seed);
+                if (g.isEnded()) {
+                    out.print("\t" + g.getScore() + '\t' + g.getUtility() + '\t'
+                            + g.getCost() + '\t' + g.getRank());
+                }
+                out.println();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the score and rank distributions over the ended games.
+     */
+    public String getSummary() {
+        Game[] games = getGames();
+        float[] scores = new float[games.length];
+        int[] ranks = new int[TACMarket.AGENTS + 1];
+        int n = 0;
+        double sum = 0.0;
+        double sumSquares = 0.0;
+        long rankSum = 0;
+        for (int i = 0; i < games.length; i++) {
+            if (games[i] != null && games[i].isEnded()) {
+                float score = games[i].getScore();
+                scores[n++] = score;
+                sum += score;
+                sumSquares += (double) score * score;
+                int rank = games[i].getRank();
+                ranks[rank]++;
+                rankSum += rank;
+            }
+        }
+        StringBuffer sb = new StringBuffer();
+        sb.append("games: ").append(n).append(" of ").append(gameCount)
+                .append(" ended in ").append(elapsed / 1000.0).append(" s on ")
+                .append(threads).append(" threads");
+        if (elapsed > 0) {
+            sb.append(", ").append(n * 3600000L / elapsed).append(" games/hour");
+        }
+        sb.append('\n');
+        if (n == 0) {
+            return sb.toString();
+        }
+        Arrays.sort(scores, 0, n);
+        double mean = sum / n;
+        double stddev = Math.sqrt(Math.max(0.0, sumSquares / n - mean * mean));
+        sb.append("score: mean ").append((float) mean)
+                .append(" stddev ").append((float) stddev)
+                .append(" min ").append(scores[0])
+                .append(" p10 ").append(scores[n / 10])
+                .append(" median ").append(scores[n / 2])
+                .append(" p90 ").append(scores[n * 9 / 10])
+                .append(" max ").append(scores[n - 1]).append('\n');
+        sb.append("rank: mean ").append((float) rankSum / n)
+                .append(" wins ").append(100f * ranks[1] / n).append("%\n");
+        for (int r = 1; r < ranks.length; r++) {
+            sb.append("  rank ").append(r).append(": ").append(ranks[r]).append('\n');
+        }
+        return sb.toString();
+    }
+
+
+    // -------------------------------------------------------------------
+    // One game in the tournament (and the runtime of the agent playing it)
+    // -------------------------------------------------------------------
+
+    public static class Game extends AgentRuntime {
+
+        private final int index;
+        private final int seed;
+        // The scores of all agents in the market (the agent first)
+        private float[] scores;
+        private int utility;
+        private float cost;
+
+        Game(int index, int seed) {
+            super("game-" + index);
+            this.index = index;
+            this.seed = seed;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public int getSeed() {
+            return seed;
+        }
+
+        synchronized void gameEnded(TACMarket market) {
+            scores = new float[TACMarket.AGENTS];
+            for (int a = 0; a < scores.length; a++) {
+                scores[a] = market.getScore(a);
+            }
+            utility = market.getUtility(0);
+            cost = market.getCost(0);
+        }
+
+        /**
+         * Returns true if the market game has ended and been scored.
+         */
+        public synchronized boolean isEnded() {
+            return scores != null;
+        }
+
+        public synchronized float getScore() {
+            return scores[0];
+        }
+
+        public synchronized int getUtility() {
+            return utility;
+        }
+
+        public synchronized float getCost() {
+            return cost;
+        }
+
+        /**
+         * Returns the rank of the agent among the agents in the market
+         * (1 if no opponent scored higher).
+         */
+        public synchronized int getRank() {
+            int rank = 1;
+            for (int a = 1; a < scores.length; a++) {
+                if (scores[a] > scores[0]) {
+                    rank++;
+                }
+            }
+            return rank;
+        }
+
+        public String toString() {
+            return "Game[" + index + ',' + seed + ']';
+        }
+    }
+
+
+    // -------------------------------------------------------------------
+    // Startup and argument handling
+    // -------------------------------------------------------------------
+
+    public static void main(String[] args) throws Exception {
+        String usage =
+                "Usage: se.sics.tac.aw.TACTournament [-options]\n"
+                        + "where options include:\n"
+                        + "    -config <configfile>      set the config file to use\n"
+                        + "    -agentimpl <className>    set the agent implementation\n"
+                        + "    -games <games>            set the number of games to play\n"
+                        + "    -threads <threads>        set the number of games played at once\n"
+                        + "    -simSeed <seed>           set the seed of the first game\n"
+                        + "    -results <file>           write the result of each game to file\n"
+                        + "    -consoleLogLevel <level>  set the console log level\n"
+                        + "    -fileLogLevel <level>     set the file log level\n"
+                        + "    -h                        show this help message\n";
+        ArgEnumerator a = new ArgEnumerator(args, usage, true);
+        String configFile = a.getArgument("-config", "agent.conf");
+        Properties config = TACAgent.getConfig(configFile);
+        if (config == null) {
+            config = new Properties();
+        }
+        String agentClass = a.getArgument("-agentimpl",
+                config.getProperty("agentimpl", "se.sics.tac.aw.PostTraumaticAgent"));
+        int games = a.getArgument("-games", 100);
+        int threads = a.getArgument("-threads", Runtime.getRuntime().availableProcessors());
+        int seed = a.getArgument("-simSeed", 1);
+        String results = a.getArgument("-results", null);
+        // Only warnings by default: thousands of game logs are of no use
+        config.setProperty("consoleLogLevel",
+                Integer.toString(a.getArgument("-consoleLogLevel", 4)));
+        config.setProperty("fileLogLevel",
+                Integer.toString(a.getArgument("-fileLogLevel", 6)));
+        a.checkArguments();
+
+        // The agents share the console
+        LogFormatter formatter = new LogFormatter();
+        formatter.setAliasLevel(2);
+        LogFormatter.setFormatterForAllHandlers(formatter);
+
+        TACTournament tournament = new TACTournament(agentClass, config,
+                games, Math.max(1, threads), seed);
+        tournament.run();
+        if (results != null) {
+            tournament.writeResults(results);
+        }
+        System.out.print(tournament.getSummary());
+        // The agent implementations may have left threads behind
+        System.exit(0);
+    }
+}
@@ -0,0 +1,350 @@
+package se.sics.tac.aw;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.SimpleTimeZone;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the messages exchanged with the server (request, reply and the
+ * server time the reply was received) to one trace file per game, and
+ * reads them back for {@link TACReplayConnection}.
+ * <p>
+ * A trace file has one message per line:
+ * <pre>
+ *   serverTime TAB type TAB request TAB reply
+ * </pre>
+ * with backslash, tab and line breaks in the messages escaped. Each game
+ * trace starts with the latest login, server time and next game messages
+ * so that it can be replayed on its own.
+ * <p>
+ * Game logs written at log level FINEST (fileLogLevel=0 and the FINEST
+ * "XML out"/"XML in" lines) can be read as traces as well.
+ */
+public class TACTrace {
+
+    private static final Logger log = Logger.getLogger(TACTrace.class.getName());
+
+    // Messages about the session rather than a game
+    private static final String[] SESSION_TYPES = {"auth", "serverTime", "nextGame"};
+
+    private final String prefix;
+    // The latest session message of each type
+    private final LinkedHashMap<String, Record> session = new LinkedHashMap<String, Record>();
+    private Writer writer;
+    private File file;
+    private int recordCount = 0;
+
+    /**
+     * Creates a recorder writing the game traces to
+     * <code>&lt;prefix&gt;_GAME_&lt;gameID&gt;.trace</code>.
+     */
+    public TACTrace(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * Starts the trace for a new game.
+     */
+    public synchronized void startGame(int gameID) {
+        endGame();
+        file = new File(prefix + "_GAME_" + gameID + ".trace");
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(file), "UTF-8"));
+            for (Record record : session.values()) {
+                write(record);
+            }
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "could not create trace " + file, e);
+            writer = null;
+        }
+    }
+
+    /**
+     * Closes the trace of the current game.
+     */
+    public synchronized void endGame() {
+        if (writer != null) {
+            try {
+                writer.close();
+                log.fine("recorded " + recordCount + " messages to " + file);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "could not close trace " + file, e);
+            }
+            writer = null;
+            recordCount = 0;
+        }
+    }
+
+    /**
+     * Records a message whose reply has been received.
+     */
+    public synchronized void record(long serverTime, TACMessage msg) {
+        Record record = new Record(serverTime, msg.getType(),
+                msg.getSentMessage(), msg.getReceivedMessage());
+        if (isSessionType(record.type)) {
+            session.put(record.type, record);
+        }
+        if (writer != null) {
+            try {
+                write(record);
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "could not write trace " + file
+                        + ", tracing stopped for this game", e);
+                writer = null;
+            }
+        }
+    }
+
+    private void write(Record record) throws IOException {
+        writer.write(Long.toString(record.time));
+        writer.write('\t');
+        writer.write(record.type);
+        writer.write('\t');
+        writer.write(escape(record.request));
+        writer.write('\t');
+        writer.write(escape(record.reply));
+        writer.write('\n');
+        recordCount++;
+    }
+
+    static boolean isSessionType(String type) {
+        for (int i = 0; i < SESSION_TYPES.length; i++) {
+            if (SESSION_TYPES[i].equals(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    // -------------------------------------------------------------------
+    // Reading traces
+    // -------------------------------------------------------------------
+
+    /**
+     * Reads a trace file or, if the file name ends with <code>.log</code>,
+     * the server messages logged at level FINEST in a game log.
+     */
+    public static Record[] read(File file) throws IOException {
+        return file.getName().endsWith(".log") ? readLog(file) : readTrace(file);
+    }
+
+    private static Record[] readTrace(File file) throws IOException {
+        ArrayList<Record> records = new ArrayList<Record>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            int lineNo = 0;
+            while ((line = in.readLine()) != null) {
+                lineNo++;
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 4) {
+                    throw new IOException(file + ":" + lineNo + ": malformed trace record");
+                }
+                records.add(new Record(Long.parseLong(fields[0]), fields[1],
+                        unescape(fields[2]), unescape(fields[3])));
+            }
+        } finally {
+            in.close();
+        }
+        return records.toArray(new Record[records.size()]);
+    }
+
+    // Game logs only have second resolution in the time stamps and do not
+    // include the login and next game messages. The time stamps are aligned
+    // with the server time reply if there is one and the next game message
+    // is recreated from the game start.
+    private static Record[] readLog(File file) throws IOException {
+        SimpleDateFormat format = new SimpleDateFormat("dd/MM HH:mm:ss");
+        format.setTimeZone(new SimpleTimeZone(0, "UTC"));
+        ArrayList<Record> records = new ArrayList<Record>();
+        int gameID = -1;
+        long gameStartTime = -1L;
+        long timeOffset = 0L;
+        String request = null;
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int index;
+                if (line.length() < 15 || (index = line.indexOf('|')) < 0) {
+                    continue;
+                }
+                long time;
+                try {
+                    time = format.parse(line.substring(0, 14)).getTime();
+                } catch (ParseException e) {
+                    continue;
+                }
+                String text = line.substring(index + 1);
+                if (text.startsWith("XML out: '")) {
+                    request = text.substring(10, text.lastIndexOf('\''));
+                } else if (text.startsWith("XML in: '") && request != null) {
+                    String reply = text.substring(9, text.lastIndexOf("' responseTime:"));
+                    String type = request.substring(1, request.indexOf('>'));
+                    if ("serverTime".equals(type)) {
+                        TACMessage msg = new TACMessage(type);
+                        msg.setReceivedMessage(reply);
+                        while (msg.nextTag()) {
+                            if (msg.isTag("time")) {
+                                timeOffset = msg.getValueAsLong(0) * 1000 - time;
+                            }
+                        }
+                    }
+                    records.add(new Record(time, type, request, reply));
+                    request = null;
+                } else if (text.startsWith("Starting up game: ")) {
+                    gameID = Integer.parseInt(text.substring(18).trim());
+                    gameStartTime = time;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        if (records.isEmpty()) {
+            throw new IOException(file + ": no server messages (log level FINEST needed)");
+        }
+
+        ArrayList<Record> trace = new ArrayList<Record>(records.size() + 3);
+        long firstTime = records.get(0).time;
+        if (findType(records, "auth") < 0) {
+            trace.add(new Record(firstTime, "auth", "<auth></auth>",
+                    "<auth><userID>1</userID></auth>"));
+        }
+        if (findType(records, "nextGame") < 0 && gameID >= 0) {
+            // The game starts one second after its start time
+            long startTime = (gameStartTime + timeOffset) / 1000 - 1;
+            trace.add(new Record(firstTime, "nextGame", "<nextGame></nextGame>",
+                    "<nextGame><gameID>" + gameID + "</gameID><startTime>"
+                            + startTime + "</startTime></nextGame>"));
+        }
+        for (int i = 0, n = records.size(); i < n; i++) {
+            Record r = records.get(i);
+            trace.add(timeOffset == 0L ? r
+                    : new Record(r.time + timeOffset, r.type, r.request, r.reply));
+        }
+        return trace.toArray(new Record[trace.size()]);
+    }
+
+    private static int findType(ArrayList<Record> records, String type) {
+        for (int i = 0, n = records.size(); i < n; i++) {
+            if (records.get(i).type.equals(type)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String escape(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuffer sb = null;
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            String replacement;
+            switch (c) {
+                case '\\':
+                    replacement = "\\\\";
+                    break;
+                case '\t':
+                    replacement = "\\t";
+                    break;
+                case '\n':
+                    replacement = "\\n";
+                    break;
+                case '\r':
+                    replacement = "\\r";
+                    break;
+                default:
+                    replacement = null;
+                    break;
+            }
+            if (replacement != null) {
+                if (sb == null) {
+                    sb = new StringBuffer(text.length() + 16).append(text, 0, i);
+                }
+                sb.append(replacement);
+            } else if (sb != null) {
+                sb.append(c);
+            }
+        }
+        return sb == null ? text : sb.toString();
+    }
+
+    private static String unescape(String text) {
+        if (text.indexOf('\\') < 0) {
+            return text;
+        }
+        StringBuffer sb = new StringBuffer(text.length());
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < n) {
+                c = text.charAt(++i);
+                sb.append(c == 't' ? '\t' : c == 'n' ? '\n' : c == 'r' ? '\r' : c);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+
+    // -------------------------------------------------------------------
+    // A recorded message
+    // -------------------------------------------------------------------
+
+    public static class Record {
+
+        private final long time;
+        private final String type;
+        private final String request;
+        private final String reply;
+
+        Record(long time, String type, String request, String reply) {
+            this.time = time;
+            this.type = type;
+            this.request = request;
+            this.reply = reply;
+        }
+
+        /**
+         * Returns the server time the reply was received.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getRequest() {
+            return request;
+        }
+
+        public String getReply() {
+            return reply;
+        }
+
+        public String toString() {
+            return time + " " + type;
+        }
+    }
+}
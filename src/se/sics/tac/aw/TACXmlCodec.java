@@ -0,0 +1,37 @@
+package se.sics.tac.aw;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The standard TAC wire format: XML messages terminated by a NUL byte.
+ */
+public class TACXmlCodec extends TACCodec {
+
+    private byte[] frame = new byte[4096];
+    private int frameLength = 0;
+
+    protected ByteBuffer encodeMessage(TACMessage msg) {
+        return msg.encode();
+    }
+
+    protected byte[] decodeMessage(ByteBuffer in) {
+        int start = in.position();
+        int limit = in.limit();
+        for (int i = start; i < limit; i++) {
+            if (in.get(i) == 0) {
+                frame = append(frame, frameLength, in, i - start);
+                frameLength += i - start;
+                // Skip the terminating NUL
+                in.get();
+
+                byte[] data = new byte[frameLength];
+                System.arraycopy(frame, 0, data, 0, frameLength);
+                frameLength = 0;
+                return data;
+            }
+        }
+        frame = append(frame, frameLength, in, limit - start);
+        frameLength += limit - start;
+        return null;
+    }
+}
@@ -27,17 +27,51 @@
  *   The TimeDispatcher is used to schedule tasks at specified times.
  *
  *   A TimeDispatcher object is obtained by calling
- *   TimeDispatcher.getDefault().
+ *   TimeDispatcher.getDefault(). Agents run side by side in the same
+ *   JVM each have their own dispatcher (see AgentRuntime), bound to
+ *   their threads with setCurrent().
  */
 
 package se.sics.tac.aw;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.botbox.util.ArrayQueue;
+import se.sics.tac.util.LatencyHistogram;
 
 public class TimeDispatcher extends Thread {
 
-  private static TimeDispatcher dispatcher;
+  // Number of worker threads when virtual threads are not available
+  private static final int DEFAULT_WORKERS = 4;
+
+  private static final Logger log =
+    Logger.getLogger(TimeDispatcher.class.getName());
 
+  private static volatile TimeDispatcher dispatcher;
+  // The dispatcher bound to a thread and the threads it starts
+  private static final InheritableThreadLocal<TimeDispatcher> current =
+    new InheritableThreadLocal<TimeDispatcher>();
+
+  /**
+   * Returns the dispatcher bound to the current thread (see
+   * {@link #setCurrent}) or else the dispatcher shared by the JVM.
+   */
   public static TimeDispatcher getDefault() {
+    TimeDispatcher d = current.get();
+    if (d != null) {
+      return d;
+    }
     if (dispatcher == null) {
       synchronized (TimeDispatcher.class) {
 	if (dispatcher == null) {
@@ -48,76 +82,496 @@ public class TimeDispatcher extends Thread {
     return dispatcher;
   }
 
-  private ArrayList list = new ArrayList();
-  private long timeDiff;
+  /**
+   * Creates a dispatcher of its own, for an agent that must not share
+   * time and tasks with the other agents in the JVM.
+   */
+  public static TimeDispatcher create(String name) {
+    return new TimeDispatcher(name);
+  }
+
+  /**
+   * Binds the dispatcher to the current thread and to the threads it
+   * starts from now on, so that getDefault() returns it in all of them.
+   * A null dispatcher removes the binding.
+   */
+  public static void setCurrent(TimeDispatcher d) {
+    if (d == null) {
+      current.remove();
+    } else {
+      current.set(d);
+    }
+  }
+
+  // Tasks ordered by time (and in the order they were added for equal
+  // times). Cancelled tasks are left in the queue and skipped when they
+  // reach the head.
+  private final PriorityQueue<TaskHandle> queue =
+    new PriorityQueue<TaskHandle>();
+  // The scheduled tasks for each key (keys are compared by identity)
+  private final IdentityHashMap<Object,ArrayList<TaskHandle>> keys =
+    new IdentityHashMap<Object,ArrayList<TaskHandle>>();
+  private int cancelledCount = 0;
+  private long sequence = 0;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+
+  private volatile long timeDiff;
+  // The server time in manual mode (tasks are then only performed by
+  // advanceTo) or -1 when following the system clock
+  private volatile long manualTime = -1L;
+
+  // How late tasks are started (in microseconds)
+  private final LatencyHistogram lateness = new LatencyHistogram();
+  // Time from a task being due until a worker starts it (in microseconds)
+  private final LatencyHistogram queueDelay = new LatencyHistogram();
+
+  // Due tasks are performed by the workers. Tasks with the same key are
+  // performed one at the time in time order: the keys with a task being
+  // performed map to the tasks waiting for it. Guarded by the lock.
+  private ExecutorService workers;
+  private final IdentityHashMap<Object,ArrayQueue> running =
+    new IdentityHashMap<Object,ArrayQueue>();
+
+  private volatile boolean shutdown = false;
 
   private TimeDispatcher() {
-    super("timer");
+    this("timer");
+  }
+
+  private TimeDispatcher(String name) {
+    super(name);
+    workers = createWorkers(0);
     start();
   }
 
-  public void setTimeDiff(long timeDiff) {
-    this.timeDiff = timeDiff;
+  /**
+   * Stops the dispatcher thread and the workers. Scheduled tasks are
+   * never performed.
+   */
+  public void shutdown() {
+    lock.lock();
+    try {
+      shutdown = true;
+      changed.signal();
+    } finally {
+      lock.unlock();
+    }
+    workers.shutdown();
   }
 
-  public synchronized
-    void addTask(long time, Object key, Object value, Task task) {
-    list.add(new TaskHolder(time, key, value, task));
-    notify();
+  /**
+   * Sets the number of threads performing tasks. Zero means virtual
+   * threads when the Java runtime supports them and otherwise a small
+   * fixed number of threads.
+   */
+  public void setWorkerThreads(int threads) {
+    ExecutorService old;
+    lock.lock();
+    try {
+      old = workers;
+      workers = createWorkers(threads);
+    } finally {
+      lock.unlock();
+    }
+    old.shutdown();
   }
 
-  public synchronized void cancelTask(Object key, Task task) {
-    for (int i = 0, n = list.size(); i < n; i++) {
-      TaskHolder h = (TaskHolder) list.get(i);
-      if (h.key == key && h.task == task) {
-	list.remove(i);
-	i--; n--;
+  private static ExecutorService createWorkers(int threads) {
+    if (threads <= 0) {
+      try {
+	// Java 21 and later
+	ExecutorService executor = (ExecutorService) Executors.class
+	  .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+	log.fine("performing timer tasks in virtual threads");
+	return executor;
+      } catch (Exception e) {
+	threads = DEFAULT_WORKERS;
       }
     }
+    log.fine("performing timer tasks in " + threads + " threads");
+    return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+	private final AtomicInteger count = new AtomicInteger();
+	public Thread newThread(Runnable r) {
+	  Thread thread = new Thread(r, "timer-" + count.incrementAndGet());
+	  thread.setDaemon(true);
+	  return thread;
+	}
+      });
+  }
+
+  public void setTimeDiff(long timeDiff) {
+    lock.lock();
+    try {
+      this.timeDiff = timeDiff;
+      changed.signal();
+    } finally {
+      lock.unlock();
+    }
   }
 
-  private synchronized TaskHolder nextTask() {
+  /**
+   * Returns the current server time.
+   */
+  public long getServerTime() {
+    long time = manualTime;
+    return time >= 0 ? time : System.currentTimeMillis() - timeDiff;
+  }
+
+  /**
+   * Stops following the system clock and sets the server time. From now
+   * on time only moves and tasks are only performed when
+   * {@link #advanceTo} is called, which makes the order of all tasks
+   * deterministic (used when replaying games).
+   */
+  public void setManualTime(long serverTime) {
+    lock.lock();
+    try {
+      this.manualTime = serverTime;
+      changed.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public boolean isManualTime() {
+    return manualTime >= 0;
+  }
+
+  /**
+   * Returns the time of the next scheduled task or
+   * <code>Long.MAX_VALUE</code> if there is none.
+   */
+  public long getNextTaskTime() {
+    lock.lock();
+    try {
+      TaskHandle h = peekScheduled();
+      return h == null ? Long.MAX_VALUE : h.time;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Moves the manual time forward to the specified server time and
+   * performs all tasks due until then in the calling thread, in time
+   * order. The time is set to the time of each task as it is performed.
+   */
+  public void advanceTo(long serverTime) {
+    if (manualTime < 0) {
+      throw new IllegalStateException("not in manual time mode");
+    }
     do {
-      long currentTime = System.currentTimeMillis() - timeDiff;
-      for (int i = 0, n = list.size(); i < n; i++) {
-	TaskHolder h = (TaskHolder) list.get(i);
-	if (h.time <= currentTime) {
-	  list.remove(i);
-	  return h;
+      TaskHandle h;
+      lock.lock();
+      try {
+	h = peekScheduled();
+	if (h == null || h.time > serverTime) {
+	  if (serverTime > manualTime) {
+	    manualTime = serverTime;
+	  }
+	  return;
+	}
+	queue.poll();
+	h.state = TaskHandle.PERFORMED;
+	removeKey(h);
+	if (h.time > manualTime) {
+	  manualTime = h.time;
 	}
+      } finally {
+	lock.unlock();
       }
       try {
-	wait(1000);
+	h.task.performWork(h.time, h.key, h.value);
       } catch (Exception e) {
-	e.printStackTrace();
+	log.log(Level.SEVERE, "could not perform task " + h.key, e);
       }
     } while (true);
   }
 
+  // Must be called with the lock held
+  private TaskHandle peekScheduled() {
+    TaskHandle h;
+    while ((h = queue.peek()) != null
+	   && h.state == TaskHandle.CANCELLED) {
+      queue.poll();
+      cancelledCount--;
+    }
+    return h;
+  }
+
+  /**
+   * Schedules the task to be performed at the specified (server) time.
+   *
+   * @return a handle that can be used to cancel the task
+   */
+  public TaskHandle addTask(long time, Object key, Object value, Task task) {
+    lock.lock();
+    try {
+      TaskHandle h = new TaskHandle(time, sequence++, key, value, task);
+      queue.add(h);
+      ArrayList<TaskHandle> list = keys.get(key);
+      if (list == null) {
+	list = new ArrayList<TaskHandle>(2);
+	keys.put(key, list);
+      }
+      list.add(h);
+      if (queue.peek() == h) {
+	// New earliest deadline
+	changed.signal();
+      }
+      return h;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Cancels the scheduled task. Returns false if the task has already
+   * been performed or cancelled.
+   */
+  public boolean cancel(TaskHandle h) {
+    lock.lock();
+    try {
+      if (h.state != TaskHandle.SCHEDULED) {
+	return false;
+      }
+      h.state = TaskHandle.CANCELLED;
+      removeKey(h);
+      cancelled();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void cancelTask(Object key, Task task) {
+    lock.lock();
+    try {
+      ArrayList<TaskHandle> list = keys.get(key);
+      if (list != null) {
+	for (int i = list.size() - 1; i >= 0; i--) {
+	  TaskHandle h = list.get(i);
+	  if (h.task == task) {
+	    h.state = TaskHandle.CANCELLED;
+	    list.remove(i);
+	    cancelled();
+	  }
+	}
+	if (list.isEmpty()) {
+	  keys.remove(key);
+	}
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of scheduled (not cancelled) tasks.
+   */
+  public int getTaskCount() {
+    lock.lock();
+    try {
+      return queue.size() - cancelledCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns how late tasks have been started relative to their scheduled
+   * time, in microseconds.
+   */
+  public LatencyHistogram getLateness() {
+    return lateness;
+  }
+
+  /**
+   * Returns the time from tasks being due until they were started by a
+   * worker (including waiting for earlier tasks with the same key), in
+   * microseconds.
+   */
+  public LatencyHistogram getQueueDelay() {
+    return queueDelay;
+  }
+
+  // Must be called with the lock held
+  private void cancelled() {
+    cancelledCount++;
+    if (cancelledCount > 64 && cancelledCount > queue.size() / 2) {
+      // Purge the cancelled tasks to bound the queue size
+      PriorityQueue<TaskHandle> tmp =
+	new PriorityQueue<TaskHandle>(queue.size() - cancelledCount + 1);
+      while (!queue.isEmpty()) {
+	TaskHandle h = queue.poll();
+	if (h.state == TaskHandle.SCHEDULED) {
+	  tmp.add(h);
+	}
+      }
+      queue.addAll(tmp);
+      cancelledCount = 0;
+    }
+  }
+
+  // Must be called with the lock held
+  private void removeKey(TaskHandle h) {
+    ArrayList<TaskHandle> list = keys.get(h.key);
+    if (list != null) {
+      list.remove(h);
+      if (list.isEmpty()) {
+	keys.remove(h.key);
+      }
+    }
+  }
+
+  private TaskHandle nextTask() throws InterruptedException {
+    lock.lock();
+    try {
+      do {
+	TaskHandle h = queue.peek();
+	if (shutdown) {
+	  return null;
+	} else if (h == null || manualTime >= 0) {
+	  // In manual mode the tasks are performed by advanceTo
+	  changed.await();
+	} else if (h.state == TaskHandle.CANCELLED) {
+	  queue.poll();
+	  cancelledCount--;
+	} else {
+	  long delay = h.time - (System.currentTimeMillis() - timeDiff);
+	  if (delay <= 0) {
+	    queue.poll();
+	    h.state = TaskHandle.PERFORMED;
+	    removeKey(h);
+	    return h;
+	  }
+	  changed.awaitNanos(TimeUnit.MILLISECONDS.toNanos(delay));
+	}
+      } while (true);
+    } finally {
+      lock.unlock();
+    }
+  }
+
   public void run() {
+    current.set(this);
     do {
-      TaskHolder h = nextTask();
+      TaskHandle h;
+      try {
+	h = nextTask();
+      } catch (InterruptedException e) {
+	log.log(Level.WARNING, "timer interrupted", e);
+	continue;
+      }
+      if (h == null) {
+	return;
+      }
+      dispatch(h);
+    } while (true);
+  }
+
+  private void dispatch(final TaskHandle h) {
+    h.dueTime = System.nanoTime();
+    ExecutorService executor;
+    lock.lock();
+    try {
+      ArrayQueue waiting = running.get(h.key);
+      if (waiting != null) {
+	// Performed after the running task with the same key
+	waiting.add(h);
+	return;
+      }
+      running.put(h.key, new ArrayQueue());
+      executor = workers;
+    } finally {
+      lock.unlock();
+    }
+
+    Runnable worker = new Runnable() {
+	public void run() {
+	  current.set(TimeDispatcher.this);
+	  perform(h);
+	}
+      };
+    try {
+      executor.execute(worker);
+    } catch (RejectedExecutionException e) {
+      // The workers are being replaced
+      worker.run();
+    }
+  }
+
+  // Performs the task and then any tasks with the same key that became
+  // due meanwhile
+  private void perform(TaskHandle h) {
+    do {
+      queueDelay.record((System.nanoTime() - h.dueTime) / 1000);
+      lateness.record((System.currentTimeMillis() - timeDiff - h.time) * 1000);
       try {
 	h.task.performWork(h.time, h.key, h.value);
       } catch (Exception e) {
-	e.printStackTrace();
+	log.log(Level.SEVERE, "could not perform task " + h.key, e);
       }
-    } while (true);
+
+      lock.lock();
+      try {
+	ArrayQueue waiting = running.get(h.key);
+	if (waiting.isEmpty()) {
+	  running.remove(h.key);
+	  h = null;
+	} else {
+	  h = (TaskHandle) waiting.remove(0);
+	}
+      } finally {
+	lock.unlock();
+      }
+    } while (h != null);
   }
 
 
-  private static class TaskHolder {
-    public long time;
-    public Object key;
-    public Object value;
-    public Task task;
+  /**
+   * Handle to a scheduled task.
+   */
+  public static class TaskHandle implements Comparable<TaskHandle> {
 
-    public TaskHolder(long time, Object key, Object value, Task task) {
+    private static final int SCHEDULED = 0;
+    private static final int CANCELLED = 1;
+    private static final int PERFORMED = 2;
+
+    private final long time;
+    private final long sequence;
+    private final Object key;
+    private final Object value;
+    private final Task task;
+    // Guarded by the dispatcher lock
+    private int state = SCHEDULED;
+    // When the task became due (System.nanoTime())
+    private long dueTime;
+
+    TaskHandle(long time, long sequence, Object key, Object value, Task task) {
       this.time = time;
+      this.sequence = sequence;
       this.key = key;
       this.value = value;
       this.task = task;
     }
+
+    public long getTime() {
+      return time;
+    }
+
+    public Object getKey() {
+      return key;
+    }
+
+    public int compareTo(TaskHandle h) {
+      if (time != h.time) {
+	return time < h.time ? -1 : 1;
+      }
+      return sequence < h.sequence ? -1 : (sequence == h.sequence ? 0 : 1);
+    }
   }
 
 } // TimeDispatcher
@@ -0,0 +1,311 @@
+package se.sics.tac.aw;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the goods and costs of the agent in step with its transactions on
+ * the server. Each sync sends one <code>transIDs</code> request for the
+ * transactions above the watermark (the highest transaction id up to
+ * which all transactions have been applied) and then requests all new
+ * transactions at once with pipelined <code>transInfo</code> requests.
+ * <p>
+ * Syncs do not wait for each other: a sync requested while others are in
+ * progress is sent right away, and transactions already being fetched are
+ * not requested again. The transactions are applied in id order and each
+ * one only once, and the action of a sync is performed when all
+ * transactions it found have been applied and all earlier syncs have
+ * completed.
+ * <p>
+ * A transaction that the server can not report is logged and skipped.
+ */
+public class TransactionSync {
+
+    private static final Logger log = Logger.getLogger(TransactionSync.class.getName());
+
+    /**
+     * A <code>transIDs</code> request that has not been answered after
+     * this long is sent again when the next sync is requested.
+     */
+    private static final int RESEND_TIMEOUT = 30000;
+
+    // Marks a transaction that could not be fetched
+    private static final Transaction SKIPPED = new Transaction(-1, 0, 0f);
+
+    private final TACAgent agent;
+
+    // All transactions with ids up to the watermark have been applied
+    private int watermark = -1;
+    // The transactions above the watermark that have been found, by id:
+    // null while being fetched and waiting for earlier ones when fetched
+    private final TreeMap<Integer, Transaction> found =
+            new TreeMap<Integer, Transaction>();
+    // The syncs in progress in the order they were requested
+    private final ArrayDeque<Sync> syncs = new ArrayDeque<Sync>();
+    // Replies to requests sent before the last reset are ignored
+    private int generation = 0;
+
+    // Transactions to apply and completed syncs, in order. Only one thread
+    // at the time reports them to the agent (without holding the lock).
+    private final ArrayDeque<Object> completed = new ArrayDeque<Object>();
+    private boolean reporting = false;
+
+    TransactionSync(TACAgent agent) {
+        this.agent = agent;
+    }
+
+    /**
+     * Returns the highest transaction id up to which all transactions have
+     * been applied, or -1 if none has.
+     */
+    public synchronized int getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * Returns true if any transaction has been found in this game.
+     */
+    public synchronized boolean hasTransactions() {
+        return watermark != -1 || !found.isEmpty();
+    }
+
+    /**
+     * Sets the watermark when the transactions up to it have been applied
+     * by other means (from the game journal).
+     */
+    synchronized void setWatermark(int transID) {
+        watermark = transID;
+        found.headMap(transID, true).clear();
+    }
+
+    /**
+     * Forgets the transactions and syncs of the game (when a new game
+     * starts).
+     */
+    synchronized void clear() {
+        reset();
+        watermark = -1;
+    }
+
+    /**
+     * Drops the syncs in progress and the transactions not yet applied
+     * (when the connection is reset). The transactions will be fetched
+     * again by the next sync.
+     */
+    synchronized void reset() {
+        generation++;
+        syncs.clear();
+        found.clear();
+        completed.clear();
+    }
+
+    /**
+     * Requests a sync of the transactions. The action is reported to the
+     * agent when all transactions that exist now have been applied.
+     */
+    public void sync(int action) {
+        TACMessage msg = new TACMessage("transIDs");
+        TACMessage resend = null;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Sync oldest = null;
+            for (Sync s : syncs) {
+                if (!s.replied) {
+                    oldest = s;
+                    break;
+                }
+            }
+            if (oldest != null && now - oldest.sentTime > RESEND_TIMEOUT) {
+                log.warning("transaction sync timeout after "
+                        + ((now - oldest.sentTime) / 1000) + " sec (resending)");
+                oldest.sentTime = now;
+                resend = new TACMessage("transIDs");
+                resend.setParameter("earliestTransID", watermark);
+                resend.setUserData(oldest);
+            }
+
+            Sync sync = new Sync(action, generation, now);
+            syncs.add(sync);
+            msg.setParameter("earliestTransID", watermark);
+            msg.setUserData(sync);
+        }
+        if (resend != null) {
+            agent.sendMessage(resend, agent);
+        }
+        agent.sendMessage(msg, agent);
+    }
+
+    /**
+     * Handles the reply to a <code>transIDs</code> request.
+     */
+    void transIDsReceived(TACMessage msg) {
+        Sync sync = (Sync) msg.getUserData();
+        ArrayList<Integer> fetch = new ArrayList<Integer>();
+        int generation;
+        synchronized (this) {
+            if (sync == null || sync.generation != this.generation || sync.replied) {
+                return;
+            }
+            generation = this.generation;
+            while (msg.nextTag()) {
+                if (msg.isTag("transID")) {
+                    int id = msg.getValueAsInt(-1);
+                    if (id > watermark) {
+                        if (id > sync.lastID) {
+                            sync.lastID = id;
+                        }
+                        if (!found.containsKey(id)) {
+                            found.put(id, null);
+                            fetch.add(id);
+                        }
+                    }
+                }
+            }
+            sync.replied = true;
+            addCompletedSyncs();
+        }
+        for (int i = 0, n = fetch.size(); i < n; i++) {
+            TACMessage msg2 = new TACMessage("transInfo");
+            msg2.setParameter("transID", fetch.get(i));
+            msg2.setUserData(new Fetch(fetch.get(i), generation));
+            agent.sendMessage(msg2, agent);
+        }
+        report();
+    }
+
+    /**
+     * Handles the reply to a <code>transInfo</code> request.
+     */
+    void transInfoReceived(TACMessage msg) {
+        Fetch fetch = (Fetch) msg.getUserData();
+        int quantity = 0;
+        int auction = -1;
+        float price = 0f;
+        int status = TACAgent.NO_ERROR;
+        while (msg.nextTag()) {
+            if (msg.isTag("quantity")) {
+                quantity = (int) msg.getValueAsFloat(0f);
+            } else if (msg.isTag("price")) {
+                price = msg.getValueAsFloat(0f);
+            } else if (msg.isTag("auctionID")) {
+                try {
+                    auction = agent.getAuctionPos(msg.getValueAsInt(0));
+                } catch (IllegalArgumentException e) {
+                    auction = -1;
+                }
+            } else if (msg.isTag("commandStatus")) {
+                status = msg.getValueAsInt(TACAgent.NO_ERROR);
+            }
+        }
+        synchronized (this) {
+            if (fetch == null || fetch.generation != generation
+                    || !found.containsKey(fetch.id) || found.get(fetch.id) != null) {
+                // Already applied (or from before a reset)
+                return;
+            }
+            if (status == TACAgent.NO_ERROR && auction >= 0) {
+                found.put(fetch.id, new Transaction(auction, quantity, price));
+            } else {
+                log.warning("skipping transaction " + fetch.id + ": status "
+                        + status + " (" + agent.commandStatusToString(status) + ')');
+                found.put(fetch.id, SKIPPED);
+            }
+            // Apply the transactions that no earlier transaction waits for
+            Map.Entry<Integer, Transaction> first;
+            while ((first = found.firstEntry()) != null && first.getValue() != null) {
+                found.pollFirstEntry();
+                watermark = first.getKey();
+                if (first.getValue() != SKIPPED) {
+                    completed.add(first.getValue());
+                }
+            }
+            addCompletedSyncs();
+        }
+        report();
+    }
+
+    private void addCompletedSyncs() {
+        Sync sync;
+        while ((sync = syncs.peek()) != null && sync.replied && sync.lastID <= watermark) {
+            syncs.poll();
+            sync.watermark = watermark;
+            completed.add(sync);
+        }
+    }
+
+    // Reports the applied transactions and completed syncs in order
+    private void report() {
+        synchronized (this) {
+            if (reporting) {
+                // The reporting thread will take them
+                return;
+            }
+            reporting = true;
+        }
+        while (true) {
+            Object next;
+            synchronized (this) {
+                next = completed.poll();
+                if (next == null) {
+                    reporting = false;
+                    return;
+                }
+            }
+            try {
+                if (next instanceof Transaction) {
+                    agent.transactionApplied((Transaction) next);
+                } else {
+                    Sync sync = (Sync) next;
+                    agent.transactionsSynced(sync.action, sync.watermark);
+                }
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    reporting = false;
+                }
+                throw e;
+            }
+        }
+    }
+
+    public synchronized String toString() {
+        return "TransactionSync[" + watermark + ',' + found.size() + " found,"
+                + syncs.size() + " syncs]";
+    }
+
+
+    // -------------------------------------------------------------------
+    // A transIDs request and the action to perform when it has completed
+    // -------------------------------------------------------------------
+
+    private static class Sync {
+
+        private final int action;
+        private final int generation;
+        private long sentTime;
+        private boolean replied = false;
+        // The highest transaction id in the reply
+        private int lastID = -1;
+        // The watermark when the sync completed
+        private int watermark;
+
+        Sync(int action, int generation, long sentTime) {
+            this.action = action;
+            this.generation = generation;
+            this.sentTime = sentTime;
+        }
+    }
+
+    private static class Fetch {
+
+        private final int id;
+        private final int generation;
+
+        Fetch(int id, int generation) {
+            this.id = id;
+            this.generation = generation;
+        }
+    }
+}